@@ -38,4 +38,27 @@ public class ZeroMQUtils {
 		}
 		return new String[] { header, buffer.toString() };
 	}
+
+	/**
+	 * @return the gunzipped data frames of the message, without the header frame, or null if there are none
+	 */
+	public static byte[] gunzipMultifameZMsgData(ZMsg msg) throws IOException {
+		Iterator<ZFrame> frames = msg.iterator();
+		frames.next(); // header
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		while (frames.hasNext()) {
+			buffer.write(frames.next().getData());
+		}
+		if (buffer.size() == 0) {
+			return null;
+		}
+		InputStream messageStream = new GZIPInputStream(new ByteArrayInputStream(
+				buffer.toByteArray()));
+		buffer.reset();
+		byte[] b = new byte[4096];
+		for (int n; (n = messageStream.read(b)) != -1;) {
+			buffer.write(b, 0, n);
+		}
+		return buffer.toByteArray();
+	}
 }
@@ -1,10 +1,19 @@
 package nl.ovapi.arnu;
 
 import java.io.ByteArrayOutputStream;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPOutputStream;
 
 import javax.annotation.PostConstruct;
@@ -16,6 +25,7 @@ import javax.xml.bind.Marshaller;
 import nl.tt_solutions.schemas.ns.rti._1.PutServiceInfoIn;
 import nl.tt_solutions.schemas.ns.rti._1.ServiceInfoServiceList;
 import nl.tt_solutions.schemas.ns.rti._1.ServiceInfoServiceType;
+import nl.tt_solutions.schemas.ns.rti._1.ServiceInfoStopType;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +33,7 @@ import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Context;
 import org.zeromq.ZMQ.Socket;
 
+import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
 
 
@@ -30,65 +41,309 @@ import com.google.common.collect.Queues;
 public class ARNUexporter {
 
 	private static final Logger _log = LoggerFactory.getLogger(ARNUexporter.class);
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	private final static String TOPIC = "/OVAPI/ARNURitinfo";
+	/**
+	 * Maximum number of services per snapshot message.
+	 */
+	private final static int SERVICES_PER_MESSAGE = 500;
+	/**
+	 * Estimated XML size of a service without stops and of each stop, for batching by size before marshalling.
+	 */
+	private final static int SERVICE_BYTES = 400;
+	private final static int STOP_BYTES = 350;
+	private final static long STATISTICS_INTERVAL = 60*1000;
+	/**
+	 * ServiceInfo is kept for new subscribers until this long after the last arrival or departure of the service.
+	 */
+	private final static long SERVICEINFO_EXPIRATION_MILLIS = 60*60*1000;
+	private final static long EXPIRATION_INTERVAL = 60*1000;
 	private ScheduledExecutorService _scheduler;
-	private ConcurrentLinkedQueue<ServiceInfoServiceType> workQueue;
+	private long maxDelay = 500;
+	private int maxMessageBytes = 1024*1024;
+	private int maxQueued = 50000;
+
+	private static class Queued {
+		private final ServiceInfoServiceType serviceInfo;
+		private final long time;
+		private final int bytes;
+
+		public Queued(ServiceInfoServiceType serviceInfo){
+			this.serviceInfo = serviceInfo;
+			this.time = System.currentTimeMillis();
+			this.bytes = estimateBytes(serviceInfo);
+		}
+	}
+
+	private BlockingQueue<Queued> workQueue;
+	/**
+	 * Estimated size of the queued services in bytes.
+	 */
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicLong overflowed = new AtomicLong();
+	/**
+	 * Keys of services pushed out of the queue by overflow, resent from current once the queue is empty. Guarded by itself.
+	 */
+	private final Set<String> overflow = new LinkedHashSet<String>();
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+	private final SendTask sendTask = new SendTask();
+	/**
+	 * Last ServiceInfo exported of every service, sent to new subscribers.
+	 */
+	private final ConcurrentMap<String,ServiceInfoServiceType> current = Maps.newConcurrentMap();
 	private Socket publisher;
 	private Context context;
 	private static boolean FORMAT_XML = true;
 
 	@PostConstruct
 	public void start() {
-		_scheduler = Executors.newScheduledThreadPool(1);
-		_scheduler.scheduleAtFixedRate(new SendTask(), 500, 500, TimeUnit.MILLISECONDS);
-		workQueue = Queues.newConcurrentLinkedQueue();
 		context = ZMQ.context(1);
 		publisher = context.socket(ZMQ.XPUB);
+		publisher.setXpubVerbose(true); //Report every subscription, not only the first one for a topic
 		publisher.bind("tcp://0.0.0.0:9345");
+		workQueue = Queues.newLinkedBlockingQueue(maxQueued);
+		_scheduler = Executors.newScheduledThreadPool(1);
+		_scheduler.scheduleAtFixedRate(sendTask, maxDelay, maxDelay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param maxDelay time in milliseconds a service waits at most for a batch to fill up, set before start.
+	 */
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @param maxMessageBytes estimated uncompressed size of a message at which it is sent without waiting for the delay,
+	 * set before start.
+	 */
+	public void setMaxMessageBytes(int maxMessageBytes) {
+		this.maxMessageBytes = maxMessageBytes;
+	}
+
+	/**
+	 * @param maxQueued number of services waiting to be sent at which the oldest are set aside, to be sent in their
+	 * latest state once the queue is empty. Set before start.
+	 */
+	public void setMaxQueued(int maxQueued) {
+		this.maxQueued = maxQueued;
+	}
+
+	private static int estimateBytes(ServiceInfoServiceType serviceInfo){
+		int stops = serviceInfo.getStopList() == null ? 0 : serviceInfo.getStopList().getStop().size();
+		return SERVICE_BYTES+stops*STOP_BYTES;
 	}
 
 	private class SendTask implements Runnable{
-		@Override
-		public void run() {
-			try {
-				PutServiceInfoIn putService = new PutServiceInfoIn();
-				ServiceInfoServiceList infoList = new ServiceInfoServiceList();
-				putService.setServiceInfoList(infoList);
-				infoList.setInitial(false);
-				JAXBContext jc = null;
-				for (int i = 0; i < 500; i++){
-					ServiceInfoServiceType serviceInfo = workQueue.poll();
-					if (serviceInfo == null){
-						break;
-					}
-					infoList.getServiceInfo().add(serviceInfo);
-				}
-				if (infoList.getServiceInfo().size() == 0){
-					return;
-				}
-				ByteArrayOutputStream out = new ByteArrayOutputStream();
-				GZIPOutputStream gzip = new GZIPOutputStream(out);
-				Marshaller marshaller = null;
+		private Marshaller marshaller;
+		/**
+		 * Part of the current ServiceInfo that still has to be sent to a new subscriber.
+		 */
+		private Iterator<ServiceInfoServiceType> snapshot = null;
+		private long expiredAt = System.currentTimeMillis();
+		private long statisticsSince = System.currentTimeMillis();
+		private long messages = 0;
+		private long servicesSent = 0;
+		private long bytesSent = 0;
+		private long queueAgeSum = 0;
+		private long queueAgeMax = 0;
+		private long servicesResent = 0;
+
+		private void send(List<ServiceInfoServiceType> serviceInfos) throws Exception{
+			if (marshaller == null){
 				try {
-					jc = JAXBContext.newInstance(PutServiceInfoIn.class);
+					JAXBContext jc = JAXBContext.newInstance(PutServiceInfoIn.class);
 					marshaller = jc.createMarshaller();
 					marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, FORMAT_XML);
 				} catch (JAXBException e1) {
 					_log.error("Error with JAXB",e1);
-					e1.printStackTrace();
 				}
-				marshaller.marshal(putService, gzip);
-				gzip.close();
-				publisher.sendMore("/OVAPI/ARNURitinfo");
-				publisher.send(out.toByteArray());
-				out.close();
+			}
+			PutServiceInfoIn putService = new PutServiceInfoIn();
+			ServiceInfoServiceList infoList = new ServiceInfoServiceList();
+			putService.setServiceInfoList(infoList);
+			infoList.setInitial(false);
+			infoList.getServiceInfo().addAll(serviceInfos);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(out);
+			marshaller.marshal(putService, gzip);
+			gzip.close();
+			publisher.sendMore(TOPIC);
+			publisher.send(out.toByteArray());
+			messages++;
+			servicesSent += serviceInfos.size();
+			bytesSent += out.size();
+			out.close();
+		}
+
+		/**
+		 * Send the latest ServiceInfo of a message full of services set aside by overflow.
+		 * @return whether services set aside remain
+		 */
+		private boolean sendOverflow() throws Exception{
+			List<ServiceInfoServiceType> serviceInfos = new ArrayList<ServiceInfoServiceType>();
+			boolean remaining;
+			synchronized (overflow){
+				int bytes = 0;
+				Iterator<String> keys = overflow.iterator();
+				while (keys.hasNext() && bytes < maxMessageBytes){
+					ServiceInfoServiceType serviceInfo = current.get(keys.next());
+					keys.remove();
+					if (serviceInfo != null){ //Else expired
+						bytes += estimateBytes(serviceInfo);
+						serviceInfos.add(serviceInfo);
+					}
+				}
+				remaining = !overflow.isEmpty();
+			}
+			if (serviceInfos.size() > 0){
+				send(serviceInfos);
+				servicesResent += serviceInfos.size();
+			}
+			return remaining;
+		}
+
+		/**
+		 * Start sending the current ServiceInfo when a subscription matching our topic comes in.
+		 */
+		private void receiveSubscriptions(){
+			byte[] event;
+			while ((event = publisher.recv(ZMQ.DONTWAIT)) != null){
+				if (event.length == 0 || event[0] != 1){
+					continue;
+				}
+				String topic = new String(event,1,event.length-1,UTF8);
+				if (TOPIC.startsWith(topic)){
+					_log.info("ARNU subscribe topic '{}', sending {} services",topic,current.size());
+					//Restarts a snapshot in progress, the new subscriber needs all of it
+					snapshot = current.values().iterator();
+				}
+			}
+		}
+
+		/**
+		 * Forget ServiceInfo of services that ended, new subscribers don't need them.
+		 */
+		private void expireServiceInfo(long now){
+			for (ServiceInfoServiceType serviceInfo : current.values()){
+				long end = -1;
+				if (serviceInfo.getStopList() != null){
+					for (ServiceInfoStopType stop : serviceInfo.getStopList().getStop()){
+						if (stop.getArrival() != null){
+							end = Math.max(end, stop.getArrival().getMillis());
+						}
+						if (stop.getDeparture() != null){
+							end = Math.max(end, stop.getDeparture().getMillis());
+						}
+					}
+				}
+				if (end >= 0 && end+SERVICEINFO_EXPIRATION_MILLIS < now){
+					current.remove(key(serviceInfo), serviceInfo);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				receiveSubscriptions();
+			} catch (Exception e) {
+				_log.error("ARNU exporter subscription exception",e);
+			}
+			try {
+				//Back-to-back while a backlog exists, in messages of at most about maxMessageBytes
+				flushRequested.set(false);
+				List<ServiceInfoServiceType> serviceInfos = new ArrayList<ServiceInfoServiceType>();
+				while (!workQueue.isEmpty()){
+					int bytes = 0;
+					Queued queued;
+					while (bytes < maxMessageBytes && (queued = workQueue.poll()) != null){
+						queuedBytes.addAndGet(-queued.bytes);
+						bytes += queued.bytes;
+						serviceInfos.add(queued.serviceInfo);
+						long age = System.currentTimeMillis()-queued.time;
+						queueAgeSum += age;
+						queueAgeMax = Math.max(queueAgeMax, age);
+					}
+					if (serviceInfos.size() > 0){
+						send(serviceInfos);
+					}
+					serviceInfos.clear();
+				}
+				//Services set aside by overflow go after the changes, while nothing new waits
+				boolean overflowRemaining = true;
+				while (overflowRemaining && workQueue.isEmpty()){
+					overflowRemaining = sendOverflow();
+				}
 			} catch (Exception e) {
 				_log.error("ARNU exporter exception",e);
-				e.printStackTrace();
-			}	
+			}
+			try {
+				//Snapshots are read from the live state, in between the changes
+				if (snapshot != null){
+					List<ServiceInfoServiceType> serviceInfos = new ArrayList<ServiceInfoServiceType>();
+					while (snapshot.hasNext() && serviceInfos.size() < SERVICES_PER_MESSAGE){
+						serviceInfos.add(snapshot.next());
+					}
+					if (!snapshot.hasNext()){
+						snapshot = null;
+					}
+					if (serviceInfos.size() > 0){
+						send(serviceInfos);
+					}
+				}
+			} catch (Exception e) {
+				_log.error("ARNU exporter snapshot exception",e);
+			}
+			long now = System.currentTimeMillis();
+			if (now-statisticsSince >= STATISTICS_INTERVAL){
+				long seconds = Math.max(1,(now-statisticsSince)/1000);
+				long overflowedServices = overflowed.getAndSet(0);
+				if (overflowedServices > 0){
+					_log.warn("ARNU queue full, set aside {} oldest queued services, resent {} from their latest state",
+							overflowedServices,servicesResent);
+				}
+				_log.info("ARNU sent {} services in {} messages, {} bytes/s, queue age {} ms average, {} ms max",
+						servicesSent,messages,bytesSent/seconds,servicesSent == 0 ? 0 : queueAgeSum/servicesSent,queueAgeMax);
+				statisticsSince = now;
+				messages = 0;
+				servicesSent = 0;
+				bytesSent = 0;
+				queueAgeSum = 0;
+				queueAgeMax = 0;
+				servicesResent = 0;
+			}
+			if (now-expiredAt >= EXPIRATION_INTERVAL){
+				expiredAt = now;
+				try {
+					expireServiceInfo(now);
+				} catch (Exception e) {
+					_log.error("ARNU exporter expiration exception",e);
+				}
+			}
 		}
 	}
 
+	private static String key(ServiceInfoServiceType serviceInfo){
+		return serviceInfo.getCompanyCode()+":"+serviceInfo.getServiceCode();
+	}
+
 	public void export(ServiceInfoServiceType serviceInfo){
-		workQueue.offer(serviceInfo);
+		current.put(key(serviceInfo), serviceInfo);
+		Queued queued = new Queued(serviceInfo);
+		//Overflow sets the oldest changes aside by key, current keeps their latest state to send later
+		while (!workQueue.offer(queued)){
+			Queued oldest = workQueue.poll();
+			if (oldest != null){
+				queuedBytes.addAndGet(-oldest.bytes);
+				synchronized (overflow){
+					overflow.add(key(oldest.serviceInfo));
+				}
+				overflowed.incrementAndGet();
+			}
+		}
+		if (queuedBytes.addAndGet(queued.bytes) >= maxMessageBytes && flushRequested.compareAndSet(false, true)){
+			_scheduler.execute(sendTask);
+		}
 	}
 }
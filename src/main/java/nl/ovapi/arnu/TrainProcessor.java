@@ -57,6 +57,9 @@ public class TrainProcessor {
 		return Collections.disjoint(plannedLeft, plannedRight);
 	}
 
+	/**
+	 * @return train number trainCode is a split or extension of, trainCode itself when it is not, null when it is not numeric
+	 */
 	public static Integer orginalTrainNumber(String trainCode){
 		try{
 			int trainNumber = Integer.parseInt(trainCode);
@@ -91,10 +94,8 @@ public class TrainProcessor {
 			}else{
 				return trainNumber;
 			}
-		}catch (Exception e){
-			_log.error("Can't parse trainCode {}",trainCode);
-			e.printStackTrace();
-			return null;
+		}catch (NumberFormatException e){
+			return null; //Not a train number, such as a replacement bus code
 		}
 	}
 
@@ -0,0 +1,69 @@
+package nl.ovapi.arnu;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import lombok.Getter;
+import nl.ovapi.rid.model.Journey;
+import nl.ovapi.rid.model.JourneyPattern.JourneyPatternPoint;
+
+/**
+ * Station codes of all blocks of a train in the timetable, to match ARNU services against without walking the blocks.
+ * @author Thomas Koch
+ *
+ */
+public class TrainStations {
+
+	/**
+	 * Train id, OperatingDay+':IFF:'+TransportModeCode+':'+ServiceCode
+	 */
+	@Getter private final String id;
+	@Getter private final String operatingDay;
+	@Getter private final String transportModeCode;
+	@Getter private final String serviceCode;
+	private final Set<String> stations = new HashSet<String>();
+
+	public TrainStations(String id){
+		String[] parts = id.split(":");
+		if (parts.length != 4){
+			throw new IllegalArgumentException("Not a train id "+id);
+		}
+		this.id = id;
+		this.operatingDay = parts[0];
+		this.transportModeCode = parts[2];
+		this.serviceCode = parts[3];
+	}
+
+	/**
+	 * @return key of the trains with this operating day and service code, regardless of their transport mode
+	 */
+	public static String serviceKey(String operatingDay, String serviceCode){
+		return operatingDay+":"+serviceCode;
+	}
+
+	public String getServiceKey(){
+		return serviceKey(operatingDay,serviceCode);
+	}
+
+	public void addJourney(Journey journey){
+		if (journey.getJourneypattern() == null){
+			return;
+		}
+		for (JourneyPatternPoint pt : journey.getJourneypattern().getPoints()){
+			stations.add(BlockProcessor.stationCode(pt).intern());
+		}
+	}
+
+	/**
+	 * @return whether the train calls at any of stationCodes
+	 */
+	public boolean containsAny(Collection<String> stationCodes){
+		for (String stationCode : stationCodes){
+			if (stations.contains(stationCode)){
+				return true;
+			}
+		}
+		return false;
+	}
+}
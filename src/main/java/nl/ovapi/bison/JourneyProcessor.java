@@ -3,13 +3,14 @@ package nl.ovapi.bison;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.Duration;
 
 import lombok.Getter;
 import lombok.NonNull;
-import lombok.Setter;
 import lombok.Synchronized;
 import nl.ovapi.bison.VehicleDatabase.VehicleType;
 import nl.ovapi.bison.model.DataOwnerCode;
@@ -42,6 +43,7 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
 import com.google.transit.realtime.GtfsRealtime.Position;
@@ -59,32 +61,184 @@ import com.google.transit.realtime.GtfsRealtimeOVapi.OVapiVehiclePosition;
 public class JourneyProcessor {
 
 
-	@Getter
 	/**
 	 * Last received KV6posinfo for this Journey
 	 */
 	private KV6posinfo posinfo;
 
-	private Map<Integer, ArrayList<Mutation>> mutations;
+	/**
+	 * KV17 mutations in effect for this journey, keyed on mutationKey.
+	 */
+	private Map<String, Mutation> mutations;
 
 	@Getter
-	@Setter
 	/**
 	 * Map with last received posinfo for reinforcementnumber.
 	 */
-	private Map<Integer, KV6posinfo> reinforcements;
+	private final ConcurrentMap<Integer, KV6posinfo> reinforcements;
+
+	private List<DatedPasstime> datedPasstimes;
+
+	/**
+	 * State of this journey as of the last modification, readable without taking writeLock.
+	 */
+	private volatile Snapshot snapshot;
+
+	/**
+	 * Positions in datedPasstimes for each userstopcode, ordered by passage.
+	 */
+	private Map<String, int[]> passtimeIndex;
+
+	/**
+	 * Index of last stop where a zero prognosis is changed by the dwell-time comfort zone.
+	 */
+	private int lastDwellComfortIndex = -1;
+
+	/**
+	 * Index after the last datedPasstime with an expected time deviating from the target time.
+	 */
+	private int prognosisTail = 0;
+
+	/**
+	 * Last built StopTimeUpdate for each datedPasstime, null for infopoints or when never built.
+	 */
+	private StopTimeUpdate[] stopTimeUpdates;
+
+	/**
+	 * StopTimeUpdates as emitted by filteredTripUpdate when the delay does not change at that stop:
+	 * without arrival, or without any times for NO_DATA and SKIPPED stops.
+	 */
+	private StopTimeUpdate[] strippedStopTimeUpdates;
 
-	@Getter private List<DatedPasstime> datedPasstimes;
+	/**
+	 * Times and status each cached StopTimeUpdate was built from, STOPTIMEUPDATE_KEY_SIZE per datedPasstime.
+	 */
+	private int[] stopTimeUpdateKeys;
+
+	private static final int STOPTIMEUPDATE_KEY_SIZE = 5;
+
+	/**
+	 * POSIX time of midnight of the operatingday, base for the seconds since midnight in datedPasstimes.
+	 */
+	private long serviceDayEpoch;
+
+	/**
+	 * ARNU stopcodes and scheduled times truncated to the minute per datedPasstime, built on first ServiceInfo.
+	 */
+	private String[] arnuStopCodes;
+	private DateTime[] arnuArrivalTimes;
+	private DateTime[] arnuDepartureTimes;
+
+	private static final DatatypeFactory DATATYPE_FACTORY;
+
+	//Range of minute delays for which Durations are shared
+	private static final int MIN_CACHED_DELAY = -60;
+	private static final int MAX_CACHED_DELAY = 180;
+	private static final Duration[] DELAYS;
+
+	static {
+		DatatypeFactory factory = null;
+		Duration[] delays = null;
+		try {
+			factory = DatatypeFactory.newInstance();
+			delays = new Duration[MAX_CACHED_DELAY-MIN_CACHED_DELAY+1];
+			for (int i = 0; i < delays.length; i++){
+				delays[i] = factory.newDuration((i+MIN_CACHED_DELAY) * 60 * 1000);
+			}
+		} catch (DatatypeConfigurationException e) {
+			LoggerFactory.getLogger(JourneyProcessor.class).error("No DatatypeFactory available, ARNU ServiceInfo disabled",e);
+		}
+		DATATYPE_FACTORY = factory;
+		DELAYS = delays;
+	}
 
 	private static final Logger _log = LoggerFactory.getLogger(JourneyProcessor.class);
 
 	private Journey _journey;
+
+	public Journey getJourney(){
+		return _journey;
+	}
+
 	public JourneyProcessor(@NonNull Journey journey){
 		_journey = journey;
 		mutations = Maps.newHashMap();
-		reinforcements = Maps.newHashMap();
+		reinforcements = Maps.newConcurrentMap();
 		datedPasstimes = new ArrayList<DatedPasstime>(journey.getJourneypattern().getPoints().size());
 		materializeDatedPasstimes(journey);
+		indexDatedPasstimes();
+		stopTimeUpdates = new StopTimeUpdate[datedPasstimes.size()];
+		strippedStopTimeUpdates = new StopTimeUpdate[datedPasstimes.size()];
+		stopTimeUpdateKeys = new int[datedPasstimes.size()*STOPTIMEUPDATE_KEY_SIZE];
+		serviceDayEpoch = journey.getDepartureEpoch()-datedPasstimes.get(0).getTargetDepartureTime();
+		publishSnapshot();
+	}
+
+	/**
+	 * Immutable state of a journey, the DatedPasstime's in it are copies and must not be modified.
+	 */
+	public static class Snapshot{
+		@Getter private final KV6posinfo posinfo;
+		@Getter private final List<DatedPasstime> datedPasstimes;
+
+		private Snapshot(KV6posinfo posinfo, List<DatedPasstime> datedPasstimes){
+			this.posinfo = posinfo;
+			this.datedPasstimes = datedPasstimes;
+		}
+	}
+
+	/**
+	 * @return state of this journey as of the last modification
+	 */
+	public Snapshot getSnapshot(){
+		return snapshot;
+	}
+
+	/**
+	 * @return last received KV6posinfo for this Journey
+	 */
+	public KV6posinfo getPosinfo(){
+		return snapshot.getPosinfo();
+	}
+
+	/**
+	 * @return copies of the DatedPasstime's of this journey as of the last modification
+	 */
+	public List<DatedPasstime> getDatedPasstimes(){
+		return snapshot.getDatedPasstimes();
+	}
+
+	/**
+	 * Publish the current state as snapshot, DatedPasstime's not modified since the previous snapshot are shared.
+	 */
+	private void publishSnapshot(){
+		Snapshot previous = snapshot;
+		DatedPasstime[] copies = new DatedPasstime[datedPasstimes.size()];
+		for (int i = 0; i < copies.length; i++){
+			DatedPasstime dp = datedPasstimes.get(i);
+			if (previous != null && previous.datedPasstimes.get(i).getVersion() == dp.getVersion()){
+				copies[i] = previous.datedPasstimes.get(i);
+			}else{
+				copies[i] = new DatedPasstime(dp);
+			}
+		}
+		snapshot = new Snapshot(posinfo, ImmutableList.copyOf(copies));
+	}
+
+	/**
+	 * Remove reinforcements that did not send a KV6posinfo since threshold
+	 * @param threshold POSIX time
+	 * @return posinfo's of removed reinforcements
+	 */
+	public List<KV6posinfo> expireReinforcements(long threshold){
+		List<KV6posinfo> expired = new ArrayList<KV6posinfo>();
+		for (Map.Entry<Integer, KV6posinfo> reinforcement : reinforcements.entrySet()){
+			KV6posinfo last = reinforcement.getValue();
+			if (last.getTimestamp() < threshold && reinforcements.remove(reinforcement.getKey(), last)){
+				expired.add(last);
+			}
+		}
+		return expired;
 	}
 
 	//Speeds used to calculate theoretical fastest speeds
@@ -120,90 +274,108 @@ public class JourneyProcessor {
 		return _journey.getEndEpoch();
 	}
 
-	private TripUpdate.Builder filter(TripUpdate.Builder tripUpdate){
-		if (tripUpdate.getStopTimeUpdateCount() == 0)
-			return tripUpdate;
-		tripUpdate.getStopTimeUpdateOrBuilderList();
+	/**
+	 * Create TripUpdate from the (cached) StopTimeUpdates, without negative dwells or stoptimes
+	 * and only with StopTimeUpdates where the delay changes.
+	 * @return filtered TripUpdate
+	 */
+	private TripUpdate.Builder filteredTripUpdate(){
+		TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+		tripUpdate.setTrip(tripDescriptor());
+		StopTimeUpdate[] updates = new StopTimeUpdate[datedPasstimes.size()];
 		long lastTime = Long.MAX_VALUE;
-		for (int i = tripUpdate.getStopTimeUpdateCount()-1; i >= 0; i--){ //Filter negative dwells and stoptimes
-			StopTimeUpdate.Builder update = tripUpdate.getStopTimeUpdateBuilder(i);
-			if (update.getScheduleRelationship() == StopTimeUpdate.ScheduleRelationship.NO_DATA || 
-					update.getScheduleRelationship() == StopTimeUpdate.ScheduleRelationship.SKIPPED ||
-					update.hasExtension(GtfsRealtimeOVapi.ovapiStopTimeUpdate)){
+		for (int i = datedPasstimes.size()-1; i >= 0; i--){ //Filter negative dwells and stoptimes
+			if (datedPasstimes.get(i).getJourneyStopType() == JourneyStopType.INFOPOINT){
 				continue;
 			}
-			if (i == 0 && (!update.hasDeparture() || !update.hasArrival())){
-				//System.out.println(tripUpdate.build());
-				//System.out.println(update.build());
-				_log.error("Departure or arrival is missing");
-			}
-			if (update.getDeparture().getTime() > lastTime){
-				int offset = (int) (lastTime - update.getDeparture().getTime());
-				update.getDepartureBuilder().setTime(update.getDeparture().getTime()+offset);
-				update.getDepartureBuilder().setDelay((int)(update.getDepartureBuilder().getTime()-_journey.getDepartureTime(update.getStopSequence())));
+			StopTimeUpdate update = stopTimeUpdate(i);
+			updates[i] = update;
+			if (!hasTimes(update)){
+				continue;
 			}
-			lastTime = update.getDeparture().getTime();
-			if (update.getArrival().getTime() > lastTime){
-				int offset = (int) (lastTime - update.getArrival().getTime());
-				update.getArrivalBuilder().setTime(update.getArrival().getTime()+offset);
-				update.getArrivalBuilder().setDelay((int)(update.getArrivalBuilder().getTime()-_journey.getArrivalTime(update.getStopSequence())));
+			long departure = Math.min(update.getDeparture().getTime(), lastTime);
+			long arrival = Math.min(update.getArrival().getTime(), departure);
+			if (departure != update.getDeparture().getTime() || arrival != update.getArrival().getTime()){
+				StopTimeUpdate.Builder clamped = update.toBuilder();
+				if (departure != update.getDeparture().getTime()){
+					clamped.getDepartureBuilder().setTime(departure);
+					clamped.getDepartureBuilder().setDelay((int)(departure-_journey.getDepartureTime(update.getStopSequence())));
+				}
+				if (arrival != update.getArrival().getTime()){
+					clamped.getArrivalBuilder().setTime(arrival);
+					clamped.getArrivalBuilder().setDelay((int)(arrival-_journey.getArrivalTime(update.getStopSequence())));
+				}
+				updates[i] = clamped.build();
 			}
-			lastTime = update.getArrival().getTime();
+			lastTime = arrival;
 		}
-		ArrayList<StopTimeUpdate.Builder> updates = new ArrayList<StopTimeUpdate.Builder>();
 		int lastDelay = Integer.MIN_VALUE;
-		StopTimeUpdate.ScheduleRelationship lastSchedule = StopTimeUpdate.ScheduleRelationship.SCHEDULED;
-		boolean hadStopTimeExtension = false;
-		List<StopTimeUpdate.Builder> unfilteredUpdates = tripUpdate.getStopTimeUpdateBuilderList();
-		for (int i = 0; i < unfilteredUpdates.size(); i++){
-			StopTimeUpdate.Builder update = unfilteredUpdates.get(i);
-			if (update.getScheduleRelationship() == StopTimeUpdate.ScheduleRelationship.NO_DATA || 
-					update.getScheduleRelationship() == StopTimeUpdate.ScheduleRelationship.SKIPPED ||
-					update.hasExtension(GtfsRealtimeOVapi.ovapiStopTimeUpdate)){
-				if (update.hasArrival()){
-					update.clearArrival();
-				}
-				if (update.hasDeparture()){
-					update.clearDeparture();
-				}
-				updates.add(update); //No data
-				lastDelay = Integer.MIN_VALUE;
-				lastSchedule = update.hasScheduleRelationship() ? StopTimeUpdate.ScheduleRelationship.SCHEDULED :
-					update.getScheduleRelationship();
-				hadStopTimeExtension = update.hasExtension(GtfsRealtimeOVapi.ovapiStopTimeUpdate);
+		for (int i = 0; i < updates.length; i++){
+			StopTimeUpdate update = updates[i];
+			if (update == null){
 				continue;
 			}
-			boolean override = lastSchedule != update.getScheduleRelationship() ||
-					hadStopTimeExtension != update.hasExtension(GtfsRealtimeOVapi.ovapiStopTimeUpdate);
-			if (update.hasArrival()){
-				if ((update.getArrival().getDelay() == lastDelay && !override ) || 
-						(i == 0 && update.getDeparture().getDelay() == update.getArrival().getDelay())){
-					update.clearArrival();
-				}else{
-					lastDelay = update.getArrival().getDelay();
-				}
+			if (!hasTimes(update)){
+				tripUpdate.addStopTimeUpdate(strippedStopTimeUpdate(i)); //No data
+				lastDelay = Integer.MIN_VALUE;
+				continue;
 			}
-			if (update.hasDeparture()){
-				if (update.getDeparture().getDelay() == lastDelay && (i != 0) && !override){
-					//update.clearDeparture();
-				}else{
-					lastDelay = update.getDeparture().getDelay();
+			if (update.getArrival().getDelay() == lastDelay ||
+					(i == 0 && update.getDeparture().getDelay() == update.getArrival().getDelay())){
+				if (i == 0){
+					tripUpdate.addStopTimeUpdate(update == stopTimeUpdates[i] ? strippedStopTimeUpdate(i) : update.toBuilder().clearArrival().build());
 				}
+			}else{
+				tripUpdate.addStopTimeUpdate(update);
 			}
-			if (update.hasArrival() || (update.hasDeparture() && i == 0)){
-				updates.add(update);
-			}
-			lastSchedule = update.hasScheduleRelationship() ? StopTimeUpdate.ScheduleRelationship.SCHEDULED :
-				update.getScheduleRelationship();
-			hadStopTimeExtension = update.hasExtension(GtfsRealtimeOVapi.ovapiStopTimeUpdate);
-		}
-		tripUpdate.clearStopTimeUpdate();
-		for (StopTimeUpdate.Builder update: updates){
-			tripUpdate.addStopTimeUpdate(update);
+			lastDelay = update.getDeparture().getDelay();
 		}
 		return tripUpdate;
 	}
 
+	private static boolean hasTimes(StopTimeUpdate update){
+		return update.getScheduleRelationship() != StopTimeUpdate.ScheduleRelationship.NO_DATA &&
+				update.getScheduleRelationship() != StopTimeUpdate.ScheduleRelationship.SKIPPED;
+	}
+
+	/**
+	 * @return StopTimeUpdate for datedPasstime at index, rebuilt only when its times or status changed.
+	 */
+	private StopTimeUpdate stopTimeUpdate(int index){
+		DatedPasstime dp = datedPasstimes.get(index);
+		int k = index*STOPTIMEUPDATE_KEY_SIZE;
+		if (stopTimeUpdates[index] != null &&
+				stopTimeUpdateKeys[k] == dp.getRecordedArrivalTime() &&
+				stopTimeUpdateKeys[k+1] == dp.getRecordedDepartureTime() &&
+				stopTimeUpdateKeys[k+2] == dp.getExpectedArrivalTime() &&
+				stopTimeUpdateKeys[k+3] == dp.getExpectedDepartureTime() &&
+				stopTimeUpdateKeys[k+4] == dp.getTripStopStatus().ordinal()){
+			return stopTimeUpdates[index];
+		}
+		stopTimeUpdateKeys[k] = dp.getRecordedArrivalTime();
+		stopTimeUpdateKeys[k+1] = dp.getRecordedDepartureTime();
+		stopTimeUpdateKeys[k+2] = dp.getExpectedArrivalTime();
+		stopTimeUpdateKeys[k+3] = dp.getExpectedDepartureTime();
+		stopTimeUpdateKeys[k+4] = dp.getTripStopStatus().ordinal();
+		stopTimeUpdates[index] = buildStopTimeUpdate(dp);
+		strippedStopTimeUpdates[index] = null;
+		return stopTimeUpdates[index];
+	}
+
+	/**
+	 * @return StopTimeUpdate for datedPasstime at index as emitted when its delay does not change.
+	 */
+	private StopTimeUpdate strippedStopTimeUpdate(int index){
+		if (strippedStopTimeUpdates[index] == null){
+			StopTimeUpdate update = stopTimeUpdate(index);
+			StopTimeUpdate.Builder stripped = update.toBuilder().clearArrival();
+			if (!hasTimes(update)){
+				stripped.clearDeparture();
+			}
+			strippedStopTimeUpdates[index] = stripped.build();
+		}
+		return strippedStopTimeUpdates[index];
+	}
 
 	/**
 	 * Materialize journey into DatedPasstime's 
@@ -267,138 +439,165 @@ public class JourneyProcessor {
 	}
 
 	/**
-	 * Clear
-	 *  KV6 posinfo object.
+	 * Index datedPasstimes on userstopcode and passage, so KV6 and KV17 can resolve their stop without scanning the journey.
 	 */
-	@Synchronized("writeLock")
-	public void clearKV6(){
-		posinfo = null;
+	private void indexDatedPasstimes(){
+		passtimeIndex = Maps.newHashMapWithExpectedSize(datedPasstimes.size());
+		for (int i = 0; i < datedPasstimes.size(); i++){
+			DatedPasstime dp = datedPasstimes.get(i);
+			int[] passages = passtimeIndex.get(dp.getUserStopCode());
+			if (passages == null){
+				passages = new int[] {i};
+			}else{
+				passages = Arrays.copyOf(passages, passages.length+1);
+				passages[passages.length-1] = i;
+			}
+			passtimeIndex.put(dp.getUserStopCode(), passages);
+			if (dp.getTargetDepartureTime()-dp.getTargetArrivalTime() > MIN_STOPWAITTIME){
+				lastDwellComfortIndex = i;
+			}
+		}
 	}
 
-
 	/**
-	 * Set tripStatus for all datedPasstimes in journey
-	 * @param tripStatus
+	 * @param userStopCode userstopcode of stop
+	 * @param passageSequence number of times the vehicle passed the stop before in this journey
+	 * @return index of datedPasstime in journey, -1 if the stop does not exist
 	 */
-	private void setTripStatusForJourney(TripStopStatus tripStatus){
-		for (DatedPasstime dp : datedPasstimes){
-			dp.setTripStopStatus(tripStatus);
+	private int indexOf(String userStopCode, int passageSequence){
+		if (userStopCode == null){
+			return -1;
 		}
+		int[] passages = passtimeIndex.get(userStopCode);
+		if (passages == null || passageSequence < 0 || passageSequence >= passages.length){
+			return -1;
+		}
+		return passages[passageSequence];
 	}
 
 	/**
-	 * Set reason fields to all datedPasstimes
-	 * @param reasonType
-	 * @param subReasonType
-	 * @param reasonContent
+	 * @param posinfo KV6posinfo object
+	 * @return index of datedPasstime posinfo is referring to, -1 if posinfo does not refer to a stop in this journey
 	 */
-	private void setReasonForJourney(String reasonType, String subReasonType, String reasonContent){
-		for (DatedPasstime dp : datedPasstimes){
-			dp.setReasonType(reasonType);
-			dp.setSubReasonType(subReasonType);
-			dp.setReasonContent(reasonContent);
-		}
+	private int indexOf(KV6posinfo posinfo){
+		int passageSequence = posinfo.getPassagesequencenumber() == null ? 0 : posinfo.getPassagesequencenumber();
+		return indexOf(posinfo.getUserstopcode(), passageSequence);
 	}
 
 	/**
-	 * Set advice fields to all datedPasstimes
-	 * @param adviceType
-	 * @param subAdviceType
-	 * @param adviceContent
+	 * @return whether expected times of datedPasstime deviate from the target times.
 	 */
-	private void setAdviceForJourney(String adviceType, String subAdviceType, String adviceContent){
-		for (DatedPasstime dp : datedPasstimes){
-			dp.setAdviceType(adviceType);
-			dp.setSubAdviceType(subAdviceType);
-			dp.setAdviceContent(adviceContent);
+	private static boolean hasPrognosis(DatedPasstime dp){
+		return dp.getExpectedArrivalTime() != dp.getTargetArrivalTime() || dp.getExpectedDepartureTime() != dp.getTargetDepartureTime();
+	}
+
+	/**
+	 * Clear
+	 *  KV6 posinfo object.
+	 */
+	@Synchronized("writeLock")
+	public void clearKV6(){
+		posinfo = null;
+		publishSnapshot();
+	}
+
+
+	/**
+	 * @return key identifying what a mutation modifies, a newer mutation with the same key replaces the older one.
+	 */
+	private static String mutationKey(Mutation m){
+		String type = m.getMutationtype() == Mutation.MutationType.SHORTEN ? Mutation.MutationType.CANCEL.name() : m.getMutationtype().name();
+		if (m.getMessagetype() == Mutation.MessageType.KV17MUTATEJOURNEY){
+			return type;
 		}
+		return String.format("%s:%s:%s", m.getUserstopcode(), m.getPassagesequencenumber(), type);
 	}
 
 	/**
-	 * Process KV17MutateJourney mutation
-	 * @param timestamp unix timestamp: milliseconds sinds 1970
+	 * Merge KV17 mutation into the mutations in effect for this journey.
 	 * @param m KV17Mutation message
 	 */
-	private void parseMutateJourney(Long timestamp, Mutation m) {
-		switch (m.getMutationtype()) {
-		case CANCEL:
-			setTripStatusForJourney(TripStopStatus.CANCEL);
-			setReasonForJourney(m.getReasontype(),m.getSubreasontype(),m.getReasoncontent());
-			setAdviceForJourney(m.getAdvicetype(),m.getAdvicetype(),m.getAdvicetype());
-			break;
+	private void storeMutation(Mutation m){
+		switch (m.getMutationtype()){
+		case CHANGEDESTINATION://Not supported by Koppelvlak78
+		case CHANGEPASSTIMES:
+			return;
 		case RECOVER:
-			clearKV17mutations();
-			//Set UNKNOWN if past departure time
-			//Set PLANNED if before
-			setTripStatusForJourney(System.currentTimeMillis() > _journey.getDepartureEpoch() ? 
-					TripStopStatus.UNKNOWN : TripStopStatus.PLANNED);
-			break;
+			if (m.getMessagetype() == Mutation.MessageType.KV17MUTATEJOURNEY){
+				mutations.clear();
+			}else{
+				String stop = String.format("%s:%s:", m.getUserstopcode(), m.getPassagesequencenumber());
+				mutations.remove(stop+Mutation.MutationType.CANCEL.name());
+				mutations.remove(stop+Mutation.MutationType.LAG.name());
+			}
+			return;
+		case CANCEL:
+		case SHORTEN:
+		case LAG:
+		case MUTATIONMESSAGE:
+			if (m.getMessagetype() == Mutation.MessageType.KV17MUTATEJOURNEYSTOP &&
+					indexOf(m.getUserstopcode(), m.getPassagesequencenumber()) < 0){
+				_log.info("Mutation for unknown stop {}",m);
+				return;
+			}
+			if (m.getMessagetype() == Mutation.MessageType.KV17MUTATEJOURNEY && m.getMutationtype() != Mutation.MutationType.CANCEL){
+				return;
+			}
+			mutations.put(mutationKey(m), m);
+			return;
 		default:
-			break;
+			_log.info("Unknown mutationtype {}",m);
 		}
 	}
 
 	/**
-	 * Remove all modifications made by KV17.
+	 * Set status, reason, advice and lag of all datedPasstimes to the state resulting from the mutations in effect.
+	 * Setters of DatedPasstime ignore equal values, so only stops whose state changes are marked as updated.
 	 */
-	private void clearKV17mutations(){
-		for (DatedPasstime dp : datedPasstimes){
-			if (dp.getTripStopStatus() == TripStopStatus.CANCEL){
-				dp.setTripStopStatus(TripStopStatus.PLANNED);
+	private void applyMutations(){
+		int size = datedPasstimes.size();
+		boolean[] canceled = new boolean[size];
+		Mutation[] messages = new Mutation[size];
+		int[] lags = new int[size];
+		Mutation journeyCancel = null;
+		for (Mutation m : mutations.values()){
+			if (m.getMessagetype() == Mutation.MessageType.KV17MUTATEJOURNEY){
+				journeyCancel = m;
+				continue;
+			}
+			int index = indexOf(m.getUserstopcode(), m.getPassagesequencenumber());
+			switch (m.getMutationtype()){
+			case CANCEL:
+			case SHORTEN:
+				canceled[index] = true;
+				break;
+			case LAG:
+				lags[index] = m.getLagtime() == null ? 0 : m.getLagtime();
+				break;
+			case MUTATIONMESSAGE:
+				messages[index] = m;
+				break;
+			default:
+				break;
 			}
-			dp.setAdviceContent(null);
-			dp.setAdviceType(null);
-			dp.setSubAdviceType(null);
-			dp.setReasonContent(null);
-			dp.setReasonType(null);
-			dp.setSubReasonType(null);
-			dp.setMessageContent(null);
-			dp.setMessageType(null);
-			dp.setLag(0);
 		}
-	}
-
-	private void parseMutateJourneyStop(Long timestamp, Mutation m)
-			throws StopNotFoundException {
-
-		int passageSequence = 0; //Counter for how many times we came across the userstopcode in posinfo
-		for (DatedPasstime dp : datedPasstimes){
-			boolean userStopMatches = dp.getUserStopCode().equals(m.getUserstopcode());
-			if (userStopMatches && passageSequence == m.getPassagesequencenumber()){ 
-				switch (m.getMutationtype()) {
-				case MUTATIONMESSAGE:
-					dp.setAdviceType(m.getAdvicetype());
-					dp.setSubAdviceType(m.getSubadvicetype());
-					dp.setAdviceContent(m.getAdvicecontent());
-
-					dp.setReasonType(m.getReasontype());
-					dp.setSubReasonType(m.getSubreasontype());
-					dp.setReasonContent(m.getReasoncontent());
-					break;
-				case CHANGEDESTINATION://Not supported by Koppelvlak78
-					break;
-				case CHANGEPASSTIMES:
-					//TODO
-					break;
-				case LAG:
-					dp.setLag(m.getLagtime());
-					break;
-				case RECOVER:
-					m.setLagtime(0);
-					setTripStatusForJourney(System.currentTimeMillis() > _journey.getDepartureEpoch() ? 
-							TripStopStatus.UNKNOWN : TripStopStatus.PLANNED);
-					break;
-				case CANCEL:
-				case SHORTEN:
-					dp.setTripStopStatus(TripStopStatus.CANCEL);
-					break;
-				default:
-					_log.info("Unknown mutationtype {}",m);
-					break;
-				}
-			}else if (userStopMatches){
-				passageSequence++;
+		TripStopStatus recovered = Utils.currentTimeSecs() > _journey.getDepartureEpoch() ?
+				TripStopStatus.UNKNOWN : TripStopStatus.PLANNED;
+		for (int i = 0; i < size; i++){
+			DatedPasstime dp = datedPasstimes.get(i);
+			if (journeyCancel != null || canceled[i]){
+				dp.setTripStopStatus(TripStopStatus.CANCEL);
+			}else if (dp.getTripStopStatus() == TripStopStatus.CANCEL){
+				dp.setTripStopStatus(recovered);
 			}
+			Mutation message = messages[i] != null ? messages[i] : journeyCancel;
+			dp.setReasonType(message == null ? null : message.getReasontype());
+			dp.setSubReasonType(message == null ? null : message.getSubreasontype());
+			dp.setReasonContent(message == null ? null : message.getReasoncontent());
+			dp.setAdviceType(message == null ? null : message.getAdvicetype());
+			dp.setSubAdviceType(message == null ? null : message.getSubadvicetype());
+			dp.setAdviceContent(message == null ? null : message.getAdvicecontent());
+			dp.setLag(lags[i]);
 		}
 	}
 
@@ -415,125 +614,139 @@ public class JourneyProcessor {
 		VehiclePosition.Builder vehiclePosition = VehiclePosition.newBuilder();
 		vehiclePosition.setTimestamp(posinfo.getTimestamp());
 		int delay = posinfo.getPunctuality() == null ? 0 : posinfo.getPunctuality();
-		int passageSequence = 0; //Counter for how many times we came across the userstopcode in posinfo
-
-		for (int i = 0; i < datedPasstimes.size();i++){
-			DatedPasstime dp = datedPasstimes.get(i);
-			boolean userStopMatches = dp.getUserStopCode().equals(posinfo.getUserstopcode());
-			if (userStopMatches && passageSequence == posinfo.getPassagesequencenumber()){
-				//Find datedpasstime of next scheduled stoppoint
-				DatedPasstime dpNext = null;
-				SCAN_NEXT : for (int j = i+1; j < datedPasstimes.size();j++){
-					if (datedPasstimes.get(j).getJourneyStopType() != JourneyStopType.INFOPOINT){
-						dpNext = datedPasstimes.get(i); // First non Dummy stop
-						break SCAN_NEXT;
-					}
-				}
-				switch (posinfo.getMessagetype()){
-				case ARRIVAL:
-				case ONSTOP:
-				case INIT:
-					vehiclePosition.setCurrentStatus(VehicleStopStatus.STOPPED_AT);
-					vehiclePosition.setCurrentStopSequence(dp.getUserStopOrderNumber());
-					StopPoint sp = ridService.getStopPoint(Long.valueOf(dp.getTimingPointCode()));
-					if (sp != null){
-						Builder position = Position.newBuilder();
-						position.setLatitude(sp.getLatitude());
-						position.setLongitude(sp.getLongitude());
-						vehiclePosition.setPosition(position);
-					}
-					break;
-				case DEPARTURE: //Set location of stop
-					sp = ridService.getStopPoint(Long.valueOf(dp.getTimingPointCode()));
-					if (sp != null){
-						Builder position = Position.newBuilder();
-						position.setLatitude(sp.getLatitude());
-						position.setLongitude(sp.getLongitude());
-						vehiclePosition.setPosition(position);
-					}
-				case OFFROUTE:
-				case ONROUTE:
-					if (dpNext == null){
-						return null;
-					}
-					vehiclePosition.setCurrentStatus(VehicleStopStatus.IN_TRANSIT_TO);
-					vehiclePosition.setStopId(dpNext.getTimingPointCode());
-					vehiclePosition.setCurrentStopSequence(dpNext.getUserStopOrderNumber());
-					break;
-				default:
-					return null;
-				}
-				if (posinfo.getRd_x() != null){
-					Position position = geomService.toWGS84(posinfo.getRd_x(), posinfo.getRd_y());
-					if (position != null)
-						vehiclePosition.setPosition(position);
-				}
-				TripDescriptor.Builder tripDescription = _journey.tripDescriptor();
-				if (posinfo.getReinforcementnumber() > 0){
-					tripDescription.setScheduleRelationship(ScheduleRelationship.ADDED);
-				}
-				vehiclePosition.setTrip(tripDescription);
-				//Set punctuality in OVapi extension
-				if (posinfo.getPunctuality() != null){
-					OVapiVehiclePosition.Builder ovapiVehiclePosition = OVapiVehiclePosition.newBuilder();
-					if (vehiclePosition.hasCurrentStopSequence() && vehiclePosition.getCurrentStopSequence() <= 1 && delay < 0){
-						delay = 0;
-					}
-					ovapiVehiclePosition.setDelay(delay);
-					vehiclePosition.setExtension(GtfsRealtimeOVapi.ovapiVehiclePosition, ovapiVehiclePosition.build());
-				}
-				feedEntity.setVehicle(vehiclePosition);
-				return feedEntity.build();
-			}else if (userStopMatches){
-				passageSequence++;
+		List<DatedPasstime> datedPasstimes = snapshot.getDatedPasstimes();
+		int i = indexOf(posinfo);
+		if (i < 0 || i >= datedPasstimes.size()){
+			return null; //Stop not in this journey
+		}
+		DatedPasstime dp = datedPasstimes.get(i);
+		//Find datedpasstime of next scheduled stoppoint
+		DatedPasstime dpNext = null;
+		SCAN_NEXT : for (int j = i+1; j < datedPasstimes.size();j++){
+			if (datedPasstimes.get(j).getJourneyStopType() != JourneyStopType.INFOPOINT){
+				dpNext = datedPasstimes.get(i); // First non Dummy stop
+				break SCAN_NEXT;
+			}
+		}
+		switch (posinfo.getMessagetype()){
+		case ARRIVAL:
+		case ONSTOP:
+		case INIT:
+			vehiclePosition.setCurrentStatus(VehicleStopStatus.STOPPED_AT);
+			vehiclePosition.setCurrentStopSequence(dp.getUserStopOrderNumber());
+			StopPoint sp = ridService.getStopPoint(Long.valueOf(dp.getTimingPointCode()));
+			if (sp != null){
+				Builder position = Position.newBuilder();
+				position.setLatitude(sp.getLatitude());
+				position.setLongitude(sp.getLongitude());
+				vehiclePosition.setPosition(position);
+			}
+			break;
+		case DEPARTURE: //Set location of stop
+			sp = ridService.getStopPoint(Long.valueOf(dp.getTimingPointCode()));
+			if (sp != null){
+				Builder position = Position.newBuilder();
+				position.setLatitude(sp.getLatitude());
+				position.setLongitude(sp.getLongitude());
+				vehiclePosition.setPosition(position);
+			}
+		case OFFROUTE:
+		case ONROUTE:
+			if (dpNext == null){
+				return null;
+			}
+			vehiclePosition.setCurrentStatus(VehicleStopStatus.IN_TRANSIT_TO);
+			vehiclePosition.setStopId(dpNext.getTimingPointCode());
+			vehiclePosition.setCurrentStopSequence(dpNext.getUserStopOrderNumber());
+			break;
+		default:
+			return null;
+		}
+		if (posinfo.getRd_x() != null){
+			Position position = geomService.toWGS84(posinfo.getRd_x(), posinfo.getRd_y());
+			if (position != null)
+				vehiclePosition.setPosition(position);
+		}
+		TripDescriptor.Builder tripDescription = _journey.tripDescriptor();
+		if (posinfo.getReinforcementnumber() > 0){
+			tripDescription.setScheduleRelationship(ScheduleRelationship.ADDED);
+		}
+		vehiclePosition.setTrip(tripDescription);
+		//Set punctuality in OVapi extension
+		if (posinfo.getPunctuality() != null){
+			OVapiVehiclePosition.Builder ovapiVehiclePosition = OVapiVehiclePosition.newBuilder();
+			if (vehiclePosition.hasCurrentStopSequence() && vehiclePosition.getCurrentStopSequence() <= 1 && delay < 0){
+				delay = 0;
 			}
+			ovapiVehiclePosition.setDelay(delay);
+			vehiclePosition.setExtension(GtfsRealtimeOVapi.ovapiVehiclePosition, ovapiVehiclePosition.build());
 		}
-		return null;
+		feedEntity.setVehicle(vehiclePosition);
+		return feedEntity.build();
 	}
 
+	/**
+	 * Apply KV17 mutations on top of the mutations already in effect for this journey.
+	 * @param cvlinfos KV17cvlinfo's for this journey
+	 * @return Update object with only the stops whose state changed, null when nothing changed
+	 */
 	@Synchronized("writeLock")
 	public Update update(ArrayList<KV17cvlinfo> cvlinfos) throws StopNotFoundException, UnknownKV6PosinfoType, TooEarlyException, TooOldException, ParseException {
-		long timestamp = 0;
 		if (cvlinfos.size() == 0){
 			return null;
 		}
-		mutations.clear();
-
-		//KV17 mutations are not differential, remove possible previous modifications.
-		clearKV17mutations();
-
+		int[] versions = new int[datedPasstimes.size()];
+		TripStopStatus[] statuses = new TripStopStatus[datedPasstimes.size()];
+		for (int i = 0; i < datedPasstimes.size(); i++){
+			versions[i] = datedPasstimes.get(i).getVersion();
+			statuses[i] = datedPasstimes.get(i).getTripStopStatus();
+		}
 		for (KV17cvlinfo cvlinfo : cvlinfos) {
-			SCAN_MUTATIONS: for (Mutation mut : cvlinfo.getMutations()) {
+			for (Mutation mut : cvlinfo.getMutations()) {
 				try {
-					timestamp = Math.max(timestamp, cvlinfo.getTimestamp());
-					switch (mut.getMessagetype()) {
-					case KV17MUTATEJOURNEY:
-						parseMutateJourney(cvlinfo.getTimestamp(), mut);
-						continue SCAN_MUTATIONS;
-					case KV17MUTATEJOURNEYSTOP:
-						parseMutateJourneyStop(cvlinfo.getTimestamp(), mut);
-						continue SCAN_MUTATIONS;
-					}
+					storeMutation(mut);
 				} catch (Exception e) {
 					_log.error("Error applying KV17",e);
 				}
 			}
 		}
+		applyMutations();
+		KV6posinfo posinfo = this.posinfo;
 		int posinfoAge = (posinfo == null) ? Integer.MAX_VALUE : 
 			(int)(Utils.currentTimeSecs()-posinfo.getTimestamp());
-		if (posinfo != null && posinfoAge < POSINFO_MAX_AGE){
-			setPunctuality(posinfo);
-			return update(posinfo,true,true);
-		}else{
-			KV6posinfo posinfo = new KV6posinfo();
+		if (posinfo == null || posinfoAge >= POSINFO_MAX_AGE){
+			posinfo = new KV6posinfo();
 			posinfo.setMessagetype(Type.DELAY); //Fake KV6posinfo to get things moving
 			posinfo.setPunctuality(0);
 			posinfo.setTimestamp(Utils.currentTimeSecs());
 			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
 			posinfo.setOperatingday(format.format(new Date()));
-			setPunctuality(posinfo);
-			return update(posinfo,true,true);
 		}
+		Update update = update(posinfo,false,true); //Repropagates punctuality, taking changed lag into account
+		boolean statusChanged = false;
+		update.changedPasstimes = new ArrayList<>();
+		List<DatedPasstime> published = snapshot.getDatedPasstimes();
+		for (int i = 0; i < datedPasstimes.size(); i++){
+			DatedPasstime dp = datedPasstimes.get(i);
+			if (dp.getVersion() != versions[i]){
+				update.changedPasstimes.add(published.get(i));
+			}
+			if (dp.getTripStopStatus() != statuses[i] && dp.getJourneyStopType() != JourneyStopType.INFOPOINT){
+				statusChanged = true;
+			}
+		}
+		if (statusChanged){
+			if (update.gtfsRealtimeTrip == null){
+				update.gtfsRealtimeTrip = filteredTripUpdate();
+			}
+			if (update.serviceInfo == null){
+				update.serviceInfo = serviceInfoFromKV8();
+			}
+		}
+		if (update.changedPasstimes.size() == 0 && update.gtfsRealtimeTrip == null && update.serviceInfo == null){
+			return null;
+		}
+		return update;
 	}
 
 	/**
@@ -544,7 +757,7 @@ public class JourneyProcessor {
 	 * 
 	 * @param posinfo KV6posinfo object
 	 */
-	private void setRecordedTimes(KV6posinfo posinfo){
+	private void setRecordedTimes(KV6posinfo posinfo,int current){
 		switch (posinfo.getMessagetype()){
 		case ARRIVAL:
 		case DEPARTURE:
@@ -553,32 +766,31 @@ public class JourneyProcessor {
 		default:
 			return;
 		}
+		if (current < 0){
+			return;
+		}
 		int departureTime = datedPasstimes.get(0).getTargetArrivalTime();
 		try{
-			for (DatedPasstime dp : datedPasstimes){
-				if (dp.getUserStopCode().equals(posinfo.getUserstopcode())){
-					long time = _journey.getDepartureEpoch();
-					if (posinfo.getMessagetype() == Type.ARRIVAL){
-						time += dp.getTargetArrivalTime()-departureTime;
-						int delay = (int) (posinfo.getTimestamp()-time);
-						dp.setRecordedArrivalTime(dp.getTargetArrivalTime()+delay);
-					}else if (posinfo.getMessagetype() == Type.DEPARTURE){
-						/*if the current stop is a timingpoint, filter out significant negative punctualities
-						  This is done to filter false departure signals, where a vehicle falsely claims to have departed.
-						 */
-						time += dp.getTargetDepartureTime()-departureTime;
-						int delay = (int) (posinfo.getTimestamp()-time);
-						if (dp.isTimingStop() || dp.getJourneyStopType() == JourneyStopType.FIRST){
-							if (delay < MIN_PROGNOSIS_FROM_TIMINGPOINT){
-								break;//Ignore trigger
-							}
-						}else if (delay < MIN_PUNCTUALITY){
-							break;//Ignore trigger
-						}else{
-							dp.setRecordedDepartureTime(dp.getTargetDepartureTime()+delay);
-						}
+			DatedPasstime dp = datedPasstimes.get(current);
+			long time = _journey.getDepartureEpoch();
+			if (posinfo.getMessagetype() == Type.ARRIVAL){
+				time += dp.getTargetArrivalTime()-departureTime;
+				int delay = (int) (posinfo.getTimestamp()-time);
+				dp.setRecordedArrivalTime(dp.getTargetArrivalTime()+delay);
+			}else if (posinfo.getMessagetype() == Type.DEPARTURE){
+				/*if the current stop is a timingpoint, filter out significant negative punctualities
+				  This is done to filter false departure signals, where a vehicle falsely claims to have departed.
+				 */
+				time += dp.getTargetDepartureTime()-departureTime;
+				int delay = (int) (posinfo.getTimestamp()-time);
+				if (dp.isTimingStop() || dp.getJourneyStopType() == JourneyStopType.FIRST){
+					if (delay < MIN_PROGNOSIS_FROM_TIMINGPOINT){
+						return;//Ignore trigger
 					}
-					break;
+				}else if (delay < MIN_PUNCTUALITY){
+					return;//Ignore trigger
+				}else{
+					dp.setRecordedDepartureTime(dp.getTargetDepartureTime()+delay);
 				}
 			}
 		}catch (Exception e){ //Exceptions are relatively impossible
@@ -642,43 +854,35 @@ public class JourneyProcessor {
 	/**
 	 * Set TripStopStatus for each DatedPasstime.
 	 * @param posinfo KV6posinfo object
+	 * @param current index of datedPasstime posinfo is referring to
 	 */
-	private void setTripStatus(KV6posinfo posinfo){
-		//beforeCurrent: we're scanning prior to the current stop in Posinfo
-		//Delay messages are always "before the current stop"
-		boolean beforeCurrent = posinfo.getMessagetype() != Type.DELAY; 
-
-		int passageSequence = 0; //Counter for how many times we came across the userstopcode in posinfo
-
-		for (DatedPasstime dp : datedPasstimes){
-			boolean userStopMatches = dp.getUserStopCode().equals(posinfo.getUserstopcode());
-			if (userStopMatches && passageSequence == posinfo.getPassagesequencenumber()){ 
+	private void setTripStatus(KV6posinfo posinfo,int current){
+		//Delay messages are always "before the current stop", a posinfo for a stop not in the journey puts all stops behind the vehicle
+		boolean delay = posinfo.getMessagetype() == Type.DELAY;
+		for (int i = 0; i < datedPasstimes.size(); i++){
+			DatedPasstime dp = datedPasstimes.get(i);
+			if (dp.getTripStopStatus() == TripStopStatus.CANCEL){
+				continue;
+			}
+			if (i == current){
 				switch (posinfo.getMessagetype()){
 				case DEPARTURE: //Vehicle departed from this stop
 				case ONROUTE: //Vehicle is driving away from this stop
 				case OFFROUTE: //Vehicle is driving away from this stop, but off planned route
-					if (dp.getTripStopStatus() != TripStopStatus.CANCEL)
-						dp.setTripStopStatus(TripStopStatus.PASSED);
+					dp.setTripStopStatus(TripStopStatus.PASSED);
 					break;
 
 				case ARRIVAL: //Vehicle arrived at this stop
 				case ONSTOP: //Vehicle is halted at this stop
-					if (dp.getTripStopStatus() != TripStopStatus.CANCEL)
-						dp.setTripStopStatus(TripStopStatus.ARRIVED);
+					dp.setTripStopStatus(TripStopStatus.ARRIVED);
 					break;
 				default: //Shouldn't happen as all other messageType's do not contain userstopcode
 					break;
 				}
-				beforeCurrent = false;
-			}else if (beforeCurrent){
-				if (userStopMatches){
-					passageSequence++; //We're on a stop with the same userstopcode, but the KV6posinfo is referring to the same stop on a later passage 
-				}
-				if (dp.getTripStopStatus() != TripStopStatus.CANCEL)
-					dp.setTripStopStatus(TripStopStatus.PASSED);
+			}else if (!delay && (current < 0 || i < current)){
+				dp.setTripStopStatus(TripStopStatus.PASSED);
 			}else{//Now we're scanning stops not yet visited
-				if (dp.getTripStopStatus() != TripStopStatus.CANCEL)
-					dp.setTripStopStatus(TripStopStatus.DRIVING);
+				dp.setTripStopStatus(TripStopStatus.DRIVING);
 			}
 		}
 	}
@@ -686,7 +890,9 @@ public class JourneyProcessor {
 	@Synchronized("writeLock")
 	public Update setAsUnknown(){
 		Update update = new Update();
-		for (DatedPasstime dp : datedPasstimes){
+		List<Integer> changed = new ArrayList<Integer>();
+		for (int i = 0; i < datedPasstimes.size(); i++){
+			DatedPasstime dp = datedPasstimes.get(i);
 			switch (dp.getTripStopStatus()){
 			case ARRIVED:
 			case CANCEL:
@@ -697,13 +903,16 @@ public class JourneyProcessor {
 			case DRIVING:
 			case PLANNED:
 				dp.setTripStopStatus(TripStopStatus.UNKNOWN);
-				if (update.changedPasstimes == null)
-					update.changedPasstimes = new ArrayList<DatedPasstime>();
-
-				update.changedPasstimes.add(dp);
-				if (update.gtfsRealtimeTrip == null)
-					update.gtfsRealtimeTrip = filter(tripUpdateFromKV8());
+				changed.add(i);
+			}
+		}
+		if (changed.size() > 0){
+			publishSnapshot();
+			update.changedPasstimes = new ArrayList<DatedPasstime>(changed.size());
+			for (int i : changed){
+				update.changedPasstimes.add(snapshot.getDatedPasstimes().get(i));
 			}
+			update.gtfsRealtimeTrip = filteredTripUpdate();
 		}
 		return update;
 	}
@@ -714,6 +923,17 @@ public class JourneyProcessor {
 	 */
 
 	public void setPunctuality(KV6posinfo posinfo){
+		setPunctuality(posinfo,indexOf(posinfo));
+	}
+
+	/**
+	 * Set estimated times using the punctuality in posinfo for stop and make prognoses for subsequent stops.
+	 * Only the stops from the current stop onwards are visited, propagation stops once the prognosis has decayed
+	 * and all following stops are already on schedule.
+	 * @param posinfo KV6posinfo object
+	 * @param current index of datedPasstime posinfo is referring to
+	 */
+	private void setPunctuality(KV6posinfo posinfo,int current){
 		switch (posinfo.getMessagetype()){
 		case INIT: //No punctuality information
 		case END://No punctuality information
@@ -730,87 +950,110 @@ public class JourneyProcessor {
 		case ONSTOP:
 			break;
 		}
-		// We first need to scan all the stops in the journey, to set prognoses
-		// Unless it's a KV6 delay message
-		Integer prognosis = posinfo.getMessagetype() == Type.DELAY ? posinfo.getPunctuality() : null;
+		int prognosis;
 
 		//Time since start journey, at the pointsince start journey, at which the punctuality starts for with the punctuality is estimated in KV6
 		//Used to decay KV6 punctuality using simple time decay.
 		int timeAtCurrentKV6Stop = 0;
 
-		int passageSequence = 0; //Counter for how many times we came across the userstopcode in posinfo
-		for (int i = 0; i < datedPasstimes.size();i++){
-			DatedPasstime dp = datedPasstimes.get(i);
-			//next datedPasstime, null on last stop.
-			DatedPasstime dpNext = (i != datedPasstimes.size()-1) ? datedPasstimes.get(i+1) : null;
-
-			boolean userStopMatches = dp.getUserStopCode().equals(posinfo.getUserstopcode());
-			if (userStopMatches && passageSequence == posinfo.getPassagesequencenumber()){ 
-				prognosis = posinfo.getPunctuality(); //Set initial prognosis for following stops
-				//Punctuality in departure message indicates difference between target and expected departure at stop
-				if (posinfo.getMessagetype() == Type.DEPARTURE && prognosis >= MIN_PUNCTUALITY && (!dp.isTimingStop() || prognosis > MIN_PROGNOSIS_FROM_TIMINGPOINT)){
-					dp.setExpectedDepartureTime(dp.getTargetDepartureTime()+prognosis);
-				}
+		//First datedPasstime we're (possibly) modifying
+		int first;
+		//First datedPasstime we propagate the prognosis to
+		int start;
+		//Last datedPasstime that has a prognosis after this run
+		int lastPrognosis = -1;
+
+		if (posinfo.getMessagetype() == Type.DELAY){
+			// KV6 delay message, prognosis for all stops in the journey
+			prognosis = posinfo.getPunctuality();
+			first = 0;
+			start = 0;
+		}else if (current < 0){
+			return; //Stop not in journey, no prognosis can be made
+		}else{
+			DatedPasstime dp = datedPasstimes.get(current);
+			prognosis = posinfo.getPunctuality(); //Set initial prognosis for following stops
+			//Punctuality in departure message indicates difference between target and expected departure at stop
+			if (posinfo.getMessagetype() == Type.DEPARTURE && prognosis >= MIN_PUNCTUALITY && (!dp.isTimingStop() || prognosis > MIN_PROGNOSIS_FROM_TIMINGPOINT)){
+				dp.setExpectedDepartureTime(dp.getTargetDepartureTime()+prognosis);
+			}
 
-				//set time to possibly use in simple timedecay 
-				timeAtCurrentKV6Stop = dp.getTargetArrivalTime();
+			//set time to possibly use in simple timedecay 
+			timeAtCurrentKV6Stop = dp.getTargetArrivalTime();
 
-				/*if the current stop is a timingpoint, filter out significant negative punctualities
-				  This is done to filter false departure signals, where a vehicle falsely claims to have departed.
-				 */
-				if (dp.isTimingStop() || dp.getJourneyStopType() == JourneyStopType.FIRST){
-					if (prognosis < MIN_PROGNOSIS_FROM_TIMINGPOINT){
-						prognosis = 0;
-					}
-				}else if (prognosis < MIN_PUNCTUALITY){
-					//Set prognosis to 0 if vehicle has a too large punctuality.
+			/*if the current stop is a timingpoint, filter out significant negative punctualities
+			  This is done to filter false departure signals, where a vehicle falsely claims to have departed.
+			 */
+			if (dp.isTimingStop() || dp.getJourneyStopType() == JourneyStopType.FIRST){
+				if (prognosis < MIN_PROGNOSIS_FROM_TIMINGPOINT){
 					prognosis = 0;
 				}
-			}else if (prognosis == null && userStopMatches){
-				passageSequence++; //We're on a stop with the same userstopcode, but the KV6posinfo is referring to the same stop on a later passage 
-			}else if (prognosis != null){//Now we're scanning stops not yet visited and have a prognosis
-				if (Math.abs(prognosis) < PUNCTUALITY_FLOOR){
-					prognosis = 0; //Punctuality is thus low, it's no longer significant enough to propagate  
-				}
-				dp.setExpectedArrivalTime(dp.getTargetArrivalTime()+prognosis);
-				int stopWaitTime = dp.getTargetDepartureTime()-dp.getTargetArrivalTime();
-				if (dp.isTimingStop() && prognosis < 0){
-					prognosis = 0; //This is a timingstop, vehicles are not expected to depart early.
-				}else if (stopWaitTime > MIN_STOPWAITTIME){
-					//Dwell-time cq stopwaittime is larger than the minimum set, use comfort zone to reduce delay
-					int dwellComfort = stopWaitTime-MIN_STOPWAITTIME;
-					prognosis -= dwellComfort;		
-				}
+			}else if (prognosis < MIN_PUNCTUALITY){
+				//Set prognosis to 0 if vehicle has a too large punctuality.
+				prognosis = 0;
+			}
+			if (hasPrognosis(dp)){
+				lastPrognosis = current;
+			}
+			first = current;
+			start = current+1;
+		}
 
-				if (dp.getLag() != null && dp.getLag() >= 0){
-					//Lag mutation via KV17, delay is at minimum the lag time
-					prognosis = Math.min(prognosis, dp.getLag());
-				}
+		//Now we're scanning stops not yet visited and have a prognosis
+		for (int i = start; i < datedPasstimes.size();i++){
+			DatedPasstime dp = datedPasstimes.get(i);
+			//next datedPasstime, null on last stop.
+			DatedPasstime dpNext = (i != datedPasstimes.size()-1) ? datedPasstimes.get(i+1) : null;
 
-				dp.setExpectedDepartureTime(dp.getTargetDepartureTime()+prognosis);
-				if (Math.abs(prognosis) > PUNCTUALITY_FLOOR && dpNext != null){
-					if (prognosis < 0){ 
-						//Negative punctuality
-						int driveTime = dpNext.getTargetArrivalTime()-dp.getTargetDepartureTime();
-						int theoreticalMinDriveTime = theoreticalMinDriveTime(dpNext.getDistanceDriven()-dp.getDistanceDriven());
-						if (driveTime < theoreticalMinDriveTime){
-							// Use too fast legs to reduce negative punctuality.
-							prognosis = decayByDistance(prognosis,
-									dpNext.getTargetArrivalTime()-dp.getTargetDepartureTime(),
-									dpNext.getDistanceDriven()-dp.getDistanceDriven());
-						}else{
-							// Use simple time decaying to decay the delay
-							prognosis = decayByTime(prognosis,dpNext.getTargetArrivalTime()-timeAtCurrentKV6Stop);
-						}
-					}else if (prognosis > 0){
-						//Positive punctuality, decay using delta between theoretical and planned drivetime
-						int distance = dpNext.getDistanceDriven()-dp.getDistanceDriven();
+			if (Math.abs(prognosis) < PUNCTUALITY_FLOOR){
+				prognosis = 0; //Punctuality is thus low, it's no longer significant enough to propagate  
+			}
+			if (prognosis == 0 && i >= prognosisTail && i > lastDwellComfortIndex){
+				break; //Prognosis has decayed and the remaining stops are already on schedule
+			}
+			dp.setExpectedArrivalTime(dp.getTargetArrivalTime()+prognosis);
+			int stopWaitTime = dp.getTargetDepartureTime()-dp.getTargetArrivalTime();
+			if (dp.isTimingStop() && prognosis < 0){
+				prognosis = 0; //This is a timingstop, vehicles are not expected to depart early.
+			}else if (stopWaitTime > MIN_STOPWAITTIME){
+				//Dwell-time cq stopwaittime is larger than the minimum set, use comfort zone to reduce delay
+				int dwellComfort = stopWaitTime-MIN_STOPWAITTIME;
+				prognosis -= dwellComfort;		
+			}
+
+			if (dp.getLag() != null && dp.getLag() >= 0){
+				//Lag mutation via KV17, delay is at minimum the lag time
+				prognosis = Math.min(prognosis, dp.getLag());
+			}
+
+			dp.setExpectedDepartureTime(dp.getTargetDepartureTime()+prognosis);
+			if (hasPrognosis(dp)){
+				lastPrognosis = i;
+			}
+			if (Math.abs(prognosis) > PUNCTUALITY_FLOOR && dpNext != null){
+				if (prognosis < 0){ 
+					//Negative punctuality
+					int driveTime = dpNext.getTargetArrivalTime()-dp.getTargetDepartureTime();
+					int theoreticalMinDriveTime = theoreticalMinDriveTime(dpNext.getDistanceDriven()-dp.getDistanceDriven());
+					if (driveTime < theoreticalMinDriveTime){
+						// Use too fast legs to reduce negative punctuality.
 						prognosis = decayByDistance(prognosis,
-								dpNext.getTargetArrivalTime()-dp.getTargetDepartureTime(),distance);
+								dpNext.getTargetArrivalTime()-dp.getTargetDepartureTime(),
+								dpNext.getDistanceDriven()-dp.getDistanceDriven());
+					}else{
+						// Use simple time decaying to decay the delay
+						prognosis = decayByTime(prognosis,dpNext.getTargetArrivalTime()-timeAtCurrentKV6Stop);
 					}
+				}else if (prognosis > 0){
+					//Positive punctuality, decay using delta between theoretical and planned drivetime
+					int distance = dpNext.getDistanceDriven()-dp.getDistanceDriven();
+					prognosis = decayByDistance(prognosis,
+							dpNext.getTargetArrivalTime()-dp.getTargetDepartureTime(),distance);
 				}
 			}
 		}
+		//Stops before the first visited stop are untouched, so they are still bounded by the previous tail.
+		prognosisTail = Math.max(Math.min(prognosisTail, first), lastPrognosis+1);
 	}
 
 	/**
@@ -867,69 +1110,79 @@ public class JourneyProcessor {
 		return decayeddelay;
 	}
 
+	/**
+	 * @return TripDescriptor of this journey, with CANCELED schedulerelationship when all stops are canceled.
+	 */
+	private TripDescriptor tripDescriptor(){
+		if (isJourneyCanceled()){
+			return _journey.tripDescriptor().setScheduleRelationship(ScheduleRelationship.CANCELED).build();
+		}
+		return _journey.getTripDescriptor();
+	}
+
 	/**
 	 * @return
 	 * @throws ParseException
 	 */
 	public TripUpdate.Builder tripUpdateFromKV8(){
 		TripUpdate.Builder trip = TripUpdate.newBuilder();
-		TripDescriptor.Builder tripDesc = _journey.tripDescriptor();
-		if (isJourneyCanceled())
-			tripDesc.setScheduleRelationship(ScheduleRelationship.CANCELED);
-		trip.setTrip(tripDesc);
-		long departureTime = _journey.getDepartureEpoch()-datedPasstimes.get(0).getTargetDepartureTime();
-		for (DatedPasstime dp : datedPasstimes){
-			if (dp.getJourneyStopType() == JourneyStopType.INFOPOINT){
+		trip.setTrip(tripDescriptor());
+		for (int i = 0; i < datedPasstimes.size(); i++){
+			if (datedPasstimes.get(i).getJourneyStopType() == JourneyStopType.INFOPOINT){
 				continue;
 			}
-			StopTimeUpdate.Builder stop = StopTimeUpdate.newBuilder();
-			stop.setStopSequence(dp.getUserStopOrderNumber());
-			stop.setStopId(dp.getTimingPointCode());
-			switch (dp.getTripStopStatus()){
-			case CANCEL:
-				stop.setScheduleRelationship(StopTimeUpdate.ScheduleRelationship.SKIPPED);
-				break;
-			case DRIVING:
-			case ARRIVED:
-				stop.setScheduleRelationship(StopTimeUpdate.ScheduleRelationship.SCHEDULED);
-				break;
-			case OFFROUTE:
-			case UNKNOWN:
-				stop.setScheduleRelationship(StopTimeUpdate.ScheduleRelationship.NO_DATA);
-				break;
-			case PASSED:
-			case PLANNED:
-				break;
-			}
-			StopTimeEvent.Builder arrival = StopTimeEvent.newBuilder();
-			if (dp.getRecordedArrivalTime() >= 0){
-				arrival.setTime(departureTime+dp.getRecordedArrivalTime());
-				arrival.setDelay((dp.getRecordedArrivalTime()-dp.getTargetArrivalTime()));
-			}else if (dp.getRecordedDepartureTime() > 0 && dp.getTargetArrivalTime() == dp.getTargetDepartureTime()){
-				arrival.setDelay((dp.getRecordedDepartureTime()-dp.getTargetDepartureTime()));
-				arrival.setTime(departureTime+dp.getRecordedDepartureTime());
-			}else{
-				arrival.setTime(departureTime+dp.getExpectedArrivalTime());
-				arrival.setDelay((dp.getExpectedArrivalTime()-dp.getTargetArrivalTime()));
-			}
-			stop.setArrival(arrival);
-			StopTimeEvent.Builder departure = StopTimeEvent.newBuilder();
-			if (dp.getRecordedDepartureTime() >= 0){
-				departure.setDelay((dp.getRecordedDepartureTime()-dp.getTargetDepartureTime()));
-				departure.setTime(departureTime+dp.getRecordedDepartureTime());
-			}else if (dp.getRecordedArrivalTime() >= 0 && dp.getTargetArrivalTime() == dp.getTargetDepartureTime() && dp.getRecordedArrivalTime() >= dp.getTargetDepartureTime()){
-				departure.setDelay((dp.getRecordedArrivalTime()-dp.getTargetDepartureTime()));
-				departure.setTime(departureTime+dp.getRecordedArrivalTime());
-			}else{
-				departure.setDelay((dp.getExpectedDepartureTime()-dp.getTargetDepartureTime()));
-				departure.setTime(departureTime+dp.getExpectedDepartureTime());
-			}
-			stop.setDeparture(departure);
-			trip.addStopTimeUpdate(stop);
+			trip.addStopTimeUpdate(stopTimeUpdate(i));
 		}
 		return trip;
 	}
 
+	private StopTimeUpdate buildStopTimeUpdate(DatedPasstime dp){
+		StopTimeUpdate.Builder stop = StopTimeUpdate.newBuilder();
+		stop.setStopSequence(dp.getUserStopOrderNumber());
+		stop.setStopId(dp.getTimingPointCode());
+		switch (dp.getTripStopStatus()){
+		case CANCEL:
+			stop.setScheduleRelationship(StopTimeUpdate.ScheduleRelationship.SKIPPED);
+			break;
+		case DRIVING:
+		case ARRIVED:
+			stop.setScheduleRelationship(StopTimeUpdate.ScheduleRelationship.SCHEDULED);
+			break;
+		case OFFROUTE:
+		case UNKNOWN:
+			stop.setScheduleRelationship(StopTimeUpdate.ScheduleRelationship.NO_DATA);
+			break;
+		case PASSED:
+		case PLANNED:
+			break;
+		}
+		StopTimeEvent.Builder arrival = StopTimeEvent.newBuilder();
+		if (dp.getRecordedArrivalTime() >= 0){
+			arrival.setTime(serviceDayEpoch+dp.getRecordedArrivalTime());
+			arrival.setDelay((dp.getRecordedArrivalTime()-dp.getTargetArrivalTime()));
+		}else if (dp.getRecordedDepartureTime() > 0 && dp.getTargetArrivalTime() == dp.getTargetDepartureTime()){
+			arrival.setDelay((dp.getRecordedDepartureTime()-dp.getTargetDepartureTime()));
+			arrival.setTime(serviceDayEpoch+dp.getRecordedDepartureTime());
+		}else{
+			arrival.setTime(serviceDayEpoch+dp.getExpectedArrivalTime());
+			arrival.setDelay((dp.getExpectedArrivalTime()-dp.getTargetArrivalTime()));
+		}
+		stop.setArrival(arrival);
+		StopTimeEvent.Builder departure = StopTimeEvent.newBuilder();
+		if (dp.getRecordedDepartureTime() >= 0){
+			departure.setDelay((dp.getRecordedDepartureTime()-dp.getTargetDepartureTime()));
+			departure.setTime(serviceDayEpoch+dp.getRecordedDepartureTime());
+		}else if (dp.getRecordedArrivalTime() >= 0 && dp.getTargetArrivalTime() == dp.getTargetDepartureTime() && dp.getRecordedArrivalTime() >= dp.getTargetDepartureTime()){
+			departure.setDelay((dp.getRecordedArrivalTime()-dp.getTargetDepartureTime()));
+			departure.setTime(serviceDayEpoch+dp.getRecordedArrivalTime());
+		}else{
+			departure.setDelay((dp.getExpectedDepartureTime()-dp.getTargetDepartureTime()));
+			departure.setTime(serviceDayEpoch+dp.getExpectedDepartureTime());
+		}
+		stop.setDeparture(departure);
+		return stop.build();
+	}
+
 	public static class Update{
 		@Getter private TripUpdate.Builder gtfsRealtimeTrip;
 		@Getter private List<DatedPasstime> changedPasstimes;
@@ -937,81 +1190,105 @@ public class JourneyProcessor {
 	}
 
 	private ServiceInfoServiceType serviceInfoFromKV8(){
-		try {
-			ServiceInfoServiceType serviceInfo = new ServiceInfoServiceType();
-			serviceInfo.setCompanyCode(_journey.getAgencyId());
-			serviceInfo.setTransportModeCode(_journey.getRouteId()+"");
-			serviceInfo.setServiceCode(_journey.getPrivateCode());
-			serviceInfo.setStopList(new StopList());
-			serviceInfo.setServiceType(ServiceInfoKind.NORMAL_SERVICE);
-			long dayEpoch = _journey.getDepartureEpoch()-datedPasstimes.get(0).getTargetArrivalTime();
-			for (DatedPasstime dp : datedPasstimes){
-				if (dp.getJourneyStopType() == JourneyStopType.INFOPOINT){
-					continue; // Skip dummies
-				}
-				ServiceInfoStopType stop = new ServiceInfoStopType();
-				stop.setStopCode(String.format("%s:%s",dp.getDataOwnerCode().name(),dp.getUserStopCode()));
-				stop.setStopServiceCode(_journey.getPrivateCode());
-				if (dp.getTripStopStatus() == TripStopStatus.CANCEL){
-					serviceInfo.setServiceType(ServiceInfoKind.CANCELLED_SERVICE);
-					stop.setStopType(ServiceInfoStopKind.CANCELLED_STOP);
-				}
-				if (dp.isForAlighting() && dp.getJourneyStopType() != JourneyStopType.FIRST){
-					stop.setArrivalPlatform(dp.getSideCode());
-					DateTime arrivalDt = _journey.getArrivalDateTime(dp.getUserStopOrderNumber());
-					if (arrivalDt != null) {
-						if (arrivalDt.getSecondOfMinute() >= 30) {
-							arrivalDt.plusMinutes(1);
-						}
-						arrivalDt = arrivalDt.withSecondOfMinute(0);
-
-						int delay = 0; // in Seconds
-						if (dp.getRecordedArrivalTime() > 0 && (dp.getRecordedDepartureTime() > 0 || dp.getRecordedDepartureTime() <= dp.getRecordedArrivalTime())) {
-							//No recorded arrivaltime and either no or >= recorded departuretime
-							delay = dp.getRecordedArrivalTime() - dp.getTargetArrivalTime();
-						} else if (dp.getRecordedArrivalTime() > 0 && dp.getTargetArrivalTime() == dp.getTargetDepartureTime()) {
-							//No recorded arrivaltime fall back to recorded departure time if possible
-							delay = dp.getRecordedDepartureTime() - dp.getTargetArrivalTime();
-						} else {
-							delay = dp.getExpectedArrivalTime() - dp.getTargetArrivalTime();
-						}
-						int delayMin = roundSecondsToMinute(delay);
-						if (delayMin != 0)
-							stop.setArrivalTimeDelay(DatatypeFactory.newInstance().newDuration(delayMin * 60 * 1000));
-						stop.setArrival(arrivalDt);
+		if (DATATYPE_FACTORY == null){
+			return null;
+		}
+		if (arnuStopCodes == null){
+			materializeArnuStops();
+		}
+		ServiceInfoServiceType serviceInfo = new ServiceInfoServiceType();
+		serviceInfo.setCompanyCode(_journey.getAgencyId());
+		serviceInfo.setTransportModeCode(_journey.getRouteId()+"");
+		serviceInfo.setServiceCode(_journey.getPrivateCode());
+		serviceInfo.setStopList(new StopList());
+		serviceInfo.setServiceType(ServiceInfoKind.NORMAL_SERVICE);
+		for (int i = 0; i < datedPasstimes.size(); i++){
+			DatedPasstime dp = datedPasstimes.get(i);
+			if (dp.getJourneyStopType() == JourneyStopType.INFOPOINT){
+				continue; // Skip dummies
+			}
+			ServiceInfoStopType stop = new ServiceInfoStopType();
+			stop.setStopCode(arnuStopCodes[i]);
+			stop.setStopServiceCode(_journey.getPrivateCode());
+			if (dp.getTripStopStatus() == TripStopStatus.CANCEL){
+				serviceInfo.setServiceType(ServiceInfoKind.CANCELLED_SERVICE);
+				stop.setStopType(ServiceInfoStopKind.CANCELLED_STOP);
+			}
+			if (dp.isForAlighting() && dp.getJourneyStopType() != JourneyStopType.FIRST){
+				stop.setArrivalPlatform(dp.getSideCode());
+				DateTime arrivalDt = arnuArrivalTimes[i];
+				if (arrivalDt != null) {
+					int delay = 0; // in Seconds
+					if (dp.getRecordedArrivalTime() > 0 && (dp.getRecordedDepartureTime() > 0 || dp.getRecordedDepartureTime() <= dp.getRecordedArrivalTime())) {
+						//No recorded arrivaltime and either no or >= recorded departuretime
+						delay = dp.getRecordedArrivalTime() - dp.getTargetArrivalTime();
+					} else if (dp.getRecordedArrivalTime() > 0 && dp.getTargetArrivalTime() == dp.getTargetDepartureTime()) {
+						//No recorded arrivaltime fall back to recorded departure time if possible
+						delay = dp.getRecordedDepartureTime() - dp.getTargetArrivalTime();
+					} else {
+						delay = dp.getExpectedArrivalTime() - dp.getTargetArrivalTime();
 					}
+					int delayMin = roundSecondsToMinute(delay);
+					if (delayMin != 0)
+						stop.setArrivalTimeDelay(minuteDelay(delayMin));
+					stop.setArrival(arrivalDt);
 				}
-				if (dp.isForBoarding() && dp.getJourneyStopType() != JourneyStopType.LAST){
-					stop.setDeparturePlatform(dp.getSideCode());
-
-					DateTime departureDt = _journey.getDepartureDateTime(dp.getUserStopOrderNumber());
-					if (departureDt != null) {
-
-						if (departureDt.getSecondOfMinute() >= 30) {
-							departureDt.plusMinutes(1);
-						}
-						departureDt = departureDt.withSecondOfMinute(0);
-
-						int delay = 0; // in Seconds
-						if (dp.getRecordedDepartureTime() > 0) {
-							delay = dp.getRecordedDepartureTime() - dp.getTargetArrivalTime();
-						} else if (dp.getRecordedArrivalTime() > 0 && dp.getTargetArrivalTime() == dp.getTargetDepartureTime()) {
-							delay = dp.getRecordedArrivalTime() - dp.getTargetArrivalTime();
-						} else {
-							delay = dp.getExpectedDepartureTime() - dp.getTargetArrivalTime();
-						}
-						int delayMin = roundSecondsToMinute(delay);
-						if (delayMin != 0)
-							stop.setDepartureTimeDelay(DatatypeFactory.newInstance().newDuration(delayMin * 60 * 1000));
-						stop.setDeparture(departureDt);
+			}
+			if (dp.isForBoarding() && dp.getJourneyStopType() != JourneyStopType.LAST){
+				stop.setDeparturePlatform(dp.getSideCode());
+				DateTime departureDt = arnuDepartureTimes[i];
+				if (departureDt != null) {
+					int delay = 0; // in Seconds
+					if (dp.getRecordedDepartureTime() > 0) {
+						delay = dp.getRecordedDepartureTime() - dp.getTargetArrivalTime();
+					} else if (dp.getRecordedArrivalTime() > 0 && dp.getTargetArrivalTime() == dp.getTargetDepartureTime()) {
+						delay = dp.getRecordedArrivalTime() - dp.getTargetArrivalTime();
+					} else {
+						delay = dp.getExpectedDepartureTime() - dp.getTargetArrivalTime();
 					}
+					int delayMin = roundSecondsToMinute(delay);
+					if (delayMin != 0)
+						stop.setDepartureTimeDelay(minuteDelay(delayMin));
+					stop.setDeparture(departureDt);
 				}
-				serviceInfo.getStopList().getStop().add(stop);
 			}
-			return serviceInfo;
-		} catch (DatatypeConfigurationException e) {
-			return null;
+			serviceInfo.getStopList().getStop().add(stop);
+		}
+		return serviceInfo;
+	}
+
+	/**
+	 * Materialize the static parts of the ARNU stops: stopcodes and scheduled times truncated to the minute.
+	 * Seconds are truncated, not rounded, as ARNU consumers have always received them this way.
+	 */
+	private void materializeArnuStops(){
+		String[] stopCodes = new String[datedPasstimes.size()];
+		arnuArrivalTimes = new DateTime[datedPasstimes.size()];
+		arnuDepartureTimes = new DateTime[datedPasstimes.size()];
+		for (int i = 0; i < datedPasstimes.size(); i++){
+			DatedPasstime dp = datedPasstimes.get(i);
+			stopCodes[i] = String.format("%s:%s",dp.getDataOwnerCode().name(),dp.getUserStopCode());
+			DateTime arrivalDt = _journey.getArrivalDateTime(dp.getUserStopOrderNumber());
+			if (arrivalDt != null){
+				arnuArrivalTimes[i] = arrivalDt.withSecondOfMinute(0);
+			}
+			DateTime departureDt = _journey.getDepartureDateTime(dp.getUserStopOrderNumber());
+			if (departureDt != null){
+				arnuDepartureTimes[i] = departureDt.withSecondOfMinute(0);
+			}
+		}
+		arnuStopCodes = stopCodes;
+	}
+
+	/**
+	 * @param minutes delay in minutes
+	 * @return Duration of delay, shared for common delays
+	 */
+	private static Duration minuteDelay(int minutes){
+		if (minutes >= MIN_CACHED_DELAY && minutes <= MAX_CACHED_DELAY){
+			return DELAYS[minutes-MIN_CACHED_DELAY];
 		}
+		return DATATYPE_FACTORY.newDuration(minutes * 60 * 1000);
 	}
 
 	/**
@@ -1096,36 +1373,39 @@ public class JourneyProcessor {
 				&& !_journey.getJourneypattern().contains(posinfo.getUserstopcode())) {
 			throw new StopNotFoundException(posinfo.toString());
 		}
-		setRecordedTimes(posinfo);
+		int current = indexOf(posinfo);
+		setRecordedTimes(posinfo,current);
 		if (this.posinfo == null || posinfo.getTimestamp() >= this.posinfo.getTimestamp()){  //This condition makes sure we're not overriding good information with out-of-sequence/old position info's
 			if (posinfo.getMessagetype() == Type.INIT)
 				initTrip(posinfo);
-			setTripStatus(posinfo);
-			setPunctuality(posinfo);
+			setTripStatus(posinfo,current);
+			setPunctuality(posinfo,current);
 			if (posinfo.getDataownercode() != null){
 				this.posinfo = posinfo;
 			}
 		}
+		publishSnapshot();
+		List<DatedPasstime> published = snapshot.getDatedPasstimes();
 		Update update = new Update();
 		update.changedPasstimes = new ArrayList<>();
 		if (ignoreState){
-			update.changedPasstimes.addAll(datedPasstimes);
-			update.gtfsRealtimeTrip = filter(tripUpdateFromKV8());
+			update.changedPasstimes.addAll(published);
+			update.gtfsRealtimeTrip = filteredTripUpdate();
 			update.serviceInfo = serviceInfoFromKV8();
 		}else {
 			for (int i = 0; i < datedPasstimes.size(); i++){
 				DatedPasstime dp = datedPasstimes.get(i);
 				if (dp.getLastUpdateTimeStamp() > lastUpdate){
-					update.changedPasstimes.add(dp);
+					update.changedPasstimes.add(published.get(i));
 				}
 				if (dp.getJourneyStopType() == JourneyStopType.INFOPOINT){
 					continue; //Dummy's don't warrant a new tripupdate
 				}
 				if (update.gtfsRealtimeTrip == null){
 					if (arriveDelays[i] != dp.getExpectedArrivalTime()-dp.getTargetArrivalTime()){
-						update.gtfsRealtimeTrip = filter(tripUpdateFromKV8());;
+						update.gtfsRealtimeTrip = filteredTripUpdate();
 					}else if (departureDelays[i] != dp.getExpectedDepartureTime()-dp.getTargetDepartureTime()){
-						update.gtfsRealtimeTrip = filter(tripUpdateFromKV8());;
+						update.gtfsRealtimeTrip = filteredTripUpdate();
 					}
 				}
 				if (update.serviceInfo == null){
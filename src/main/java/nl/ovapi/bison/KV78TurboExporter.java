@@ -1,76 +1,483 @@
 package nl.ovapi.bison;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPOutputStream;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Singleton;
 
+import nl.ovapi.bison.model.DataOwnerCode;
 import nl.ovapi.bison.model.DatedPasstime;
 
+import org.joda.time.LocalDate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Context;
 import org.zeromq.ZMQ.Socket;
 
-import com.google.common.collect.Queues;
+import com.google.common.collect.Maps;
 
 
 @Singleton
 public class KV78TurboExporter {
 
 	private static final Logger _log = LoggerFactory.getLogger(KV78TurboExporter.class);
+	private final static Charset UTF8 = Charset.forName("UTF-8");
 	private ScheduledExecutorService _scheduler;
-	private ConcurrentLinkedQueue<List<DatedPasstime>> workQueue;
+	/**
+	 * Snapshots of the passtimes changed since the last message, newest per passtime. Guarded by pendingLock.
+	 */
+	private Map<String,DatedPasstime> pending = new LinkedHashMap<String,DatedPasstime>();
+	private final Object pendingLock = new Object();
+	private long pendingReceived = 0;
+	/**
+	 * Time the oldest pending passtime was exported in milliseconds, 0 when none is pending.
+	 */
+	private long pendingSince = 0;
+	/**
+	 * Keys of passtimes pushed out of pending by overflow, resent from current once the backlog is gone. Guarded by
+	 * pendingLock.
+	 */
+	private final Set<String> overflow = new LinkedHashSet<String>();
+	private long pendingOverflowed = 0;
+	private boolean flushRequested = false;
+
+	private long maxDelay = 100;
+	private int maxMessageBytes = 512*1024;
+	private int maxPending = 500000;
+
+	/**
+	 * Average uncompressed size of a CTX line, measured while sending.
+	 */
+	private volatile int averageLineBytes = 256;
+
+	/**
+	 * Last snapshot exported of every passtime, sent to new subscribers.
+	 */
+	private final ConcurrentMap<String,DatedPasstime> current = Maps.newConcurrentMap();
+
+	/**
+	 * Number of subscriptions per topic, as reported by the XPUB socket.
+	 */
+	private final ConcurrentMap<String,Integer> subscriptions = Maps.newConcurrentMap();
+
+	/**
+	 * Maximum number of snapshot lines sent to new subscribers per tick, in between the changes.
+	 */
+	private final static int SNAPSHOT_LINES_PER_TICK = 5000;
+
+	/**
+	 * Passtimes are kept for new subscribers until this long after their last expected or target time.
+	 */
+	private final static long PASSTIME_EXPIRATION_MILLIS = 60*60*1000;
+
+	private final static String TOPIC = "/GOVI/KV8passtimes";
 	private Context context;
 	private Socket publisher;
 
 	@PostConstruct
 	public void start() {
-		_scheduler = Executors.newScheduledThreadPool(1);
-		_scheduler.scheduleAtFixedRate(new SendTask(), 100, 100, TimeUnit.MILLISECONDS);
-		workQueue = Queues.newConcurrentLinkedQueue();
 		context = ZMQ.context(1);
 		publisher = context.socket(ZMQ.XPUB);
+		publisher.setXpubVerbose(true); //Report every subscription, not only the first one for a topic
 		publisher.bind("tcp://0.0.0.0:7817");
+		_scheduler = Executors.newScheduledThreadPool(1);
+		_scheduler.scheduleAtFixedRate(sendTask, maxDelay, maxDelay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param maxDelay time in milliseconds a passtime waits at most for a batch to fill up, set before start.
+	 */
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @param maxMessageBytes uncompressed size of a message at which it is sent without waiting for the delay, set before start.
+	 */
+	public void setMaxMessageBytes(int maxMessageBytes) {
+		this.maxMessageBytes = maxMessageBytes;
+	}
+
+	/**
+	 * @param maxPending number of passtimes waiting to be sent at which the oldest are set aside, to be sent in their
+	 * latest state once the backlog is gone. Set before start.
+	 */
+	public void setMaxPending(int maxPending) {
+		this.maxPending = maxPending;
 	}
 
+	/**
+	 * @return number of passtimes that fit in a message of maxMessageBytes
+	 */
+	private int batchLines(){
+		return Math.max(1, maxMessageBytes/averageLineBytes);
+	}
+
+	private final SendTask sendTask = new SendTask();
+
+	/**
+	 * Interval in milliseconds between reports of the encoder throughput.
+	 */
+	private final static long STATISTICS_INTERVAL = 60*1000;
+
 	private class SendTask implements Runnable{
-		@Override
-		public void run() {
+		private final KV8CtxWriter writer = new KV8CtxWriter();
+		private final Map<DataOwnerCode,List<DatedPasstime>> byOperator = new EnumMap<DataOwnerCode,List<DatedPasstime>>(DataOwnerCode.class);
+		private Map<String,DatedPasstime> spare = new LinkedHashMap<String,DatedPasstime>();
+		/**
+		 * Topic prefixes of new subscriptions with the part of the current passtimes that still has to be sent.
+		 */
+		private final Map<String,Iterator<DatedPasstime>> snapshots = new LinkedHashMap<String,Iterator<DatedPasstime>>();
+		private final List<DatedPasstime> snapshot = new ArrayList<DatedPasstime>();
+		private long statisticsSince = System.currentTimeMillis();
+		private long linesReceived = 0;
+		private long linesSent = 0;
+		private long bytesEncoded = 0;
+		private long bytesSent = 0;
+		private long encodeNanos = 0;
+		private long linesOverflowed = 0;
+		private long linesResent = 0;
+		private final List<DatedPasstime> resend = new ArrayList<DatedPasstime>();
+		private long windows = 0;
+		private long queueAgeSum = 0;
+		private long queueAgeMax = 0;
+
+		/**
+		 * Send the passtimes in messages of at most about maxMessageBytes.
+		 */
+		private void send(String topic, List<DatedPasstime> passtimes){
+			long start = System.nanoTime();
+			writer.reset("OVapi_KV8");
+			for (DatedPasstime dp : passtimes){
+				writer.write(dp);
+				if (writer.getLength() >= maxMessageBytes){
+					flush(topic,start);
+					start = System.nanoTime();
+					writer.reset("OVapi_KV8");
+				}
+			}
+			if (writer.getLineCount() > 0){
+				flush(topic,start);
+			}
+		}
+
+		private void flush(String topic, long start){
+			byte[] gzip = writer.toGzip();
+			encodeNanos += System.nanoTime()-start;
+			publisher.sendMore(topic);
+			publisher.send(gzip);
+			linesSent += writer.getLineCount();
+			bytesEncoded += writer.getLength();
+			bytesSent += gzip.length;
+			averageLineBytes = Math.max(1, (averageLineBytes*7+writer.getLength()/writer.getLineCount())/8);
+		}
+
+		/**
+		 * @return whether enough passtimes are pending for a full message, or the oldest waited long enough.
+		 */
+		private boolean hasBacklog(){
+			synchronized (pendingLock){
+				return pending.size() >= batchLines()
+						|| (pendingSince != 0 && System.currentTimeMillis()-pendingSince >= maxDelay);
+			}
+		}
+
+		private void sendByOperator(Collection<DatedPasstime> window){
+			for (DatedPasstime dp : window){
+				List<DatedPasstime> passtimes = byOperator.get(dp.getDataOwnerCode());
+				if (passtimes == null){
+					passtimes = new ArrayList<DatedPasstime>();
+					byOperator.put(dp.getDataOwnerCode(), passtimes);
+				}
+				passtimes.add(dp);
+			}
+			//One message per operator, so subscribers to a single operator's topic don't receive the others
+			for (Map.Entry<DataOwnerCode,List<DatedPasstime>> entry : byOperator.entrySet()){
+				List<DatedPasstime> passtimes = entry.getValue();
+				if (passtimes.isEmpty()){
+					continue;
+				}
+				try{
+					send(topic(entry.getKey()),passtimes);
+				}finally{
+					passtimes.clear();
+				}
+			}
+		}
+
+		/**
+		 * Send the passtimes changed since the last tick.
+		 */
+		private void sendWindow(){
+			Map<String,DatedPasstime> window;
+			long since;
+			synchronized (pendingLock){
+				flushRequested = false;
+				if (pending.isEmpty()){
+					return;
+				}
+				window = pending;
+				pending = spare;
+				since = pendingSince;
+				pendingSince = 0;
+				linesReceived += pendingReceived;
+				pendingReceived = 0;
+				linesOverflowed += pendingOverflowed;
+				pendingOverflowed = 0;
+			}
+			spare = window;
+			long age = System.currentTimeMillis()-since;
+			windows++;
+			queueAgeSum += age;
+			queueAgeMax = Math.max(queueAgeMax, age);
 			try{
-				StringBuilder sb = new StringBuilder();
-				sb.append(DatedPasstime.header("OVapi_KV8"));
-				for (int i = 0; i < 500; i++){
-					List<DatedPasstime> passtimes = workQueue.poll();
-					if (passtimes == null){
-						break;
+				sendByOperator(window.values());
+			}finally{
+				window.clear();
+			}
+		}
+
+		/**
+		 * Send the latest state of a batch of passtimes set aside by overflow.
+		 * @return whether passtimes set aside remain
+		 */
+		private boolean sendOverflow(){
+			boolean remaining;
+			synchronized (pendingLock){
+				Iterator<String> keys = overflow.iterator();
+				while (keys.hasNext() && resend.size() < batchLines()){
+					String key = keys.next();
+					keys.remove();
+					if (pending.containsKey(key)){
+						continue; //Changed again, sent with its window
 					}
-					for (DatedPasstime dp : passtimes){
-						sb.append(dp.toCtxLine()).append("\r\n");
+					DatedPasstime dp = current.get(key);
+					if (dp != null){ //Else expired
+						resend.add(dp);
 					}
 				}
-				ByteArrayOutputStream out = new ByteArrayOutputStream();
-				GZIPOutputStream gzip = new GZIPOutputStream(out);
-				gzip.write(sb.toString().getBytes("UTF-8"));
-				gzip.close();
-				publisher.sendMore("/GOVI/KV8passtimes");
-				publisher.send(out.toByteArray());
-				out.close();
+				remaining = !overflow.isEmpty();
+			}
+			linesResent += resend.size();
+			try{
+				sendByOperator(resend);
+			}finally{
+				resend.clear();
+			}
+			return remaining;
+		}
+
+		/**
+		 * Send the next part of the current passtimes to new subscribers. Snapshots are read from the live state, a
+		 * passtime changed meanwhile is sent in its latest state.
+		 */
+		private void sendSnapshots(){
+			Iterator<Map.Entry<String,Iterator<DatedPasstime>>> it = snapshots.entrySet().iterator();
+			while (it.hasNext() && snapshot.size() < SNAPSHOT_LINES_PER_TICK){
+				Map.Entry<String,Iterator<DatedPasstime>> entry = it.next();
+				Iterator<DatedPasstime> passtimes = entry.getValue();
+				while (passtimes.hasNext() && snapshot.size() < SNAPSHOT_LINES_PER_TICK){
+					DatedPasstime dp = passtimes.next();
+					if (topic(dp.getDataOwnerCode()).startsWith(entry.getKey())){
+						snapshot.add(dp);
+					}
+				}
+				if (!passtimes.hasNext()){
+					it.remove();
+				}
+			}
+			try{
+				sendByOperator(snapshot);
+			}finally{
+				snapshot.clear();
+			}
+		}
+
+		/**
+		 * Forget passtimes of journeys that ended, new subscribers don't need them.
+		 */
+		private void expirePasstimes(long now){
+			Map<String,Long> startOfDay = new HashMap<String,Long>();
+			int expired = 0;
+			for (Map.Entry<String,DatedPasstime> entry : current.entrySet()){
+				DatedPasstime dp = entry.getValue();
+				if (dp.getOperationDate() == null){
+					continue;
+				}
+				Long start = startOfDay.get(dp.getOperationDate());
+				if (start == null){
+					start = LocalDate.parse(dp.getOperationDate()).toDateTimeAtStartOfDay().getMillis();
+					startOfDay.put(dp.getOperationDate(), start);
+				}
+				int seconds = Math.max(Math.max(dp.getExpectedArrivalTime(),dp.getExpectedDepartureTime()),
+						Math.max(dp.getTargetArrivalTime(),dp.getTargetDepartureTime()));
+				if (start+seconds*1000L+PASSTIME_EXPIRATION_MILLIS < now && current.remove(entry.getKey(), dp)){
+					expired++;
+				}
+			}
+			_log.info("KV8 expired {} passtimes, {} current",expired,current.size());
+		}
+
+		/**
+		 * Count the (un)subscriptions the XPUB socket received since the last tick, and start sending the current
+		 * passtimes to new subscriptions.
+		 */
+		private void receiveSubscriptions(){
+			byte[] event;
+			while ((event = publisher.recv(ZMQ.DONTWAIT)) != null){
+				if (event.length == 0 || (event[0] != 0 && event[0] != 1)){
+					continue;
+				}
+				String topic = new String(event,1,event.length-1,UTF8);
+				if (event[0] == 1){
+					Integer count = subscriptions.get(topic);
+					subscriptions.put(topic, count == null ? 1 : count+1);
+					//Restarts a snapshot in progress for the topic, the new subscriber needs all of it
+					snapshots.remove(topic);
+					snapshots.put(topic, current.values().iterator());
+				}else{
+					//Only reported once the last subscriber for the topic left
+					subscriptions.remove(topic);
+				}
+				_log.info("KV8 {} topic '{}', {} subscriptions",event[0] == 1 ? "subscribe" : "unsubscribe",topic,subscriptions.get(topic));
+			}
+		}
+
+		@Override
+		public void run() {
+			try{
+				receiveSubscriptions();
+			}catch (Exception e){
+				_log.error("Receiving KV8 subscriptions fail",e);
+			}
+			try{
+				//Back-to-back while a backlog exists
+				do{
+					sendWindow();
+				}while (hasBacklog());
+				//Passtimes set aside by overflow go after the changes, while nothing new waits
+				boolean overflowRemaining = true;
+				while (overflowRemaining && !hasBacklog()){
+					overflowRemaining = sendOverflow();
+				}
 			}catch (Exception e){
 				_log.error("Sending KV8 fail",e);
 			}
+			try{
+				sendSnapshots();
+			}catch (Exception e){
+				_log.error("Sending KV8 snapshot fail",e);
+			}
+			long now = System.currentTimeMillis();
+			if (now-statisticsSince >= STATISTICS_INTERVAL){
+				try{
+					expirePasstimes(now);
+				}catch (Exception e){
+					_log.error("Expiring KV8 passtimes fail",e);
+				}
+				long seconds = Math.max(1,(now-statisticsSince)/1000);
+				_log.info("KV8 sent {} of {} lines received (dedup ratio {}), {} bytes/s ({} bytes/s uncompressed), encoding took {} ns per line",
+						linesSent,linesReceived,linesSent == 0 ? 0 : String.format("%.2f",(double)linesReceived/linesSent),
+						bytesSent/seconds,bytesEncoded/seconds,linesSent == 0 ? 0 : encodeNanos/linesSent);
+				statisticsSince = now;
+				if (linesOverflowed > 0){
+					_log.warn("KV8 queue full, set aside {} oldest pending passtimes, resent {} from their latest state",
+							linesOverflowed,linesResent);
+				}
+				_log.info("KV8 queue age {} ms average, {} ms max",windows == 0 ? 0 : queueAgeSum/windows,queueAgeMax);
+				windows = 0;
+				queueAgeSum = 0;
+				queueAgeMax = 0;
+				linesOverflowed = 0;
+				linesResent = 0;
+				linesReceived = 0;
+				linesSent = 0;
+				bytesEncoded = 0;
+				bytesSent = 0;
+				encodeNanos = 0;
+			}
 		}
 	}
 
+	/**
+	 * @return number of subscriptions per topic prefix since it was first subscribed to, as reported by the XPUB
+	 * socket. Unsubscriptions are only reported once the last subscriber for a prefix left.
+	 */
+	public Map<String,Integer> getSubscriptions(){
+		return Collections.unmodifiableMap(subscriptions);
+	}
+
+	/**
+	 * Queue the passtimes for the next message. Passtimes are copied, so later modifications are not sent until they
+	 * are exported again, and only the last export of a passtime within a window is sent.
+	 */
 	public void export(List<DatedPasstime> datedPasstimes){
-		if (datedPasstimes != null && datedPasstimes.size() > 0)
-			workQueue.offer(datedPasstimes);
+		if (datedPasstimes == null || datedPasstimes.size() == 0){
+			return;
+		}
+		List<DatedPasstime> snapshots = new ArrayList<DatedPasstime>(datedPasstimes.size());
+		List<String> keys = new ArrayList<String>(datedPasstimes.size());
+		for (DatedPasstime dp : datedPasstimes){
+			snapshots.add(new DatedPasstime(dp));
+			keys.add(key(dp));
+		}
+		boolean flush = false;
+		synchronized (pendingLock){
+			if (pendingSince == 0){
+				pendingSince = System.currentTimeMillis();
+			}
+			for (int i = 0; i < snapshots.size(); i++){
+				pending.remove(keys.get(i)); //Keep rows in order of their last export
+				pending.put(keys.get(i), snapshots.get(i));
+				current.put(keys.get(i), snapshots.get(i));
+			}
+			pendingReceived += snapshots.size();
+			//Overflow sets the oldest changes aside by key, current keeps their latest state to send later
+			Iterator<String> oldest = pending.keySet().iterator();
+			while (pending.size() > maxPending && oldest.hasNext()){
+				overflow.add(oldest.next());
+				oldest.remove();
+				pendingOverflowed++;
+			}
+			if (pending.size() >= batchLines() && !flushRequested){
+				flushRequested = true;
+				flush = true;
+			}
+		}
+		if (flush && _scheduler != null){
+			_scheduler.execute(sendTask);
+		}
+	}
+
+	private static String topic(DataOwnerCode dataOwnerCode){
+		return TOPIC+"/"+dataOwnerCode.name();
+	}
+
+	/**
+	 * @return identity of the KV8 DATEDPASSTIME row
+	 */
+	private static String key(DatedPasstime dp){
+		return new StringBuilder().append(dp.getDataOwnerCode().name()).append('|')
+				.append(dp.getOperationDate()).append('|')
+				.append(dp.getLinePlanningNumber()).append('|')
+				.append(dp.getJourneyNumber()).append('|')
+				.append(dp.getFortifyOrderNumber()).append('|')
+				.append(dp.getUserStopOrderNumber()).toString();
 	}
 }
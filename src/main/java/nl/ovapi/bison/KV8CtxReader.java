@@ -0,0 +1,198 @@
+package nl.ovapi.bison;
+
+import java.nio.charset.Charset;
+
+/**
+ * Streaming tokenizer over a decompressed KV8 CTX message. Lines are split into columns by offsets only, so rows can
+ * be filtered on their columns before any object is created for them. Columns are numbered as in the DATEDPASSTIME
+ * table, see {@link KV8CtxWriter}.
+ * @author Thomas Koch
+ *
+ */
+public class KV8CtxReader {
+
+	public final static int DATAOWNERCODE = 0;
+	public final static int OPERATIONDATE = 1;
+	public final static int LINEPLANNINGNUMBER = 2;
+	public final static int JOURNEYNUMBER = 3;
+	public final static int FORTIFYORDERNUMBER = 4;
+	public final static int USERSTOPORDERNUMBER = 5;
+	public final static int USERSTOPCODE = 6;
+	public final static int LASTUPDATETIMESTAMP = 10;
+	public final static int EXPECTEDARRIVALTIME = 13;
+	public final static int EXPECTEDDEPARTURETIME = 14;
+	public final static int TRIPSTOPSTATUS = 15;
+	public final static int NUMBEROFCOACHES = 19;
+	public final static int WHEELCHAIRACCESSIBLE = 20;
+	public final static int JOURNEYSTOPTYPE = 30;
+	public final static int TARGETARRIVALTIME = 31;
+	public final static int TARGETDEPARTURETIME = 32;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	private final static int MAX_COLUMNS = 64;
+
+	private final byte[] data;
+	private final int length;
+	private int position = 0;
+	/**
+	 * Start of each column of the current line, and one past the end of the last column.
+	 */
+	private final int[] starts = new int[MAX_COLUMNS+1];
+	private int columns = 0;
+
+	public KV8CtxReader(byte[] data, int length){
+		this.data = data;
+		this.length = length;
+	}
+
+	public KV8CtxReader(byte[] data){
+		this(data,data.length);
+	}
+
+	/**
+	 * Advance to the next data line, skipping the table and header lines starting with a backslash.
+	 * @return false at the end of the message
+	 */
+	public boolean next(){
+		while (position < length){
+			int start = position;
+			int end = start;
+			while (end < length && data[end] != '\n'){
+				end++;
+			}
+			position = end+1;
+			if (end > start && data[end-1] == '\r'){
+				end--;
+			}
+			if (end == start || data[start] == '\\'){
+				continue;
+			}
+			columns = 0;
+			starts[columns++] = start;
+			for (int i = start; i < end && columns < MAX_COLUMNS; i++){
+				if (data[i] == '|'){
+					starts[columns++] = i+1;
+				}
+			}
+			starts[columns] = end+1;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of columns of the current line
+	 */
+	public int getColumnCount(){
+		return columns;
+	}
+
+	private int start(int column){
+		if (column >= columns){
+			throw new IllegalArgumentException("Line has no column "+column);
+		}
+		return starts[column];
+	}
+
+	private int end(int column){
+		return starts[column+1]-1;
+	}
+
+	/**
+	 * @return whether the column holds the CTX null value \0
+	 */
+	public boolean isNull(int column){
+		int start = start(column);
+		return end(column)-start == 2 && data[start] == '\\' && data[start+1] == '0';
+	}
+
+	/**
+	 * @param value ASCII value, such as an enum name
+	 * @return whether the column holds exactly value
+	 */
+	public boolean equals(int column, String value){
+		int start = start(column);
+		if (end(column)-start != value.length()){
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++){
+			if (data[start+i] != value.charAt(i)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return value of the column, null for \0
+	 */
+	public String getString(int column){
+		if (isNull(column)){
+			return null;
+		}
+		int start = start(column);
+		return new String(data,start,end(column)-start,UTF8);
+	}
+
+	/**
+	 * Append the raw value of the column, without creating a String for it.
+	 */
+	public StringBuilder append(StringBuilder sb, int column){
+		int start = start(column);
+		int end = end(column);
+		for (int i = start; i < end; i++){
+			byte b = data[i];
+			if (b < 0){ //Non-ASCII, decode the column
+				return sb.append(getString(column));
+			}
+		}
+		for (int i = start; i < end; i++){
+			sb.append((char)data[i]);
+		}
+		return sb;
+	}
+
+	public int getInt(int column){
+		int start = start(column);
+		int end = end(column);
+		if (start == end){
+			throw new NumberFormatException("Empty column "+column);
+		}
+		boolean negative = data[start] == '-';
+		int value = 0;
+		for (int i = negative ? start+1 : start; i < end; i++){
+			int digit = data[i]-'0';
+			if (digit < 0 || digit > 9){
+				throw new NumberFormatException("Column "+column+": "+getString(column));
+			}
+			value = value*10+digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * @return time HH:MM:SS as seconds since midnight, hours may exceed 23, Integer.MIN_VALUE for \0
+	 */
+	public int getTime(int column){
+		if (isNull(column)){
+			return Integer.MIN_VALUE;
+		}
+		int start = start(column);
+		int end = end(column);
+		int seconds = 0;
+		int part = 0;
+		for (int i = start; i < end; i++){
+			if (data[i] == ':'){
+				seconds = (seconds+part)*60;
+				part = 0;
+			}else{
+				int digit = data[i]-'0';
+				if (digit < 0 || digit > 9){
+					throw new NumberFormatException("Column "+column+": "+getString(column));
+				}
+				part = part*10+digit;
+			}
+		}
+		return seconds+part;
+	}
+}
@@ -0,0 +1,303 @@
+package nl.ovapi.bison;
+
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import nl.ovapi.bison.model.DatedPasstime;
+import nl.ovapi.bison.model.WheelChairAccessible;
+
+/**
+ * Encodes DATEDPASSTIME records as a gzipped KV8 CTX message, producing the same lines as {@link DatedPasstime#toCtxLine()}.
+ * Fields are written straight into a reusable byte buffer and compressed by a long-lived Deflater, so encoding a
+ * message allocates nothing but the compressed result. Not thread-safe, meant to be owned by a single sender.
+ * @author Thomas Koch
+ *
+ */
+public class KV8CtxWriter {
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	private final static byte[] NULL = {'\\','0'};
+	private final static byte[] CRLF = {'\r','\n'};
+	private final static byte[] GZIP_HEADER = {0x1f,(byte)0x8b,Deflater.DEFLATED,0,0,0,0,0,0,0};
+
+	/**
+	 * "00" to "99", for two digit time fields.
+	 */
+	private final static byte[] DIGITS = new byte[200];
+	static {
+		for (int i = 0; i < 100; i++){
+			DIGITS[i*2] = (byte)('0'+i/10);
+			DIGITS[i*2+1] = (byte)('0'+i%10);
+		}
+	}
+
+	private final SimpleDateFormat iso8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION,true);
+	private final CRC32 crc = new CRC32();
+
+	private byte[] buffer = new byte[64*1024];
+	private int length = 0;
+	private int lines = 0;
+	private byte[] compressed = new byte[16*1024];
+
+	/**
+	 * Timestamp of the minute last formatted, with the seconds at secondsOffset
+	 */
+	private long cachedMinute = Long.MIN_VALUE;
+	private byte[] cachedTimestamp;
+	private int secondsOffset;
+
+	private long cachedHeaderSecond = Long.MIN_VALUE;
+	private String cachedSubscription;
+	private byte[] cachedHeader;
+
+	/**
+	 * Start a new message with the CTX header.
+	 * @param subscription name of the subscription in the header
+	 */
+	public void reset(String subscription){
+		length = 0;
+		lines = 0;
+		long second = System.currentTimeMillis()/1000;
+		if (second != cachedHeaderSecond || !subscription.equals(cachedSubscription)){
+			cachedHeader = DatedPasstime.header(subscription).getBytes(UTF8);
+			cachedHeaderSecond = second;
+			cachedSubscription = subscription;
+		}
+		write(cachedHeader);
+	}
+
+	/**
+	 * Append the record as a CTX line.
+	 */
+	public void write(DatedPasstime dp){
+		writeAscii(dp.getDataOwnerCode().name()); separator();
+		writeString(dp.getOperationDate()); separator();
+		writeString(dp.getLinePlanningNumber()); separator();
+		writeInt(dp.getJourneyNumber()); separator();
+		writeInt(dp.getFortifyOrderNumber()); separator();
+		writeInt(dp.getUserStopOrderNumber()); separator();
+		writeString(dp.getUserStopCode()); separator();
+		writeInt(dp.getLocalServiceLevelCode()); separator();
+		writeInt(dp.getJourneyPatternCode()); separator();
+		writeInt(dp.getLineDirection()); separator();
+		writeTimestamp(dp.getLastUpdateTimeStamp()); separator();
+		writeString(dp.getDestinationCode()); separator();
+		writeInt(dp.isTimingStop() ? 1 : 0); separator();
+		write32Time(dp.getExpectedArrivalTime()); separator();
+		write32Time(dp.getExpectedArrivalTime()); separator(); //Like toCtxLine()
+		writeAscii(dp.getTripStopStatus().name()); separator();
+		writeNullable(dp.getMessageContent()); separator();
+		writeNullable(dp.getMessageType() == null ? null : dp.getMessageType().name()); separator();
+		writeString(dp.getSideCode() == null ? "-" : dp.getSideCode()); separator();
+		if (dp.getNumberOfCoaches() < 0){
+			write(NULL);
+		}else{
+			writeInt(dp.getNumberOfCoaches());
+		}
+		separator();
+		writeAscii(dp.getWheelChairAccessible() == null ? WheelChairAccessible.UNKNOWN.name() : dp.getWheelChairAccessible().name()); separator();
+		writeNullable(dp.getOperatorCode()); separator();
+
+		writeNullable(dp.getReasonType()); separator();
+		writeNullable(dp.getSubReasonType()); separator();
+		writeNullable(dp.getReasonContent()); separator();
+
+		writeNullable(dp.getAdviceType()); separator();
+		writeNullable(dp.getSubAdviceType()); separator();
+		writeNullable(dp.getAdviceContent()); separator();
+
+		writeNullable(dp.getTimingPointDataOwnerCode() == null ? null : dp.getTimingPointDataOwnerCode().name()); separator();
+		writeNullable(dp.getTimingPointCode()); separator();
+		writeNullable(dp.getJourneyStopType() == null ? null : dp.getJourneyStopType().name()); separator();
+
+		write32Time(dp.getTargetArrivalTime()); separator();
+		write32Time(dp.getTargetDepartureTime()); separator();
+		write32Time(dp.getRecordedArrivalTime()); separator();
+		write32Time(dp.getRecordedDepartureTime());
+		write(CRLF);
+		lines++;
+	}
+
+	/**
+	 * @return number of records written since the last reset
+	 */
+	public int getLineCount(){
+		return lines;
+	}
+
+	/**
+	 * @return uncompressed size of the message in bytes
+	 */
+	public int getLength(){
+		return length;
+	}
+
+	/**
+	 * @return the message in gzip format
+	 */
+	public byte[] toGzip(){
+		crc.reset();
+		crc.update(buffer,0,length);
+		deflater.reset();
+		deflater.setInput(buffer,0,length);
+		deflater.finish();
+		System.arraycopy(GZIP_HEADER,0,compressed,0,GZIP_HEADER.length);
+		int size = GZIP_HEADER.length;
+		while (!deflater.finished()){
+			if (size == compressed.length){
+				compressed = Arrays.copyOf(compressed,compressed.length*2);
+			}
+			size += deflater.deflate(compressed,size,compressed.length-size);
+		}
+		byte[] gzip = Arrays.copyOf(compressed,size+8);
+		writeIntLE(gzip,size,(int)crc.getValue());
+		writeIntLE(gzip,size+4,length);
+		return gzip;
+	}
+
+	private static void writeIntLE(byte[] b, int offset, int value){
+		b[offset] = (byte)value;
+		b[offset+1] = (byte)(value >> 8);
+		b[offset+2] = (byte)(value >> 16);
+		b[offset+3] = (byte)(value >> 24);
+	}
+
+	private void ensureCapacity(int extra){
+		if (length+extra > buffer.length){
+			buffer = Arrays.copyOf(buffer,Math.max(buffer.length*2,length+extra));
+		}
+	}
+
+	private void separator(){
+		ensureCapacity(1);
+		buffer[length++] = '|';
+	}
+
+	private void write(byte[] b){
+		ensureCapacity(b.length);
+		System.arraycopy(b,0,buffer,length,b.length);
+		length += b.length;
+	}
+
+	private void writeNullable(String s){
+		if (s == null){
+			write(NULL);
+		}else{
+			writeString(s);
+		}
+	}
+
+	/**
+	 * Write a String known to be ASCII, such as an enum name.
+	 */
+	private void writeAscii(String s){
+		ensureCapacity(s.length());
+		for (int i = 0; i < s.length(); i++){
+			buffer[length++] = (byte)s.charAt(i);
+		}
+	}
+
+	/**
+	 * Write a String as UTF-8, "null" for null like StringBuilder.
+	 */
+	private void writeString(String s){
+		if (s == null){
+			writeAscii("null");
+			return;
+		}
+		ensureCapacity(s.length()*3);
+		for (int i = 0; i < s.length(); i++){
+			char c = s.charAt(i);
+			if (c < 0x80){
+				buffer[length++] = (byte)c;
+			}else if (c < 0x800){
+				buffer[length++] = (byte)(0xc0 | (c >> 6));
+				buffer[length++] = (byte)(0x80 | (c & 0x3f));
+			}else if (Character.isHighSurrogate(c) && i+1 < s.length() && Character.isLowSurrogate(s.charAt(i+1))){
+				int cp = Character.toCodePoint(c,s.charAt(++i));
+				buffer[length++] = (byte)(0xf0 | (cp >> 18));
+				buffer[length++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+				buffer[length++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+				buffer[length++] = (byte)(0x80 | (cp & 0x3f));
+			}else if (Character.isSurrogate(c)){
+				buffer[length++] = '?'; //Unpaired surrogate, as String.getBytes() does
+			}else{
+				buffer[length++] = (byte)(0xe0 | (c >> 12));
+				buffer[length++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+				buffer[length++] = (byte)(0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+	private void writeInt(int value){
+		ensureCapacity(11);
+		if (value < 0){
+			if (value == Integer.MIN_VALUE){
+				writeAscii(Integer.toString(value));
+				return;
+			}
+			buffer[length++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10){
+			digits++;
+		}
+		for (int i = length+digits-1; i >= length; i--){
+			buffer[i] = (byte)('0'+value%10);
+			value /= 10;
+		}
+		length += digits;
+	}
+
+	private void writeTwoDigits(int value){
+		buffer[length++] = DIGITS[value*2];
+		buffer[length++] = DIGITS[value*2+1];
+	}
+
+	/**
+	 * Write seconds since midnight as HH:MM:SS, hours may exceed 23.
+	 */
+	private void write32Time(int secondsSinceMidnight){
+		if (secondsSinceMidnight < 0){
+			write(NULL);
+			return;
+		}
+		int hours = secondsSinceMidnight/3600;
+		int seconds = secondsSinceMidnight % 3600;
+		ensureCapacity(8);
+		if (hours < 100){
+			writeTwoDigits(hours);
+		}else{
+			writeInt(hours);
+		}
+		buffer[length++] = ':';
+		writeTwoDigits(seconds/60);
+		buffer[length++] = ':';
+		writeTwoDigits(seconds%60);
+	}
+
+	/**
+	 * Write seconds since the epoch as an ISO8601 timestamp in the default timezone. The timestamp is formatted
+	 * once per minute, UTC offsets and their transitions are whole minutes.
+	 */
+	private void writeTimestamp(long epochSeconds){
+		long minute = epochSeconds >= 0 ? epochSeconds/60 : (epochSeconds-59)/60;
+		if (minute != cachedMinute){
+			String formatted = iso8601.format(new Date(minute*60*1000));
+			cachedTimestamp = formatted.getBytes(UTF8);
+			secondsOffset = formatted.indexOf('T')+7;
+			cachedMinute = minute;
+		}
+		int offset = length;
+		write(cachedTimestamp);
+		int seconds = (int)(epochSeconds-minute*60);
+		buffer[offset+secondsOffset] = DIGITS[seconds*2];
+		buffer[offset+secondsOffset+1] = DIGITS[seconds*2+1];
+	}
+}
@@ -62,13 +62,74 @@ public class DatedPasstime {
 	/**
 	 * KV17 lag in seconds
 	 */
-	@Getter @Setter private Integer lag;
+	@Getter private Integer lag;
 
 	/**
 	 * Distance since start trip in meters
 	 */
 	@Getter @Setter private Integer distanceDriven;
 
+	/**
+	 * Number of modifications, unlike lastUpdateTimeStamp this changes on every modification within the same second.
+	 */
+	@Getter private int version;
+
+	public DatedPasstime(){}
+
+	/**
+	 * Copy constructor, used for immutable snapshots of a journey.
+	 * @param other DatedPasstime to copy
+	 */
+	public DatedPasstime(DatedPasstime other){
+		this.dataOwnerCode = other.dataOwnerCode;
+		this.operationDate = other.operationDate;
+		this.linePlanningNumber = other.linePlanningNumber;
+		this.journeyNumber = other.journeyNumber;
+		this.fortifyOrderNumber = other.fortifyOrderNumber;
+		this.userStopOrderNumber = other.userStopOrderNumber;
+		this.userStopCode = other.userStopCode;
+		this.localServiceLevelCode = other.localServiceLevelCode;
+		this.journeyPatternCode = other.journeyPatternCode;
+		this.lineDirection = other.lineDirection;
+		this.lastUpdateTimeStamp = other.lastUpdateTimeStamp;
+		this.destinationCode = other.destinationCode;
+		this.isTimingStop = other.isTimingStop;
+		this.expectedArrivalTime = other.expectedArrivalTime;
+		this.expectedDepartureTime = other.expectedDepartureTime;
+		this.tripStopStatus = other.tripStopStatus;
+		this.messageContent = other.messageContent;
+		this.messageType = other.messageType;
+		this.sideCode = other.sideCode;
+		this.numberOfCoaches = other.numberOfCoaches;
+		this.wheelChairAccessible = other.wheelChairAccessible;
+		this.operatorCode = other.operatorCode;
+		this.reasonType = other.reasonType;
+		this.subReasonType = other.subReasonType;
+		this.reasonContent = other.reasonContent;
+		this.adviceType = other.adviceType;
+		this.subAdviceType = other.subAdviceType;
+		this.adviceContent = other.adviceContent;
+		this.timingPointDataOwnerCode = other.timingPointDataOwnerCode;
+		this.timingPointCode = other.timingPointCode;
+		this.journeyStopType = other.journeyStopType;
+		this.targetArrivalTime = other.targetArrivalTime;
+		this.targetDepartureTime = other.targetDepartureTime;
+		this.recordedArrivalTime = other.recordedArrivalTime;
+		this.recordedDepartureTime = other.recordedDepartureTime;
+		this.forBoarding = other.forBoarding;
+		this.forAlighting = other.forAlighting;
+		this.lag = other.lag;
+		this.distanceDriven = other.distanceDriven;
+		this.version = other.version;
+	}
+
+	public void setLag(Integer lag) {
+		if (!Objects.equal(lag, this.lag)){
+			this.version++; //Not part of KV8, leave lastUpdateTimeStamp as is
+		}
+		this.lag = lag;
+	}
+
 	public void setForBoarding(boolean forBoarding) {
 		if (!Objects.equal(forBoarding, this.forBoarding)){
 			this.setLastUpdateTimeStamp(Utils.currentTimeSecs());
@@ -169,6 +230,7 @@ public class DatedPasstime {
 
 	public void setLastUpdateTimeStamp(Long lastUpdateTimeStamp) {
 		this.lastUpdateTimeStamp = lastUpdateTimeStamp;
+		this.version++;
 	}
 
 	public void setLineDirection(byte lineDirection) {
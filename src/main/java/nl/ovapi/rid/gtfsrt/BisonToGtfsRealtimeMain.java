@@ -7,6 +7,8 @@ import java.util.Set;
 
 import javax.inject.Inject;
 
+import nl.ovapi.arnu.ARNUexporter;
+import nl.ovapi.bison.KV78TurboExporter;
 import nl.ovapi.rid.gtfsrt.services.ARNUritInfoToGtfsRealTimeServices;
 import nl.ovapi.rid.gtfsrt.services.BisonToGtfsRealtimeService;
 import nl.ovapi.rid.gtfsrt.services.KV78TurboToPseudoKV6Service;
@@ -45,8 +47,10 @@ public class BisonToGtfsRealtimeMain {
 	private GtfsRealtimeSource _trainUpdatesSource;
 	private GtfsRealtimeSource _vehiclePositionsSource;
 	private BisonToGtfsRealtimeService _bisonToGtfsRealtimeService;
-	//private KV78TurboToPseudoKV6Service  _kv78TurboToPseudoKV6Service;
+	private KV78TurboToPseudoKV6Service  _kv78TurboToPseudoKV6Service;
 	private ARNUritInfoToGtfsRealTimeServices  _arnuToGtfsRealTimeServices;
+	private KV78TurboExporter _kv78TurboExporter;
+	private ARNUexporter _arnuExporter;
 
 	private LifecycleService _lifecycleService;
 
@@ -60,6 +64,14 @@ public class BisonToGtfsRealtimeMain {
 	private static final String ARG_ALERTS_URL = "alertsUrl";
 	private static final String ARG_TRAIN_UPDATES_PATH = "trainUpdatesPath";
 	private static final String ARG_TRAIN_UPDATES_URL = "trainUpdatesUrl";
+	private static final String ARG_BATCH_WINDOW = "batchWindow";
+	private static final String ARG_KV78TURBO = "kv78turbo";
+	private static final String ARG_KV8_MAX_DELAY = "kv8MaxDelay";
+	private static final String ARG_KV8_MAX_MESSAGE_BYTES = "kv8MaxMessageBytes";
+	private static final String ARG_KV8_MAX_PENDING = "kv8MaxPending";
+	private static final String ARG_ARNU_MAX_DELAY = "arnuMaxDelay";
+	private static final String ARG_ARNU_MAX_MESSAGE_BYTES = "arnuMaxMessageBytes";
+	private static final String ARG_ARNU_MAX_QUEUED = "arnuMaxQueued";
 
 
 	@Inject
@@ -82,10 +94,20 @@ public class BisonToGtfsRealtimeMain {
 		_bisonToGtfsRealtimeService = bisonToGtfsRealtimeService;
 	}
 	
-	/*@Inject
+	@Inject
 	public void setKV78TurboToPseudoKV6Service(KV78TurboToPseudoKV6Service kv78TurboToPseudoKV6Service) {
 		_kv78TurboToPseudoKV6Service = kv78TurboToPseudoKV6Service;
-	}*/
+	}
+
+	@Inject
+	public void setKV78TurboExporter(KV78TurboExporter kv78TurboExporter) {
+		_kv78TurboExporter = kv78TurboExporter;
+	}
+
+	@Inject
+	public void setARNUexporter(ARNUexporter arnuExporter) {
+		_arnuExporter = arnuExporter;
+	}
 
 	@Inject
 	public void setARnuToGtfsRealTimeServices(ARNUritInfoToGtfsRealTimeServices arnuToGtfsRealTimeServices) {
@@ -138,6 +160,36 @@ public class BisonToGtfsRealtimeMain {
             _arnuToGtfsRealTimeServices.setArnuPubAdress(cli.getOptionValue(ARG_PUBARNUADDRESS));
         }
 
+		if (cli.hasOption(ARG_KV78TURBO)){
+			_kv78TurboToPseudoKV6Service.setRoutingTable(KV78TurboToPseudoKV6Service.parseRoutingTable(cli.getOptionValue(ARG_KV78TURBO)));
+		}
+
+		if (cli.hasOption(ARG_KV8_MAX_DELAY)){
+			_kv78TurboExporter.setMaxDelay(Long.parseLong(cli.getOptionValue(ARG_KV8_MAX_DELAY)));
+		}
+		if (cli.hasOption(ARG_KV8_MAX_MESSAGE_BYTES)){
+			_kv78TurboExporter.setMaxMessageBytes(Integer.parseInt(cli.getOptionValue(ARG_KV8_MAX_MESSAGE_BYTES)));
+		}
+		if (cli.hasOption(ARG_KV8_MAX_PENDING)){
+			_kv78TurboExporter.setMaxPending(Integer.parseInt(cli.getOptionValue(ARG_KV8_MAX_PENDING)));
+		}
+		if (cli.hasOption(ARG_ARNU_MAX_DELAY)){
+			_arnuExporter.setMaxDelay(Long.parseLong(cli.getOptionValue(ARG_ARNU_MAX_DELAY)));
+		}
+		if (cli.hasOption(ARG_ARNU_MAX_MESSAGE_BYTES)){
+			_arnuExporter.setMaxMessageBytes(Integer.parseInt(cli.getOptionValue(ARG_ARNU_MAX_MESSAGE_BYTES)));
+		}
+		if (cli.hasOption(ARG_ARNU_MAX_QUEUED)){
+			_arnuExporter.setMaxQueued(Integer.parseInt(cli.getOptionValue(ARG_ARNU_MAX_QUEUED)));
+		}
+
+		if (cli.hasOption(ARG_BATCH_WINDOW)) {
+			long batchWindow = Long.parseLong(cli.getOptionValue(ARG_BATCH_WINDOW));
+			_tripUpdatesSink.setBatchWindow(batchWindow);
+			_trainUpdatesSink.setBatchWindow(batchWindow);
+			_vehiclePositionsSink.setBatchWindow(batchWindow);
+		}
+
 		if (cli.hasOption(ARG_TRIP_UPDATES_URL)) {
 			GtfsRealtimeServlet servlet = injector.getInstance(GtfsRealtimeServlet.class);
 			servlet.setSource(_tripUpdatesSource);
@@ -219,6 +271,14 @@ public class BisonToGtfsRealtimeMain {
 		options.addOption(ARG_VEHICLE_POSITIONS_URL, true, "vehicle positions url");
 		options.addOption(ARG_ALERTS_PATH, true, "alerts path");
 		options.addOption(ARG_ALERTS_URL, true, "alerts url");
+		options.addOption(ARG_BATCH_WINDOW, true, "milliseconds to batch incremental trip, train and vehicle updates, eg. 250");
+		options.addOption(ARG_KV8_MAX_DELAY, true, "milliseconds a KV8 passtime waits at most for its message to fill up, eg. 100");
+		options.addOption(ARG_KV8_MAX_MESSAGE_BYTES, true, "uncompressed bytes at which a KV8 message is sent without waiting, eg. 524288");
+		options.addOption(ARG_KV8_MAX_PENDING, true, "KV8 passtimes waiting to be sent at which the oldest are resent later from their latest state, eg. 500000");
+		options.addOption(ARG_ARNU_MAX_DELAY, true, "milliseconds an ARNU service waits at most for its message to fill up, eg. 500");
+		options.addOption(ARG_ARNU_MAX_MESSAGE_BYTES, true, "estimated uncompressed bytes at which an ARNU message is sent without waiting, eg. 1048576");
+		options.addOption(ARG_ARNU_MAX_QUEUED, true, "ARNU services waiting to be sent at which the oldest are resent later from their latest state, eg. 50000");
+		options.addOption(ARG_KV78TURBO, true, "operators to take in from KV78turbo as pseudo KV6, optionally with their publisher, eg. 'GVB,HTM=tcp://127.0.0.1:7817'");
 	}
 
 }
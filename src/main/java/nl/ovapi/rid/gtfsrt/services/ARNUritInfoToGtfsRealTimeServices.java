@@ -2,7 +2,10 @@ package nl.ovapi.rid.gtfsrt.services;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
@@ -10,6 +13,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -28,10 +32,9 @@ import nl.ovapi.ZeroMQUtils;
 import nl.ovapi.arnu.ARNUexporter;
 import nl.ovapi.arnu.BlockProcessor;
 import nl.ovapi.arnu.TrainProcessor;
+import nl.ovapi.arnu.TrainStations;
 import nl.ovapi.rid.gtfsrt.Utils;
 import nl.ovapi.rid.model.Block;
-import nl.ovapi.rid.model.Journey;
-import nl.ovapi.rid.model.JourneyPattern.JourneyPatternPoint;
 import nl.tt_solutions.schemas.ns.rti._1.PutServiceInfoIn;
 import nl.tt_solutions.schemas.ns.rti._1.ServiceInfoKind;
 import nl.tt_solutions.schemas.ns.rti._1.ServiceInfoServiceType;
@@ -49,6 +52,7 @@ import org.zeromq.ZMQ.Socket;
 import org.zeromq.ZMsg;
 
 import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
 
 @Singleton
 public class ARNUritInfoToGtfsRealTimeServices {
@@ -60,6 +64,20 @@ public class ARNUritInfoToGtfsRealTimeServices {
 	private String pubAddress = "tcp://pubsub.ndovloket.nl:7662";
 	private final static int GARBAGE_COLLECTOR_INTERVAL_SECONDS = 60;
 	private final static int TRIPUPDATE_EXPIRATION_HOURS = 1;
+	private final static int STATISTICS_INTERVAL_SECONDS = 60;
+	/**
+	 * ServiceInfos waiting per lane before the unmarshalling thread waits for it.
+	 */
+	private final static int LANE_CAPACITY = 10000;
+	/**
+	 * One in this many occurrences of a kind is logged.
+	 */
+	private final static int LOG_SAMPLE_RATE = 100;
+	private int laneCount = Runtime.getRuntime().availableProcessors();
+	private Lane[] lanes;
+	private final AtomicLong changedServicesLogged = new AtomicLong();
+	private final AtomicLong unmatchedLogged = new AtomicLong();
+	private final AtomicLong notFoundLogged = new AtomicLong();
 	private GtfsRealtimeSink _tripUpdatesSink;
 	private RIDservice _ridService;
 	private ConcurrentMap<String, TrainProcessor> trainProcessors;
@@ -69,6 +87,13 @@ public class ARNUritInfoToGtfsRealTimeServices {
         this.pubAddress = pubAddress;
     }
 
+	/**
+	 * @param laneCount number of threads processing ServiceInfos in parallel, set before start.
+	 */
+	public void setLaneCount(int laneCount) {
+		this.laneCount = laneCount;
+	}
+
 	@Inject
 	public void setARnuExporter(ARNUexporter arnuExporter) {
 		_arnuExporter = arnuExporter;
@@ -89,9 +114,15 @@ public class ARNUritInfoToGtfsRealTimeServices {
 		_executor = Executors.newCachedThreadPool();
 		_scheduler = Executors.newScheduledThreadPool(5);
 		trainProcessors = Maps.newConcurrentMap();
+		lanes = new Lane[laneCount];
+		for (int i = 0; i < lanes.length; i++){
+			lanes[i] = new Lane(i);
+			_executor.submit(lanes[i]);
+		}
 		_task = _executor.submit(new ProcessTask());
 		_task = _executor.submit(new ReceiveTask());
 		_scheduler.scheduleAtFixedRate(new GarbageCollectorTask(), GARBAGE_COLLECTOR_INTERVAL_SECONDS, GARBAGE_COLLECTOR_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		_scheduler.scheduleAtFixedRate(new StatisticsTask(), STATISTICS_INTERVAL_SECONDS, STATISTICS_INTERVAL_SECONDS, TimeUnit.SECONDS);
 
 	}
 
@@ -100,15 +131,13 @@ public class ARNUritInfoToGtfsRealTimeServices {
 	private class GarbageCollectorTask implements Runnable{
 		@Override
 		public void run() {
-			//Delete vehicle updates that haven't received KV6 in 2 minutes.
-			GtfsRealtimeIncrementalUpdate tripUpdates = new GtfsRealtimeIncrementalUpdate();
+			//Forget trains that ended, their TripUpdates are expired by the exporter.
 			int tripsCleaned = 0;
 
 			for (Entry<String, TrainProcessor> entry : trainProcessors.entrySet()){
 				TrainProcessor jp = entry.getValue();
 				try{
 					if (jp.getEndEpoch() < (Utils.currentTimeSecs()-TRIPUPDATE_EXPIRATION_HOURS*60*60)){ //
-						tripUpdates.addDeletedEntity(entry.getKey());
 						trainProcessors.remove(entry.getKey());
 						tripsCleaned++;
 						_log.trace("Garbage cleaned {}",entry.getKey());
@@ -119,8 +148,6 @@ public class ARNUritInfoToGtfsRealTimeServices {
 				}
 			}
 			_log.error("GarbageCollector: {} trips cleaned",tripsCleaned);
-			if (tripUpdates.getDeletedEntities().size() > 0 || tripUpdates.getUpdatedEntities().size() > 0)
-				_tripUpdatesSink.handleIncrementalUpdate(tripUpdates);
 		}
 	}
 
@@ -135,34 +162,59 @@ public class ARNUritInfoToGtfsRealTimeServices {
 			_executor.shutdownNow();
 			_executor = null;
 		}
+		if (_scheduler != null) {
+			_scheduler.shutdownNow();
+			_scheduler = null;
+		}
 	}
 
 
+	/**
+	 * Transport modes a service is matched against in the timetable after its own, ARNU mixes these up.
+	 */
+	private final static String[] TRANSPORT_MODE_CODES = new String[] {"S","ST","SPR","HSN","IC","INT","ICE","THA","TGV"};
+
+	/**
+	 * @return preference of a train in the timetable with transportModeCode for a service with serviceTransportModeCode,
+	 * lowest first, Integer.MAX_VALUE if it does not match
+	 */
+	private static int transportModeRank(String serviceTransportModeCode, String transportModeCode){
+		if (transportModeCode.equals(serviceTransportModeCode)){
+			return 0;
+		}
+		for (int i = 0; i < TRANSPORT_MODE_CODES.length; i++){
+			if (TRANSPORT_MODE_CODES[i].equals(transportModeCode)){
+				return i+1;
+			}
+		}
+		return Integer.MAX_VALUE;
+	}
+
 	private String getId(ServiceInfoServiceType info){
 		if (info.getStopList() == null || info.getStopList().getStop() == null || info.getStopList().getStop().size() == 0){
 			return null;
 		}
 
 		LocalDate date = BlockProcessor.getDate(info);
-
-		for (String transportModeCode : new String[] {info.getTransportModeCode(),"S","ST","SPR","HSN","IC","INT","ICE","THA","TGV"}){
-			String id = String.format("%s:IFF:%s:%s",date,transportModeCode,info.getServiceCode());
-			List<Block> trains = _ridService.getTrains(id);
-			if (trains == null){
-				continue;
-			}else{
-				for (Block b : trains){
-					for (Journey segment : b.getSegments()){
-						for (JourneyPatternPoint p : segment.getJourneypattern().getPoints()){
-							for (ServiceInfoStopType stop : info.getStopList().getStop()){
-								if (BlockProcessor.stationCode(p).equals(stop.getStopCode())){
-									return id;
-								}
-							}
-						}
-					}
+		ArrayList<TrainStations> candidates = _ridService.getTrainsByService(date.toString(), info.getServiceCode());
+		if (candidates != null){
+			HashSet<String> stopCodes = new HashSet<String>();
+			for (ServiceInfoStopType stop : info.getStopList().getStop()){
+				stopCodes.add(stop.getStopCode());
+			}
+			//Prefer the transport mode of the service, then the modes in order of TRANSPORT_MODE_CODES
+			TrainStations match = null;
+			int matchRank = Integer.MAX_VALUE;
+			for (TrainStations candidate : candidates){
+				int rank = transportModeRank(info.getTransportModeCode(),candidate.getTransportModeCode());
+				if (rank < matchRank && candidate.containsAny(stopCodes)){
+					match = candidate;
+					matchRank = rank;
 				}
 			}
+			if (match != null){
+				return match.getId();
+			}
 		}
 		switch(info.getServiceType()){
 		case NORMAL_SERVICE:
@@ -188,12 +240,175 @@ public class ARNUritInfoToGtfsRealTimeServices {
 			return null; //Journey not found
 		}
 		tp = new TrainProcessor(trains);
-		trainProcessors.put(id, tp);
-		return tp;
+		TrainProcessor existing = trainProcessors.putIfAbsent(id, tp);
+		return existing != null ? existing : tp;
 	}
 
 	private final static String INPROC_PORT = "51546";
 
+	/**
+	 * Match a ServiceInfo to its train and export the changes, on the lane of the train.
+	 */
+	private void process(ServiceInfoServiceType info) throws Exception{
+		switch(info.getServiceType()){
+		case EXTENDED_SERVICE:
+		case SPLIT_SERVICE:
+			if (sample(changedServicesLogged)){
+				_log.info("ARNU serviceType={} companyCode={} serviceCode={} transportModeCode={} stops={} count={}",
+						info.getServiceType(),info.getCompanyCode(),info.getServiceCode(),info.getTransportModeCode(),
+						stopCount(info),changedServicesLogged.get());
+			}
+			break;
+		default:
+			break;
+		}
+		String id = getId(info);
+		if (id == null){
+			if (sample(unmatchedLogged)){
+				_log.error("ARNU train not matched serviceType={} companyCode={} serviceCode={} transportModeCode={} count={}",
+						info.getServiceType(),info.getCompanyCode(),info.getServiceCode(),info.getTransportModeCode(),unmatchedLogged.get());
+			}
+			return;
+		}
+		TrainProcessor jp = getOrCreateProcessorForId(id);
+		if (jp == null && info.getServiceType() != ServiceInfoKind.NORMAL_SERVICE){
+			jp = createFromARNU(info); //No static counterpart and ServiceInfoKind not normal
+			if (jp != null)            //Create from ARNU XML
+				trainProcessors.put(id, jp);
+		}
+		if (jp != null){
+			if (info.getServiceType() != null){
+				switch (info.getServiceType()){
+				case NORMAL_SERVICE:
+				case SPLIT_SERVICE:
+				case CANCELLED_SERVICE:
+					break;
+				case NEW_SERVICE: //Check and if necessary modify the scheduled journey to include the changes from ARNU
+				case DIVERTED_SERVICE:
+				case EXTENDED_SERVICE:
+				case SCHEDULE_CHANGED_SERVICE:
+					try{
+						jp.changeService(_ridService,info);
+					}catch (Exception e){
+						_log.error("Error changing service id={} serviceType={} stops={}",id,info.getServiceType(),stopCount(info),e);
+						throw e;
+					}
+				default:
+					break;
+				}
+			}
+			GtfsRealtimeIncrementalUpdate update = jp.process(info);
+			long endEpoch = jp.getEndEpoch();
+			if (endEpoch > 0){
+				update.setExpirationTime((endEpoch+TRIPUPDATE_EXPIRATION_HOURS*60*60)*1000);
+			}
+			_tripUpdatesSink.handleIncrementalUpdate(update);
+		}else if (sample(notFoundLogged)){
+			_log.error("ARNU train not found id={} serviceType={} stops={} count={}",id,info.getServiceType(),stopCount(info),notFoundLogged.get());
+		}
+	}
+
+	private static int stopCount(ServiceInfoServiceType info){
+		return info.getStopList() == null ? 0 : info.getStopList().getStop().size();
+	}
+
+	/**
+	 * @return whether to log this occurrence, one in LOG_SAMPLE_RATE
+	 */
+	private static boolean sample(AtomicLong occurrences){
+		return occurrences.getAndIncrement() % LOG_SAMPLE_RATE == 0;
+	}
+
+	/**
+	 * Lanes are keyed by the original train number, so the parts of a split or extended train are processed in order
+	 * with the train they derive from.
+	 */
+	private int laneIndex(ServiceInfoServiceType info){
+		Integer originalTrainNumber = TrainProcessor.orginalTrainNumber(info.getServiceCode());
+		int hash = originalTrainNumber != null ? originalTrainNumber.hashCode() : String.valueOf(info.getServiceCode()).hashCode();
+		return (hash & Integer.MAX_VALUE) % lanes.length;
+	}
+
+	/**
+	 * Queue of ServiceInfos processed in order by one thread.
+	 */
+	private class Lane implements Runnable {
+		private final int index;
+		private final BlockingQueue<Queued> queue = Queues.newLinkedBlockingQueue(LANE_CAPACITY);
+		private final AtomicLong processed = new AtomicLong();
+		private final AtomicLong queueAgeSum = new AtomicLong();
+		private final AtomicLong queueAgeMax = new AtomicLong();
+		private final AtomicLong processingTime = new AtomicLong();
+		private final AtomicLong blocked = new AtomicLong();
+
+		public Lane(int index){
+			this.index = index;
+		}
+
+		/**
+		 * Queue info, waiting while the lane is full.
+		 */
+		public void put(ServiceInfoServiceType info) throws InterruptedException{
+			Queued queued = new Queued(info);
+			if (!queue.offer(queued)){
+				blocked.incrementAndGet();
+				queue.put(queued);
+			}
+		}
+
+		@Override
+		public void run() {
+			while (!Thread.interrupted()) {
+				Queued queued;
+				try {
+					queued = queue.take();
+				} catch (InterruptedException e) {
+					break;
+				}
+				long start = System.currentTimeMillis();
+				long age = start-queued.time;
+				queueAgeSum.addAndGet(age);
+				if (age > queueAgeMax.get()){
+					queueAgeMax.set(age); //Racing with the reset by the statistics task is fine for a maximum
+				}
+				try {
+					process(queued.serviceInfo);
+				} catch (Exception e) {
+					_log.error("Error ARNU lane {} serviceCode={}",index,queued.serviceInfo.getServiceCode(),e);
+				}
+				processingTime.addAndGet(System.currentTimeMillis()-start);
+				processed.incrementAndGet();
+			}
+		}
+
+		private void logStatistics(){
+			long count = processed.getAndSet(0);
+			long ageSum = queueAgeSum.getAndSet(0);
+			_log.info("ARNU lane={} processed={} queued={} queueAgeAvgMs={} queueAgeMaxMs={} processingAvgMs={} blocked={}",
+					index,count,queue.size(),count == 0 ? 0 : ageSum/count,queueAgeMax.getAndSet(0),
+					count == 0 ? 0 : processingTime.getAndSet(0)/count,blocked.getAndSet(0));
+		}
+	}
+
+	private static class Queued {
+		private final ServiceInfoServiceType serviceInfo;
+		private final long time;
+
+		public Queued(ServiceInfoServiceType serviceInfo){
+			this.serviceInfo = serviceInfo;
+			this.time = System.currentTimeMillis();
+		}
+	}
+
+	private class StatisticsTask implements Runnable{
+		@Override
+		public void run() {
+			for (Lane lane : lanes){
+				lane.logStatistics();
+			}
+		}
+	}
+
 	private class ProcessTask implements Runnable {
 		int messagecounter = 0;
 		@Override
@@ -229,60 +444,11 @@ public class ARNUritInfoToGtfsRealTimeServices {
 					if (feed == null || feed.getValue() == null || feed.getValue().getServiceInfoList() == null){
 						continue;
 					}
-					System.out.println(m[0]);
 					for (ServiceInfoServiceType info : feed.getValue().getServiceInfoList().getServiceInfo()){
-						switch(info.getServiceType()){ //TODO REMOVE THIS DEBUG SWITCH
-						case CANCELLED_SERVICE:
-						case NORMAL_SERVICE:
-						case NEW_SERVICE:
-						case DIVERTED_SERVICE:
-						case SCHEDULE_CHANGED_SERVICE:
-							break;
-						case EXTENDED_SERVICE:
-						case SPLIT_SERVICE:
-							System.out.println(m[1]);
-						default:
-							break;
-						}
-						String id = getId(info);
-						if (id == null){
-							_log.error("Train id of {} not found",info);
-							continue;
-						}
-						TrainProcessor jp = getOrCreateProcessorForId(id);
-						if (jp == null && info.getServiceType() != ServiceInfoKind.NORMAL_SERVICE){
-							jp = createFromARNU(info); //No static counterpart and ServiceInfoKind not normal
-							if (jp != null)            //Create from ARNU XML
-								trainProcessors.put(id, jp);
-						}
-						if (jp != null){
-							if (info.getServiceType() != null){
-								switch (info.getServiceType()){
-								case NORMAL_SERVICE:
-								case SPLIT_SERVICE:
-								case CANCELLED_SERVICE:
-									break;
-								case NEW_SERVICE: //Check and if necessary modify the scheduled journey to include the changes from ARNU
-								case DIVERTED_SERVICE:
-								case EXTENDED_SERVICE:
-								case SCHEDULE_CHANGED_SERVICE:
-									try{
-										jp.changeService(_ridService,info);
-									}catch (Exception e){
-										_log.error("Error changing service {}",m[1]);
-										_log.error("Error changing service {}",m[1],e);
-										throw e;
-									}
-								default:
-									break;
-								}
-							}
-							_tripUpdatesSink.handleIncrementalUpdate(jp.process(info));
-						}else{
-							System.out.println(m[1]);
-							_log.error("Train {} not found",id);
-						}
+						lanes[laneIndex(info)].put(info);
 					}
+				} catch (InterruptedException e) {
+					break;
 				} catch (Exception e) {
 					_log.error("Error ARNU {}",e);
 					e.printStackTrace();
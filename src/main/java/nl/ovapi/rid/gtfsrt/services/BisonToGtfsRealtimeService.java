@@ -52,6 +52,7 @@ import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.Alert
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimePartitioner;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSink;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -162,6 +163,34 @@ public class BisonToGtfsRealtimeService {
 		}
 	}
 
+	/**
+	 * Partitions TripUpdates and VehiclePositions on agency_id and route_id of their journey.
+	 */
+	private class JourneyPartitioner implements GtfsRealtimePartitioner{
+		@Override
+		public String getAgencyId(FeedEntity entity) {
+			Journey journey = getJourney(entity.getId());
+			return journey == null ? null : journey.getAgencyId();
+		}
+
+		@Override
+		public String getRouteId(FeedEntity entity) {
+			Journey journey = getJourney(entity.getId());
+			return journey == null || journey.getRouteId() == null ? null : journey.getRouteId().toString();
+		}
+
+		/**
+		 * @param id entity id, of a journey or of a reinforcement of a journey
+		 */
+		private Journey getJourney(String id){
+			JourneyProcessor jp = journeyProcessors.get(id);
+			if (jp == null && id.lastIndexOf(':') > 0){ //Reinforcement, strip reinforcementnumber
+				jp = journeyProcessors.get(id.substring(0, id.lastIndexOf(':')));
+			}
+			return jp == null ? null : jp.getJourney();
+		}
+	}
+
 	private JourneyProcessor getOrCreateProcessorForId(@NonNull String privateCode){
 		JourneyProcessor jp = journeyProcessors.get(privateCode);
 		if (jp != null){
@@ -181,6 +210,8 @@ public class BisonToGtfsRealtimeService {
 	public void start() {
 		TimeZone.setDefault(TimeZone.getTimeZone("Europe/Amsterdam"));
 		journeyProcessors = Maps.newConcurrentMap();
+		_tripUpdatesSink.setPartitioner(new JourneyPartitioner());
+		_vehiclePositionsSink.setPartitioner(new JourneyPartitioner());
 		_executor = Executors.newCachedThreadPool();
 		_scheduler = Executors.newScheduledThreadPool(5);
 		_task = _executor.submit(new ProcessTask());
@@ -227,9 +258,7 @@ public class BisonToGtfsRealtimeService {
 	private class GarbageCollectorTask implements Runnable{
 		@Override
 		public void run() {
-			//Delete vehicle updates that haven't received KV6 in 2 minutes.
-			GtfsRealtimeIncrementalUpdate vehicleUpdates = new GtfsRealtimeIncrementalUpdate();
-			GtfsRealtimeIncrementalUpdate tripUpdates = new GtfsRealtimeIncrementalUpdate();
+			//Forget vehicles that haven't received KV6 in 2 minutes, their entities are expired by the exporters.
 			long threshold = Utils.currentTimeSecs() - POSINFO_MAX_AGE_SECONDS;
 			int vehiclesCleaned = 0;
 			int tripsCleaned = 0;
@@ -241,7 +270,8 @@ public class BisonToGtfsRealtimeService {
 						Update update = null;
 						String id = j.getOperatingDay()+":"+j.getPrivateCode();
 						JourneyProcessor jp = getOrCreateProcessorForId(id);
-						if (jp != null && (jp.getPosinfo() == null || jp.getPosinfo().getTimestamp() < threshold)){
+						KV6posinfo posinfo = jp == null ? null : jp.getPosinfo();
+						if (jp != null && (posinfo == null || posinfo.getTimestamp() < threshold)){
 							update = jp.setAsUnknown();
 							if (update != null
 									&& update.getChangedPasstimes() != null
@@ -258,28 +288,18 @@ public class BisonToGtfsRealtimeService {
 			for (Entry<String, JourneyProcessor> entry : journeyProcessors.entrySet()){
 				JourneyProcessor jp = entry.getValue();
 				try{
-					if (jp.getPosinfo() != null && jp.getPosinfo().getTimestamp() < threshold){
-						vehicleUpdates.addDeletedEntity(getId(jp.getPosinfo(),null));
+					KV6posinfo posinfo = jp.getPosinfo();
+					if (posinfo != null && posinfo.getTimestamp() < threshold){
 						jp.clearKV6();
 						vehiclesCleaned += 1;
 					}
-					if (jp.getReinforcements() != null){
-						for (Entry<Integer, KV6posinfo> reinforcement : jp.getReinforcements().entrySet()){
-							if (reinforcement.getValue().getTimestamp() < threshold){
-								vehicleUpdates.addDeletedEntity(getId(reinforcement.getValue(),reinforcement.getValue().getReinforcementnumber()));
-								vehiclesCleaned += 1;
-							}
-						}
-					}
+					vehiclesCleaned += jp.expireReinforcements(threshold).size();
 				}catch (Exception e){
 					e.printStackTrace();
 					_log.error("Garbage Collection vehiclepositions {}",jp,e);
 				}
 				try{
 					if (jp.getEndEpoch() < (Utils.currentTimeSecs()-TRIPUPDATE_EXPIRATION_HOURS*60*60)){ //
-						tripUpdates.addDeletedEntity(entry.getKey());
-						//This is to avoid any JourneyProcessor's being removed while there is still a VehiclePosition stored
-						vehicleUpdates.addDeletedEntity(entry.getKey()); 
 						journeyProcessors.remove(entry.getKey());
 						tripsCleaned++;
 						_log.trace("Garbage cleaned {}",entry.getKey());
@@ -290,13 +310,17 @@ public class BisonToGtfsRealtimeService {
 				}
 			}
 			_log.error("GarbageCollector: {} vehicles cleaned, {} trips cleaned",vehiclesCleaned,tripsCleaned);
-			if (vehicleUpdates.getDeletedEntities().size() > 0 || vehicleUpdates.getUpdatedEntities().size() > 0)
-				_vehiclePositionsSink.handleIncrementalUpdate(vehicleUpdates);
-			if (tripUpdates.getDeletedEntities().size() > 0 || tripUpdates.getUpdatedEntities().size() > 0)
-				_tripUpdatesSink.handleIncrementalUpdate(tripUpdates);
 		}
 	}
 
+	/**
+	 * @return time in milliseconds after which the TripUpdate of the journey is deleted unless updated again, -1 if the end of the journey is unknown.
+	 */
+	private static long tripExpirationTime(JourneyProcessor jp){
+		long endEpoch = jp.getEndEpoch();
+		return endEpoch < 0 ? -1 : (endEpoch+TRIPUPDATE_EXPIRATION_HOURS*60*60)*1000;
+	}
+
 	private String getId(KV6posinfo posinfo,Integer reinforcementnumber){
 		if (posinfo.getDataownercode() == null){
 			_log.error("No DaOwCode {}",posinfo);
@@ -355,13 +379,13 @@ public class BisonToGtfsRealtimeService {
 					if (posinfo.getMessagetype() == Type.END){
 						if (posinfo.getReinforcementnumber() == 0)
 							jp.clearKV6(); //Primary vehicle finished
-						else if (jp.getReinforcements().containsKey(posinfo.getReinforcementnumber()))
+						else
 							jp.getReinforcements().remove(posinfo.getReinforcementnumber()); //Remove reinforcement
 						vehicleUpdates.addDeletedEntity(getId(posinfo,posinfo.getReinforcementnumber()));
 					}
 					FeedEntity vehiclePosition = jp.vehiclePosition(getId(posinfo,posinfo.getReinforcementnumber()),jp,posinfo,_ridService,_geometryService);
 					if (vehiclePosition != null){
-						vehicleUpdates.addUpdatedEntity(vehiclePosition);
+						vehicleUpdates.addUpdatedEntity(vehiclePosition,(posinfo.getTimestamp()+POSINFO_MAX_AGE_SECONDS)*1000);
 						if (posinfo.getReinforcementnumber() > 0){
 							jp.getReinforcements().put(posinfo.getReinforcementnumber(), posinfo);
 						}
@@ -381,7 +405,7 @@ public class BisonToGtfsRealtimeService {
 									FeedEntity.Builder tripEntity = FeedEntity.newBuilder();
 									tripEntity.setId(id);
 									tripEntity.setTripUpdate(tripUpdate); //Get update created from KV6
-									tripUpdates.addUpdatedEntity(tripEntity.build());
+									tripUpdates.addUpdatedEntity(tripEntity.build(),tripExpirationTime(jp));
 								}
 							}
 						}catch (TooOldException e){
@@ -443,7 +467,7 @@ public class BisonToGtfsRealtimeService {
 							FeedEntity.Builder entity = FeedEntity.newBuilder();
 							entity.setTripUpdate(tripUpdate);
 							entity.setId(id);
-							tripUpdates.addUpdatedEntity(entity.build());
+							tripUpdates.addUpdatedEntity(entity.build(),tripExpirationTime(jp));
 						}
 					}
 				}
@@ -1,13 +1,18 @@
 package nl.ovapi.rid.gtfsrt.services;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
@@ -16,12 +21,15 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import nl.ovapi.ZeroMQUtils;
+import nl.ovapi.bison.DateUtils;
+import nl.ovapi.bison.KV8CtxReader;
 import nl.ovapi.bison.model.DataOwnerCode;
 import nl.ovapi.bison.model.DatedPasstime;
 import nl.ovapi.bison.model.JourneyStopType;
 import nl.ovapi.bison.model.KV6posinfo;
 import nl.ovapi.bison.model.KV6posinfo.Type;
 import nl.ovapi.bison.model.TripStopStatus;
+import nl.ovapi.bison.model.WheelChairAccessible;
 import nl.ovapi.rid.gtfsrt.Utils;
 import nl.ovapi.rid.model.Journey;
 import nl.ovapi.rid.model.JourneyPattern.JourneyPatternPoint;
@@ -38,65 +46,140 @@ public class KV78TurboToPseudoKV6Service {
 
 	private BisonToGtfsRealtimeService _bisonToGtfsRealtimeService;
 	private ExecutorService _executor;
-	private Future<?> _task;
 	private static final Logger _log = LoggerFactory.getLogger(KV78TurboToPseudoKV6Service.class);
 	private ScheduledExecutorService _scheduler;
-	private final static String[] kv8turboPublishers = new String[] {"tcp://post.ndovloket.nl:7817"};
+	public final static String DEFAULT_PUBLISHER = "tcp://post.ndovloket.nl:7817";
+	private final static String TOPIC = "/GOVI/KV8passtimes/";
+	/**
+	 * Messages waiting per operator lane before the receiver waits for it, slowing down its publisher.
+	 */
+	private final static int LANE_CAPACITY = 1000;
 	private RIDservice _ridService;
-	private HashMap<String,DatedPasstime> livePasstimes;
+	private final LivePasstimes livePasstimes = new LivePasstimes();
+	/**
+	 * Publisher of the KV8 passtimes of every operator ingested as pseudo KV6.
+	 */
+	private Map<DataOwnerCode,String> routingTable = new EnumMap<DataOwnerCode,String>(DataOwnerCode.class);
+	/**
+	 * Single threaded executor per operator, keeping the messages of an operator in order.
+	 */
+	private final Map<DataOwnerCode,ExecutorService> lanes = new EnumMap<DataOwnerCode,ExecutorService>(DataOwnerCode.class);
 
 	@Inject
 	public void setBisonToGtfsRealtimeService(BisonToGtfsRealtimeService bisonToGtfsRealtimeService) {
 		_bisonToGtfsRealtimeService = bisonToGtfsRealtimeService;
 	}
 
+	/**
+	 * @param routingTable operators to ingest with their KV78turbo publisher, set before start. Empty disables the ingest.
+	 */
+	public void setRoutingTable(Map<DataOwnerCode,String> routingTable) {
+		this.routingTable = new EnumMap<DataOwnerCode,String>(routingTable);
+	}
+
+	/**
+	 * @param value comma separated operators, each optionally followed by = and its publisher, eg 'GVB,HTM=tcp://127.0.0.1:7817'.
+	 * Operators without a publisher use DEFAULT_PUBLISHER.
+	 */
+	public static Map<DataOwnerCode,String> parseRoutingTable(String value){
+		Map<DataOwnerCode,String> routingTable = new EnumMap<DataOwnerCode,String>(DataOwnerCode.class);
+		for (String route : value.split(",")){
+			route = route.trim();
+			if (route.length() == 0){
+				continue;
+			}
+			int separator = route.indexOf('=');
+			if (separator < 0){
+				routingTable.put(DataOwnerCode.valueOf(route), DEFAULT_PUBLISHER);
+			}else{
+				routingTable.put(DataOwnerCode.valueOf(route.substring(0,separator).trim()), route.substring(separator+1).trim());
+			}
+		}
+		return routingTable;
+	}
+
+	/**
+	 * Queue a task on a full lane by waiting for room, so that it still runs after the tasks queued before it.
+	 */
+	static class BlockWhenFullPolicy implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()){
+				throw new RejectedExecutionException("Lane shut down");
+			}
+			try {
+				executor.getQueue().put(r);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted waiting for lane",e);
+			}
+		}
+	}
+
+	/**
+	 * @return single threaded executor running its tasks in order, blocking the submitter while capacity tasks wait
+	 */
+	static ThreadPoolExecutor newLane(int capacity){
+		return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(capacity), new BlockWhenFullPolicy());
+	}
+
 	@PostConstruct
 	public void start() {
-		livePasstimes = new HashMap<String,DatedPasstime>();
+		if (routingTable.isEmpty()){
+			_log.info("No KV78turbo operators configured, pseudo KV6 disabled");
+			return;
+		}
 		_executor = Executors.newCachedThreadPool();
 		_scheduler = Executors.newScheduledThreadPool(5);
 		_scheduler.scheduleAtFixedRate(new RefreshTask(), 60, 10, TimeUnit.SECONDS);
-		_task = _executor.submit(new ReceiveTask());
+		Map<String,List<DataOwnerCode>> operatorsByPublisher = new HashMap<String,List<DataOwnerCode>>();
+		for (Entry<DataOwnerCode,String> route : routingTable.entrySet()){
+			DataOwnerCode operator = route.getKey();
+			lanes.put(operator, newLane(LANE_CAPACITY));
+			List<DataOwnerCode> operators = operatorsByPublisher.get(route.getValue());
+			if (operators == null){
+				operators = new ArrayList<DataOwnerCode>();
+				operatorsByPublisher.put(route.getValue(), operators);
+			}
+			operators.add(operator);
+		}
+		for (Entry<String,List<DataOwnerCode>> publisher : operatorsByPublisher.entrySet()){
+			_executor.submit(new ReceiveTask(publisher.getKey(),publisher.getValue()));
+		}
 	}
 
+	/**
+	 * Repeat the last position of journeys without KV8 for a while, driven by the entries that are due.
+	 */
 	private class RefreshTask implements Runnable{
 		@Override
 		public void run() {
-			long threshold = Utils.currentTimeSecs() - 90;
-			ArrayList<String> removeIds = new ArrayList<String>();
-			ArrayList<KV6posinfo> refreshedPosinfos = new ArrayList<KV6posinfo>();
-			for (String key : new HashSet<String>(livePasstimes.keySet())){
-				try{
-					DatedPasstime pt = livePasstimes.get(key);
-					if (pt.getLastUpdateTimeStamp() < threshold){
-						if (pt.getJourneyStopType() != JourneyStopType.LAST){
-							if (pt.getTripStopStatus() != TripStopStatus.PLANNED && pt.getTripStopStatus() != TripStopStatus.UNKNOWN && pt.getTripStopStatus() != TripStopStatus.CANCEL){
-								SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-								long departureEpoch = df.parse(pt.getOperationDate()).getTime()/1000 + pt.getExpectedArrivalTime();
-								if (Utils.currentTimeSecs() < departureEpoch){
-									pt.setLastUpdateTimeStamp(Utils.currentTimeSecs());
-									refreshedPosinfos.add(makePseudoKV6(pt));
-								}
-							}
-						}
+			try{
+				long now = Utils.currentTimeSecs();
+				ArrayList<KV6posinfo> refreshedPosinfos = new ArrayList<KV6posinfo>();
+				for (LivePasstimes.Entry entry : livePasstimes.pollDue(now)){
+					DatedPasstime pt = entry.getPasstime();
+					pt.setLastUpdateTimeStamp(now);
+					KV6posinfo posinfo = makePseudoKV6(pt,entry.getJourney());
+					if (posinfo != null){
+						refreshedPosinfos.add(posinfo);
 					}
-				}catch (Exception e){
-
 				}
+				if (refreshedPosinfos.size() > 0)
+					_bisonToGtfsRealtimeService.process(refreshedPosinfos);
+			}catch (Exception e){
+				_log.error("Error refreshing KV78turbo passtimes",e);
 			}
-			if (refreshedPosinfos.size() > 0)
-				_bisonToGtfsRealtimeService.process(refreshedPosinfos);
-			if (removeIds.size() > 0)
-				_bisonToGtfsRealtimeService.remove(removeIds);
 		}
 	}
 
 	@PreDestroy
 	public void stop() {
-		if (_task != null) {
-			_task.cancel(true);
-			_task = null;
+		for (ExecutorService lane : lanes.values()){
+			lane.shutdownNow();
 		}
+		lanes.clear();
 		if (_executor != null) {
 			_executor.shutdownNow();
 			_executor = null;
@@ -112,12 +195,48 @@ public class KV78TurboToPseudoKV6Service {
 		_ridService = ridService;
 	}
 
-	private KV6posinfo makePseudoKV6(DatedPasstime pt){
-		String id = String.format("%s:%s:%s:%s", pt.getOperationDate(),pt.getDataOwnerCode(),pt.getLinePlanningNumber(),pt.getJourneyNumber());
-		Journey j = _ridService.getJourney(id);
-		if (j == null){
-			return null;
-		}
+	private static String journeyId(DatedPasstime pt){
+		return new StringBuilder().append(pt.getOperationDate()).append(':')
+				.append(pt.getDataOwnerCode().name()).append(':')
+				.append(pt.getLinePlanningNumber()).append(':')
+				.append(pt.getJourneyNumber()).toString();
+	}
+
+	/**
+	 * @return id of the journey of the current row, like {@link #journeyId(DatedPasstime)}
+	 */
+	private static String journeyId(KV8CtxReader reader){
+		StringBuilder sb = new StringBuilder();
+		reader.append(sb, KV8CtxReader.OPERATIONDATE).append(':');
+		reader.append(sb, KV8CtxReader.DATAOWNERCODE).append(':');
+		reader.append(sb, KV8CtxReader.LINEPLANNINGNUMBER).append(':');
+		return sb.append(reader.getInt(KV8CtxReader.JOURNEYNUMBER)).toString();
+	}
+
+	/**
+	 * @return DatedPasstime with only the columns needed for pseudo KV6
+	 */
+	private static DatedPasstime toDatedPasstime(KV8CtxReader reader){
+		DatedPasstime pt = new DatedPasstime();
+		pt.setDataOwnerCode(DataOwnerCode.valueOf(reader.getString(KV8CtxReader.DATAOWNERCODE)));
+		pt.setOperationDate(reader.getString(KV8CtxReader.OPERATIONDATE));
+		pt.setLinePlanningNumber(reader.getString(KV8CtxReader.LINEPLANNINGNUMBER));
+		pt.setJourneyNumber(reader.getInt(KV8CtxReader.JOURNEYNUMBER));
+		pt.setFortifyOrderNumber((short)reader.getInt(KV8CtxReader.FORTIFYORDERNUMBER));
+		pt.setUserStopOrderNumber((short)reader.getInt(KV8CtxReader.USERSTOPORDERNUMBER));
+		pt.setUserStopCode(reader.getString(KV8CtxReader.USERSTOPCODE));
+		pt.setExpectedArrivalTime(reader.getTime(KV8CtxReader.EXPECTEDARRIVALTIME));
+		pt.setExpectedDepartureTime(reader.getTime(KV8CtxReader.EXPECTEDDEPARTURETIME));
+		pt.setTripStopStatus(TripStopStatus.valueOf(reader.getString(KV8CtxReader.TRIPSTOPSTATUS)));
+		pt.setWheelChairAccessible(WheelChairAccessible.valueOf(reader.getString(KV8CtxReader.WHEELCHAIRACCESSIBLE)));
+		pt.setJourneyStopType(JourneyStopType.valueOf(reader.getString(KV8CtxReader.JOURNEYSTOPTYPE)));
+		pt.setTargetArrivalTime(reader.getTime(KV8CtxReader.TARGETARRIVALTIME));
+		pt.setTargetDepartureTime(reader.getTime(KV8CtxReader.TARGETDEPARTURETIME));
+		pt.setLastUpdateTimeStamp(DateUtils.parse(reader.getString(KV8CtxReader.LASTUPDATETIMESTAMP)));
+		return pt;
+	}
+
+	private KV6posinfo makePseudoKV6(DatedPasstime pt, Journey j){
 		KV6posinfo posinfo = new KV6posinfo();
 		switch (pt.getTripStopStatus()){
 		case ARRIVED:
@@ -136,7 +255,7 @@ public class KV78TurboToPseudoKV6Service {
 			return null;
 		case PLANNED:
 		case CANCEL:
-			_log.info("Cancel, damn lazy slumb implement this {} {}",pt.getTripStopStatus(),id);
+			_log.info("Cancel, damn lazy slumb implement this {} {}",pt.getTripStopStatus(),journeyId(pt));
 			return null;
 		default:
 			break;
@@ -195,79 +314,130 @@ public class KV78TurboToPseudoKV6Service {
 		}
 	}
 
+	/**
+	 * Turn one KV8 message of an operator into pseudo KV6, on the lane of that operator.
+	 */
+	private class ProcessTask implements Runnable {
+		private final DataOwnerCode operator;
+		private final ZMsg msg;
+
+		public ProcessTask(DataOwnerCode operator, ZMsg msg){
+			this.operator = operator;
+			this.msg = msg;
+		}
+
+		@Override
+		public void run() {
+			try {
+				byte[] data = ZeroMQUtils.gunzipMultifameZMsgData(msg);
+				if (data == null){
+					return;
+				}
+				//Filter on the raw columns, only the earliest future passtime per journey becomes an object
+				HashMap<String,DatedPasstime> passtimesFuture = new HashMap<String,DatedPasstime>();
+				KV8CtxReader reader = new KV8CtxReader(data);
+				while (reader.next()){
+					if (!reader.equals(KV8CtxReader.DATAOWNERCODE, operator.name())
+							|| reader.equals(KV8CtxReader.JOURNEYSTOPTYPE, JourneyStopType.INFOPOINT.name())
+							|| reader.equals(KV8CtxReader.TRIPSTOPSTATUS, TripStopStatus.PASSED.name())){
+						continue;
+					}
+					String id = journeyId(reader);
+					DatedPasstime earliest = passtimesFuture.get(id);
+					if (earliest == null || reader.getInt(KV8CtxReader.USERSTOPORDERNUMBER) < earliest.getUserStopOrderNumber()){
+						passtimesFuture.put(id, toDatedPasstime(reader));
+					}
+				}
+				ArrayList<KV6posinfo> posinfos = new ArrayList<KV6posinfo>();
+				ArrayList<String> removeIds = new ArrayList<String>();
+				for (DatedPasstime pt : passtimesFuture.values()){
+					String id = journeyId(pt);
+					if (pt.getTripStopStatus() == TripStopStatus.UNKNOWN){
+						if (livePasstimes.remove(id)){
+							removeIds.add(id);
+						}
+					}
+					Journey j = _ridService.getJourney(id);
+					if (j == null){
+						continue;
+					}
+					KV6posinfo posinfo = makePseudoKV6(pt,j);
+					if (posinfo != null){
+						posinfos.add(posinfo);
+						livePasstimes.put(id, pt, j);
+					}
+				}
+				_bisonToGtfsRealtimeService.process(posinfos);
+				_bisonToGtfsRealtimeService.remove(removeIds);
+			} catch (Exception e) {
+				_log.error("Error in KV78turbo processing of {}",operator,e);
+			}
+		}
+	}
+
+	/**
+	 * Receive the KV8 passtimes of the operators routed to one publisher, handing every message to the lane of its operator.
+	 */
 	private class ReceiveTask implements Runnable {
+		private final String publisher;
+		private final List<DataOwnerCode> operators;
 		int messagecounter = 0;
+
+		public ReceiveTask(String publisher, List<DataOwnerCode> operators){
+			this.publisher = publisher;
+			this.operators = operators;
+		}
+
+		private void subscribe(Socket subscriber){
+			char enable = 0x01;
+			for (DataOwnerCode operator : operators){
+				subscriber.send(enable+TOPIC+operator.name());
+			}
+		}
+
 		@Override
 		public void run() {
-			int addressPointer = 0;
 			Context context = ZMQ.context(1);
 			Socket subscriber = context.socket(ZMQ.XSUB);
-			subscriber.connect(kv8turboPublishers[addressPointer]);
-			char enable = 0x01;
-			subscriber.send(enable+"/GOVI/KV8passtimes/GVB");
-			//subscriber.send(enable+"/GOVI/KV8passtimes/UT-STD");
-			_log.info("Connected to {}",kv8turboPublishers[addressPointer]);
+			subscriber.connect(publisher);
+			subscribe(subscriber);
+			_log.info("Connected to {} for {}",publisher,operators);
 			org.zeromq.ZMQ.Poller poller = context.poller();
 			poller.register(subscriber);
 			while (!Thread.interrupted()) {
 				if (poller.poll(60*1000*5) > 0){
 					messagecounter++;
 					if (messagecounter % 1000 == 0){
-						_log.debug(messagecounter + " KV8Turbo messages received");
+						_log.debug(messagecounter + " KV8Turbo messages received from " + publisher);
 					}
 					try {
-						String[] m = ZeroMQUtils.gunzipMultifameZMsg(ZMsg.recvMsg(subscriber));
-						HashMap<String,DatedPasstime> passtimesFuture = new HashMap<String,DatedPasstime>();
-						HashMap<String,DatedPasstime> passtimesPassed = new HashMap<String,DatedPasstime>();
-						for (DatedPasstime pt : DatedPasstime.fromCtx(m[1])){
-							if (pt.getJourneyStopType() == JourneyStopType.INFOPOINT)
-								continue;
-							switch (pt.getDataOwnerCode()){
-							case GVB:
-								break;
-							default:
-								continue;
-							}
-							String id = String.format("%s:%s:%s:%s", pt.getOperationDate(),pt.getDataOwnerCode(),pt.getLinePlanningNumber(),pt.getJourneyNumber());
-							if (pt.getTripStopStatus() == TripStopStatus.PASSED){
-								passtimesPassed.put(id, pt);
-							}else if (!passtimesFuture.containsKey(id) || pt.getUserStopOrderNumber() < passtimesFuture.get(id).getUserStopOrderNumber()){
-								passtimesFuture.put(id, pt);
+						ZMsg msg = ZMsg.recvMsg(subscriber);
+						String topic = msg.peekFirst().toString();
+						DataOwnerCode operator = null;
+						if (topic.startsWith(TOPIC)){
+							try {
+								operator = DataOwnerCode.valueOf(topic.substring(TOPIC.length()));
+							} catch (IllegalArgumentException e) {
+								//Not an operator we know
 							}
 						}
-						ArrayList<KV6posinfo> posinfos = new ArrayList<KV6posinfo>();
-						ArrayList<String> removeIds = new ArrayList<String>();
-						for (DatedPasstime pt : passtimesFuture.values()){
-							String id = String.format("%s:%s:%s:%s", pt.getOperationDate(),pt.getDataOwnerCode(),pt.getLinePlanningNumber(),pt.getJourneyNumber());
-							if (pt.getTripStopStatus() == TripStopStatus.UNKNOWN){
-								if (livePasstimes.containsKey(id)){
-									livePasstimes.remove(id);
-									removeIds.add(id);
-								}
-							}
-							KV6posinfo posinfo = makePseudoKV6(pt);
-							if (posinfo != null){
-								posinfos.add(posinfo);
-								livePasstimes.put(id, pt);
-							}
+						ExecutorService lane = operator == null ? null : lanes.get(operator);
+						if (lane == null){
+							_log.debug("Unrouted KV78turbo topic {}",topic);
+							continue;
 						}
-						_bisonToGtfsRealtimeService.process(posinfos);
-						_bisonToGtfsRealtimeService.remove(removeIds);
+						lane.execute(new ProcessTask(operator,msg));
 					} catch (Exception e) {
-						_log.error("Error in KV78turbo processing",e);
+						_log.error("Error in KV78turbo receiving",e);
 					}
 				}else{
-					subscriber.disconnect(kv8turboPublishers[addressPointer]);
-					addressPointer++;
-					if (addressPointer >= kv8turboPublishers.length){
-						addressPointer = 0;
-					}
-					_log.error("Connection to {} lost, reconnecting",kv8turboPublishers[addressPointer]);
-					subscriber.connect(kv8turboPublishers[addressPointer]);
-					subscriber.subscribe("".getBytes());
+					subscriber.disconnect(publisher);
+					_log.error("Connection to {} lost, reconnecting",publisher);
+					subscriber.connect(publisher);
+					subscribe(subscriber);
 				}
 			}
-			subscriber.disconnect(kv8turboPublishers[addressPointer]);
+			subscriber.disconnect(publisher);
 		}
 	}
 }
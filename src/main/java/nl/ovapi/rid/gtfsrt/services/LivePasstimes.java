@@ -0,0 +1,143 @@
+package nl.ovapi.rid.gtfsrt.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import lombok.Getter;
+import nl.ovapi.bison.model.DatedPasstime;
+import nl.ovapi.bison.model.JourneyStopType;
+import nl.ovapi.bison.model.TripStopStatus;
+import nl.ovapi.rid.model.Journey;
+
+import org.joda.time.LocalDate;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Last KV8 passtime of every journey followed by pseudo KV6, indexed by the time it is next due for a refresh or
+ * expires. Safe for a receiving thread putting passtimes and a refreshing thread polling due entries.
+ * @author Thomas Koch
+ *
+ */
+class LivePasstimes {
+
+	/**
+	 * Seconds without KV8 after which a driving journey's last position is repeated.
+	 */
+	public final static int REFRESH_AFTER_SECONDS = 90;
+
+	public static class Entry {
+		@Getter private final String id;
+		@Getter private final DatedPasstime passtime;
+		@Getter private final Journey journey;
+		/**
+		 * Expected arrival at the stop of the passtime in seconds since the epoch.
+		 */
+		@Getter private final long arrivalEpoch;
+		/**
+		 * Scheduled end of the journey, or the arrival of the passtime when that is later.
+		 */
+		@Getter private final long endEpoch;
+
+		private Entry(String id, DatedPasstime passtime, Journey journey){
+			this.id = id;
+			this.passtime = passtime;
+			this.journey = journey;
+			this.arrivalEpoch = new LocalDate(passtime.getOperationDate()).toDateTimeAtStartOfDay().getMillis()/1000
+					+ passtime.getExpectedArrivalTime();
+			this.endEpoch = Math.max(journey.getEndEpoch(), arrivalEpoch);
+		}
+
+		/**
+		 * @return whether the last position should be repeated while no KV8 comes in: the vehicle is on its way to a
+		 * stop that is not its last.
+		 */
+		private boolean isRefreshable(){
+			if (passtime.getJourneyStopType() == JourneyStopType.LAST){
+				return false;
+			}
+			TripStopStatus status = passtime.getTripStopStatus();
+			return status != TripStopStatus.PLANNED && status != TripStopStatus.UNKNOWN && status != TripStopStatus.CANCEL;
+		}
+	}
+
+	private static class Due implements Comparable<Due> {
+		private final long time;
+		private final Entry entry;
+
+		public Due(long time, Entry entry){
+			this.time = time;
+			this.entry = entry;
+		}
+
+		@Override
+		public int compareTo(Due o) {
+			return time < o.time ? -1 : (time == o.time ? 0 : 1);
+		}
+	}
+
+	private final ConcurrentMap<String,Entry> entries = Maps.newConcurrentMap();
+
+	/**
+	 * Time index, may hold outdated items for replaced or removed entries. Guarded by itself.
+	 */
+	private final PriorityQueue<Due> due = new PriorityQueue<Due>();
+
+	/**
+	 * Follow the journey from this passtime on, replacing its previous passtime.
+	 */
+	public void put(String id, DatedPasstime passtime, Journey journey){
+		Entry entry = new Entry(id, passtime, journey);
+		entries.put(id, entry);
+		schedule(entry, passtime.getLastUpdateTimeStamp());
+	}
+
+	/**
+	 * @return whether the journey was followed
+	 */
+	public boolean remove(String id){
+		return entries.remove(id) != null;
+	}
+
+	public int size(){
+		return entries.size();
+	}
+
+	/**
+	 * Drop the journeys that ended and take the entries due for a refresh. Each of them is due again
+	 * REFRESH_AFTER_SECONDS after now, unless it is put again.
+	 * @param now seconds since the epoch
+	 * @return entries whose last position should be repeated
+	 */
+	public List<Entry> pollDue(long now){
+		List<Entry> refresh = new ArrayList<Entry>();
+		synchronized (due){
+			while (!due.isEmpty() && due.peek().time <= now){
+				Entry entry = due.poll().entry;
+				if (entries.get(entry.id) != entry){
+					continue; //Replaced or removed
+				}
+				if (now >= entry.endEpoch){
+					entries.remove(entry.id, entry);
+				}else if (entry.isRefreshable() && now < entry.arrivalEpoch){
+					refresh.add(entry);
+				}else{
+					due.add(new Due(entry.endEpoch, entry));
+				}
+			}
+			for (Entry entry : refresh){
+				due.add(new Due(Math.min(now+REFRESH_AFTER_SECONDS, entry.endEpoch), entry));
+			}
+		}
+		return refresh;
+	}
+
+	private void schedule(Entry entry, long lastUpdate){
+		long time = entry.isRefreshable() ? Math.min(lastUpdate+REFRESH_AFTER_SECONDS, entry.endEpoch) : entry.endEpoch;
+		synchronized (due){
+			due.add(new Due(time, entry));
+		}
+	}
+}
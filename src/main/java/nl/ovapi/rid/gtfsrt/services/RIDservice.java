@@ -19,6 +19,7 @@ import javax.annotation.PreDestroy;
 import javax.inject.Singleton;
 
 import lombok.Getter;
+import nl.ovapi.arnu.TrainStations;
 import nl.ovapi.bison.DateUtils;
 import nl.ovapi.bison.model.AdviceType;
 import nl.ovapi.bison.model.DataOwnerCode;
@@ -61,6 +62,7 @@ public class RIDservice {
 
 	private Map<String, Journey> journeys = Maps.newHashMapWithExpectedSize(0);
 	private Map<String, ArrayList<Block>> trains = Maps.newHashMapWithExpectedSize(0);
+	private Map<String, ArrayList<TrainStations>> trainsByService = Maps.newHashMapWithExpectedSize(0);
 	private Map<String, TimeDemandGroup> timedemandgroups = Maps.newHashMapWithExpectedSize(0);
 	private Map<String, JourneyPattern> journeypatterns = Maps.newHashMapWithExpectedSize(0);
 	private Map<String, StopPoint> stoppoints = Maps.newHashMapWithExpectedSize(0);
@@ -101,6 +103,15 @@ public class RIDservice {
 		return blocks;
 	}
 
+	/**
+	 * @param operatingDay OperatingDay (eg. 2014-06-02)
+	 * @param serviceCode ServiceCode, the train number
+	 * @return Trains with said operating day and service code in any transport mode with their stations, NULL if none. 
+	 */
+	public ArrayList<TrainStations> getTrainsByService(String operatingDay, String serviceCode){
+		return trainsByService.get(TrainStations.serviceKey(operatingDay, serviceCode));
+	}
+
 	/**
 	 * @param daow DataOwnerCode (eg. GVB , RET, HTM,etc)
 	 * @param linePlanningNumber (eg. M300, 4045,etc.)
@@ -365,6 +376,7 @@ public class RIDservice {
 			st = conn.prepareStatement(Database.trainQuery);
 			rs = st.executeQuery();
 			Block block = null;
+			Map<String, TrainStations> newTrainStations = Maps.newHashMapWithExpectedSize(0);
 			while (rs.next()) {
 				String key = hf.hashString(rs.getString(1)).toString();
 				Journey journey = Journey.newBuilder()
@@ -399,7 +411,22 @@ public class RIDservice {
 					blocks.add(block);
 					newTrains.put(key, blocks);
 				}
-			}			
+				TrainStations stations = newTrainStations.get(rs.getString(1));
+				if (stations == null){
+					stations = new TrainStations(rs.getString(1));
+					newTrainStations.put(rs.getString(1), stations);
+				}
+				stations.addJourney(journey);
+			}
+			Map<String, ArrayList<TrainStations>> newTrainsByService = Maps.newHashMapWithExpectedSize(newTrainStations.size());
+			for (TrainStations stations : newTrainStations.values()){
+				ArrayList<TrainStations> candidates = newTrainsByService.get(stations.getServiceKey());
+				if (candidates == null){
+					candidates = new ArrayList<TrainStations>(1);
+					newTrainsByService.put(stations.getServiceKey(), candidates);
+				}
+				candidates.add(stations);
+			}
 			st = conn.prepareStatement(Database.stoppointQuery);
 			rs = st.executeQuery();
 			while (rs.next()) {
@@ -435,6 +462,7 @@ public class RIDservice {
 			timedemandgroups = newTimedemandgroups;
 			journeys = newJourneys;
 			trains = newTrains;
+			trainsByService = newTrainsByService;
 		}catch (Exception e) {
 			_log.error("Loading SQL crash", e);
 			e.printStackTrace();
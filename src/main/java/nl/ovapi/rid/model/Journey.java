@@ -18,7 +18,7 @@ import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
 import com.google.transit.realtime.GtfsRealtime.TripDescriptor.ScheduleRelationship;
 import com.google.transit.realtime.GtfsRealtimeOVapi;
 import com.google.transit.realtime.GtfsRealtimeOVapi.OVapiTripDescriptor;
-@ToString()
+@ToString(exclude="cachedTripDescriptor")
 public class Journey {
 	private static final Logger _log = LoggerFactory.getLogger(Journey.class);
 
@@ -283,10 +283,31 @@ public class Journey {
 
 	private final static DateTimeFormatter GTFSRT_SERVICEDAY_FORMAT = DateTimeFormat.forPattern("yyyyMMdd");
 
+	/**
+	 * Lazily built TripDescriptor, Journey is immutable so it never goes stale.
+	 */
+	private volatile TripDescriptor cachedTripDescriptor;
+
 	/**
 	 * @return GTFS-Realtime TripDescriptor for this Journey
 	 */
+	public TripDescriptor getTripDescriptor(){
+		TripDescriptor tripDescriptor = cachedTripDescriptor;
+		if (tripDescriptor == null){
+			tripDescriptor = buildTripDescriptor();
+			cachedTripDescriptor = tripDescriptor;
+		}
+		return tripDescriptor;
+	}
+
+	/**
+	 * @return GTFS-Realtime TripDescriptor for this Journey, as builder to be modified by the caller
+	 */
 	public TripDescriptor.Builder tripDescriptor(){
+		return getTripDescriptor().toBuilder();
+	}
+
+	private TripDescriptor buildTripDescriptor(){
 		TripDescriptor.Builder tripDescriptor = TripDescriptor.newBuilder();
 		tripDescriptor.setStartDate(operatingDay.toString(GTFSRT_SERVICEDAY_FORMAT));
 		tripDescriptor.setTripId(id);
@@ -303,7 +324,7 @@ public class Journey {
 		OVapiTripDescriptor.Builder extension = OVapiTripDescriptor.newBuilder();
 		extension.setRealtimeTripId(privateCode);
 		tripDescriptor.setExtension(GtfsRealtimeOVapi.ovapiTripdescriptor, extension.build());
-		return tripDescriptor;
+		return tripDescriptor.build();
 	}
 
 	private final static DateTimeZone TIMEZONE = DateTimeZone.forID("Europe/Amsterdam");
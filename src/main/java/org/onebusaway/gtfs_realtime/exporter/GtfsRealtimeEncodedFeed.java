@@ -0,0 +1,271 @@
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Collection;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway;
+
+/**
+ * A full-dataset GTFS-realtime feed, encoded once in plain and gzipped form so
+ * it can be served as-is to any number of clients.
+ * 
+ * Repeated protobuf fields may be concatenated on the wire, so the plain form
+ * is kept as the encoded header field followed by the encoded entity fields,
+ * exactly as {@link FeedMessage#writeTo(OutputStream)} would write them.
+ */
+public class GtfsRealtimeEncodedFeed {
+
+  private final byte[][] _chunks;
+
+  private final int _length;
+
+  private byte[] _bytes;
+
+  private FeedHeader _header;
+
+  private static final ExtensionRegistry HEADER_EXTENSIONS = ExtensionRegistry.newInstance();
+
+  static {
+    HEADER_EXTENSIONS.add(GtfsRealtimeOneBusAway.obaFeedHeader);
+  }
+
+  private final byte[] _gzippedBytes;
+
+  private final String _etag;
+
+  private final long _lastModified;
+
+  private final long _version;
+
+  private final long _created = System.currentTimeMillis();
+
+  /**
+   * @param bytes the encoded {@link FeedMessage}
+   * @param etag opaque, unquoted tag unique for this version of the feed
+   * @param lastModified feed timestamp, in milliseconds
+   * @param version version of the source this feed was built from
+   */
+  public GtfsRealtimeEncodedFeed(byte[] bytes, String etag, long lastModified,
+      long version) {
+    this(new byte[][] {bytes}, etag, lastModified, version);
+  }
+
+  /**
+   * @param header the feed header, encoded with {@link #encodeHeader(FeedHeader)}
+   * @param entities the feed entities, encoded with {@link #encodeEntity(FeedEntity)}
+   * @param etag opaque, unquoted tag unique for this version of the feed
+   * @param lastModified feed timestamp, in milliseconds
+   * @param version version of the source this feed was built from
+   */
+  public GtfsRealtimeEncodedFeed(byte[] header, Collection<byte[]> entities,
+      String etag, long lastModified, long version) {
+    this(concat(header, entities), etag, lastModified, version);
+  }
+
+  private GtfsRealtimeEncodedFeed(byte[][] chunks, String etag,
+      long lastModified, long version) {
+    _chunks = chunks;
+    int length = 0;
+    for (byte[] chunk : chunks) {
+      length += chunk.length;
+    }
+    _length = length;
+    _gzippedBytes = gzip(chunks, length);
+    _etag = etag;
+    _lastModified = lastModified;
+    _version = version;
+  }
+
+  public static GtfsRealtimeEncodedFeed encode(FeedMessage feed, String etag,
+      long version) {
+    return new GtfsRealtimeEncodedFeed(feed.toByteArray(), etag,
+        feed.getHeader().getTimestamp() * 1000, version);
+  }
+
+  /**
+   * @return header encoded as field of a {@link FeedMessage}
+   */
+  public static byte[] encodeHeader(FeedHeader header) {
+    return encodeField(FeedMessage.HEADER_FIELD_NUMBER, header);
+  }
+
+  /**
+   * @return entity encoded as (repeated) field of a {@link FeedMessage}
+   */
+  public static byte[] encodeEntity(FeedEntity entity) {
+    return encodeField(FeedMessage.ENTITY_FIELD_NUMBER, entity);
+  }
+
+  private static byte[] encodeField(int fieldNumber, Message message) {
+    byte[] chunk = new byte[CodedOutputStream.computeMessageSize(fieldNumber,
+        message)];
+    CodedOutputStream out = CodedOutputStream.newInstance(chunk);
+    try {
+      out.writeMessage(fieldNumber, message);
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    out.checkNoSpaceLeft();
+    return chunk;
+  }
+
+  /**
+   * @param header the feed header, encoded with {@link #encodeHeader(FeedHeader)}
+   * @param entities the feed entities, encoded with {@link #encodeEntity(FeedEntity)}
+   * @return the encoded {@link FeedMessage}
+   */
+  public static byte[] assemble(byte[] header, Collection<byte[]> entities) {
+    int length = header.length;
+    for (byte[] entity : entities) {
+      length += entity.length;
+    }
+    byte[] bytes = new byte[length];
+    System.arraycopy(header, 0, bytes, 0, header.length);
+    int offset = header.length;
+    for (byte[] entity : entities) {
+      System.arraycopy(entity, 0, bytes, offset, entity.length);
+      offset += entity.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Write the plain feed, without assembling it into a single array.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    for (byte[] chunk : _chunks) {
+      out.write(chunk);
+    }
+  }
+
+  /**
+   * Write the plain feed with a single gathering write.
+   */
+  public void writeTo(GatheringByteChannel channel) throws IOException {
+    ByteBuffer[] buffers = new ByteBuffer[_chunks.length];
+    for (int i = 0; i < _chunks.length; i++) {
+      buffers[i] = ByteBuffer.wrap(_chunks[i]);
+    }
+    long remaining = _length;
+    while (remaining > 0) {
+      remaining -= channel.write(buffers);
+    }
+  }
+
+  /**
+   * @return the feed header, decoded from the encoded feed
+   */
+  public synchronized FeedHeader getHeader() {
+    if (_header == null) {
+      try {
+        // The first chunk holds the header, and for a single chunk feed the
+        // entities as well.
+        _header = FeedMessage.parseFrom(_chunks[0], HEADER_EXTENSIONS).getHeader();
+      } catch (InvalidProtocolBufferException ex) {
+        throw new IllegalStateException(ex);
+      }
+    }
+    return _header;
+  }
+
+  /**
+   * @return the OneBusAway incremental index of the feed, or -1 if it has none
+   */
+  public long getIncrementalIndex() {
+    FeedHeader header = getHeader();
+    if (!header.hasExtension(GtfsRealtimeOneBusAway.obaFeedHeader)) {
+      return -1;
+    }
+    return header.getExtension(GtfsRealtimeOneBusAway.obaFeedHeader).getIncrementalIndex();
+  }
+
+  /**
+   * @return length of the plain feed in bytes
+   */
+  public int getLength() {
+    return _length;
+  }
+
+  public synchronized byte[] getBytes() {
+    if (_bytes == null) {
+      if (_chunks.length == 1) {
+        _bytes = _chunks[0];
+      } else {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(_length);
+        try {
+          writeTo(out);
+        } catch (IOException ex) {
+          throw new IllegalStateException(ex);
+        }
+        _bytes = out.toByteArray();
+      }
+    }
+    return _bytes;
+  }
+
+  public byte[] getGzippedBytes() {
+    return _gzippedBytes;
+  }
+
+  /**
+   * @param gzipped whether the gzipped representation is served
+   * @return quoted entity tag for the representation
+   */
+  public String getEtag(boolean gzipped) {
+    return gzipped ? "\"" + _etag + "-gzip\"" : "\"" + _etag + "\"";
+  }
+
+  /**
+   * @return feed timestamp, in milliseconds
+   */
+  public long getLastModified() {
+    return _lastModified;
+  }
+
+  public long getVersion() {
+    return _version;
+  }
+
+  /**
+   * @return time this feed was encoded, in milliseconds
+   */
+  public long getCreated() {
+    return _created;
+  }
+
+  private static byte[][] concat(byte[] header, Collection<byte[]> entities) {
+    byte[][] chunks = new byte[entities.size() + 1][];
+    chunks[0] = header;
+    int i = 1;
+    for (byte[] entity : entities) {
+      chunks[i++] = entity;
+    }
+    return chunks;
+  }
+
+  private static byte[] gzip(byte[][] chunks, int length) {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+      GZIPOutputStream gzip = new GZIPOutputStream(out, 8192);
+      for (byte[] chunk : chunks) {
+        gzip.write(chunk);
+      }
+      gzip.close();
+      return out.toByteArray();
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
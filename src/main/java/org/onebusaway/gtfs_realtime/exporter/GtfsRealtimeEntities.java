@@ -0,0 +1,223 @@
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+
+/**
+ * Immutable map of the entities of a feed by id, together with their encoding
+ * and partition keys. Entities are spread over buckets by id, and a changed
+ * copy shares the buckets it did not touch with the original, so publishing
+ * the feed after a small change does not copy every entity.
+ */
+final class GtfsRealtimeEntities {
+
+  private static final int BUCKETS = 256;
+
+  static final GtfsRealtimeEntities EMPTY = new GtfsRealtimeEntities(
+      newBuckets(), 0);
+
+  static final class Entry {
+
+    private final FeedEntity _entity;
+
+    private final byte[] _encoded;
+
+    private final String _agencyId;
+
+    private final String _routeId;
+
+    private final double[] _position;
+
+    private final Set<String> _references;
+
+    /**
+     * @param encoded the entity encoded as a field of a FeedMessage
+     * @param position lon, lat of the entity's vehicle, or null
+     * @param references subscription keys of the trips, stops, routes and
+     *          agencies the entity refers to
+     */
+    public Entry(FeedEntity entity, byte[] encoded, String agencyId,
+        String routeId, double[] position, Set<String> references) {
+      _entity = entity;
+      _encoded = encoded;
+      _agencyId = agencyId;
+      _routeId = routeId;
+      _position = position;
+      _references = references;
+    }
+
+    public FeedEntity getEntity() {
+      return _entity;
+    }
+
+    public byte[] getEncoded() {
+      return _encoded;
+    }
+
+    public String getAgencyId() {
+      return _agencyId;
+    }
+
+    public String getRouteId() {
+      return _routeId;
+    }
+
+    public double[] getPosition() {
+      return _position;
+    }
+
+    public Set<String> getReferences() {
+      return _references;
+    }
+
+    public boolean matches(GtfsRealtimeFeedFilter filter) {
+      return filter.matches(_agencyId, _routeId, _position);
+    }
+  }
+
+  /**
+   * Buckets of entries by id, null when empty. Never changed once the map is
+   * built.
+   */
+  private final Map<String, Entry>[] _buckets;
+
+  private final int _size;
+
+  private GtfsRealtimeEntities(Map<String, Entry>[] buckets, int size) {
+    _buckets = buckets;
+    _size = size;
+  }
+
+  public Entry get(String id) {
+    Map<String, Entry> bucket = _buckets[bucket(id)];
+    return bucket == null ? null : bucket.get(id);
+  }
+
+  public int size() {
+    return _size;
+  }
+
+  public List<Entry> getEntries() {
+    List<Entry> entries = new ArrayList<Entry>(_size);
+    for (Map<String, Entry> bucket : _buckets) {
+      if (bucket != null) {
+        entries.addAll(bucket.values());
+      }
+    }
+    return entries;
+  }
+
+  public List<FeedEntity> getEntities() {
+    List<FeedEntity> entities = new ArrayList<FeedEntity>(_size);
+    for (Map<String, Entry> bucket : _buckets) {
+      if (bucket != null) {
+        for (Entry entry : bucket.values()) {
+          entities.add(entry._entity);
+        }
+      }
+    }
+    return entities;
+  }
+
+  public List<byte[]> getEncoded() {
+    List<byte[]> encoded = new ArrayList<byte[]>(_size);
+    for (Map<String, Entry> bucket : _buckets) {
+      if (bucket != null) {
+        for (Entry entry : bucket.values()) {
+          encoded.add(entry._encoded);
+        }
+      }
+    }
+    return encoded;
+  }
+
+  /**
+   * @return a builder starting from these entities
+   */
+  public Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  /**
+   * Changes a copy of the entities, copying a bucket the first time it is
+   * changed after the previous {@link #build()}. Not thread-safe.
+   */
+  static final class Builder {
+
+    private final Map<String, Entry>[] _buckets;
+
+    /**
+     * Buckets copied since the previous build, owned by the builder.
+     */
+    private final boolean[] _copied = new boolean[BUCKETS];
+
+    private int _size;
+
+    private Builder(GtfsRealtimeEntities entities) {
+      _buckets = entities._buckets.clone();
+      _size = entities._size;
+    }
+
+    public Entry get(String id) {
+      Map<String, Entry> bucket = _buckets[bucket(id)];
+      return bucket == null ? null : bucket.get(id);
+    }
+
+    public void put(Entry entry) {
+      if (bucketForUpdate(entry._entity.getId()).put(entry._entity.getId(),
+          entry) == null) {
+        _size++;
+      }
+    }
+
+    public Entry remove(String id) {
+      if (get(id) == null) {
+        return null;
+      }
+      _size--;
+      return bucketForUpdate(id).remove(id);
+    }
+
+    public void clear() {
+      Arrays.fill(_buckets, null);
+      Arrays.fill(_copied, false);
+      _size = 0;
+    }
+
+    /**
+     * @return the entities as changed so far, later changes to the builder
+     *         do not affect them
+     */
+    public GtfsRealtimeEntities build() {
+      Arrays.fill(_copied, false);
+      return new GtfsRealtimeEntities(_buckets.clone(), _size);
+    }
+
+    private Map<String, Entry> bucketForUpdate(String id) {
+      int index = bucket(id);
+      if (!_copied[index]) {
+        Map<String, Entry> bucket = _buckets[index];
+        _buckets[index] = bucket == null ? new HashMap<String, Entry>()
+            : new HashMap<String, Entry>(bucket);
+        _copied[index] = true;
+      }
+      return _buckets[index];
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Entry>[] newBuckets() {
+    return new Map[BUCKETS];
+  }
+
+  private static int bucket(String id) {
+    int h = id.hashCode();
+    return (h ^ (h >>> 16)) & (BUCKETS - 1);
+  }
+}
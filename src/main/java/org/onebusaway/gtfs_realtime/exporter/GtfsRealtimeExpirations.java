@@ -0,0 +1,105 @@
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashed timing wheel of entity expiration times. Scheduling and cancelling
+ * are O(1), and every tick visits a single slot, where entities expiring a
+ * revolution or more later are passed over until their time comes. Not
+ * thread-safe.
+ */
+class GtfsRealtimeExpirations {
+
+  private final long _tick;
+
+  private final List<Map<String, Long>> _slots;
+
+  /**
+   * Tick of the slot each entity was put in, so it is cancelled from that
+   * slot whatever the wheel did since.
+   */
+  private final Map<String, Long> _ticks = new HashMap<String, Long>();
+
+  /**
+   * Last tick expired, in ticks since the epoch.
+   */
+  private long _current;
+
+  /**
+   * @param tick duration of a tick in milliseconds
+   * @param slots number of slots in the wheel
+   * @param now current time in milliseconds
+   */
+  public GtfsRealtimeExpirations(long tick, int slots, long now) {
+    _tick = tick;
+    _slots = new ArrayList<Map<String, Long>>(slots);
+    for (int i = 0; i < slots; i++) {
+      _slots.add(new HashMap<String, Long>());
+    }
+    _current = now / tick;
+  }
+
+  /**
+   * Schedule the entity to expire, replacing an earlier expiration time.
+   */
+  public void schedule(String id, long expirationTime) {
+    cancel(id);
+    // The first tick at or after the expiration time, so the entity is due
+    // whenever its slot is visited. Times already passed by the wheel go to
+    // the next slot visited.
+    long tick = Math.max((expirationTime + _tick - 1) / _tick, _current + 1);
+    _ticks.put(id, tick);
+    slot(tick).put(id, expirationTime);
+  }
+
+  public void cancel(String id) {
+    Long tick = _ticks.remove(id);
+    if (tick != null) {
+      slot(tick).remove(id);
+    }
+  }
+
+  public void clear() {
+    _ticks.clear();
+    for (Map<String, Long> slot : _slots) {
+      slot.clear();
+    }
+  }
+
+  public boolean isEmpty() {
+    return _ticks.isEmpty();
+  }
+
+  /**
+   * Advance the wheel to now.
+   * 
+   * @return ids of the entities expired since the last call
+   */
+  public List<String> expire(long now) {
+    List<String> expired = new ArrayList<String>();
+    long target = now / _tick;
+    // After a full revolution every slot has been visited
+    long from = Math.max(_current + 1, target - _slots.size() + 1);
+    for (long tick = from; tick <= target; tick++) {
+      Iterator<Map.Entry<String, Long>> it = slot(tick).entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Long> entry = it.next();
+        if (entry.getValue() <= now) {
+          expired.add(entry.getKey());
+          _ticks.remove(entry.getKey());
+          it.remove();
+        }
+      }
+    }
+    _current = Math.max(_current, target);
+    return expired;
+  }
+
+  private Map<String, Long> slot(long tick) {
+    return _slots.get((int) (tick % _slots.size()));
+  }
+}
@@ -15,21 +15,51 @@
  */
 package org.onebusaway.gtfs_realtime.exporter;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeEntities.Entry;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter.AlertsExporter;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter.MixedFeedExporter;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter.TrainUpdatesExporter;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter.TripUpdatesExporter;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter.VehiclePositionsExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableList;
+import com.google.transit.realtime.GtfsRealtime.EntitySelector;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
 import com.google.transit.realtime.GtfsRealtime.FeedHeader;
 import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
 import com.google.transit.realtime.GtfsRealtimeConstants;
 import com.google.transit.realtime.GtfsRealtimeOneBusAway;
 import com.google.transit.realtime.GtfsRealtimeOneBusAway.OneBusAwayFeedHeader;
@@ -42,69 +72,673 @@ import com.google.transit.realtime.GtfsRealtimeOneBusAway.OneBusAwayFeedHeader;
 class GtfsRealtimeExporterImpl implements AlertsExporter, TripUpdatesExporter,
     VehiclePositionsExporter, MixedFeedExporter,TrainUpdatesExporter {
 
-  private List<GtfsRealtimeIncrementalListener> _listeners = new CopyOnWriteArrayList<GtfsRealtimeIncrementalListener>();
+  /**
+   * Replaced with _dispatchLock held, so a queued delivery keeps the listeners
+   * registered when it was queued.
+   */
+  private volatile List<GtfsRealtimeIncrementalListener> _listeners = ImmutableList.of();
+
+  /**
+   * Listeners with a subscription, grouped by subscription so listeners with
+   * equal subscriptions share the encoded feeds. Only used with _dispatchLock
+   * held, like _subscriptionsByKey, and the lists are replaced rather than
+   * changed.
+   */
+  private final Map<GtfsRealtimeSubscription, List<GtfsRealtimeIncrementalListener>> _subscriptionListeners = new HashMap<GtfsRealtimeSubscription, List<GtfsRealtimeIncrementalListener>>();
+
+  /**
+   * Subscriptions by the attribute keys they are interested in, see
+   * {@link GtfsRealtimeSubscription#getKeys()}.
+   */
+  private final Map<String, Set<GtfsRealtimeSubscription>> _subscriptionsByKey = new HashMap<String, Set<GtfsRealtimeSubscription>>();
+
+  private volatile FeedHeader _header;
+
+  /**
+   * The entities as changed by the writer, only used with _dispatchLock held.
+   */
+  private final GtfsRealtimeEntities.Builder _entities = GtfsRealtimeEntities.EMPTY.toBuilder();
+
+  /**
+   * The feed as of the last change, published by the writer once the change
+   * is applied. Readers only dereference it.
+   */
+  private final AtomicReference<Snapshot> _snapshot = new AtomicReference<Snapshot>();
+
+  private final GtfsRealtimePartitions _partitions = new GtfsRealtimePartitions();
+
+  private volatile GtfsRealtimePartitioner _partitioner = null;
 
-  private FeedHeader _header;
+  /**
+   * Encoded feeds of agency and route partitions, bounding boxes are not
+   * cached.
+   */
+  private final ConcurrentMap<GtfsRealtimeFeedFilter, GtfsRealtimeEncodedFeed> _partitionFeeds = new ConcurrentHashMap<GtfsRealtimeFeedFilter, GtfsRealtimeEncodedFeed>();
 
-  private Map<String, FeedEntity> _feedEntities = new HashMap<String, FeedEntity>();
+  private volatile long _incrementalIndex = 1;
 
-  private FeedMessage _cachedFeed = null;
+  /**
+   * Incremented before and after every change to the feed, including header
+   * changes, so it is odd while a change is being applied. Readers selecting
+   * entities of a snapshot through _partitions check it did not change
+   * meanwhile.
+   */
+  private volatile long _version = 0;
 
-  private long _incrementalIndex = 1;
+  private volatile GtfsRealtimeEncodedFeed _encodedFeed = null;
+
+  private final ReentrantLock _encodeLock = new ReentrantLock();
+
+  /**
+   * Serializes updates, so feeds are queued for listeners in the order the
+   * updates were applied. Readers never take it, and listeners are never
+   * called with it held.
+   */
+  private final ReentrantLock _dispatchLock = new ReentrantLock();
+
+  /**
+   * Feeds waiting to be handed to listeners, queued with _dispatchLock held.
+   */
+  private final Queue<Delivery> _deliveries = new ConcurrentLinkedQueue<Delivery>();
+
+  /**
+   * Held by the thread handing the queued feeds to listeners, so they are
+   * handed over one at a time and in order.
+   */
+  private final ReentrantLock _deliveryLock = new ReentrantLock();
+
+  private long _encodedFeedInterval = 1000;
+
+  /**
+   * Distinguishes entity tags of this process from those of a previous run.
+   */
+  private static final String ETAG_PREFIX = Long.toHexString(System.currentTimeMillis());
 
   private int _incrementalHeartbeatInterval = 60;
 
+  private static final Logger _log = LoggerFactory.getLogger(GtfsRealtimeExporterImpl.class);
+
+  private ScheduledExecutorService _executor;
+
+  private long _batchWindow = 0;
+
+  /**
+   * Incremental updates waiting for the batch window to close, merged per
+   * entity id. Guarded by _pendingLock.
+   */
+  private final Map<String, FeedEntity> _pendingUpdates = new LinkedHashMap<String, FeedEntity>();
+
+  private final Set<String> _pendingDeletes = new LinkedHashSet<String>();
+
+  /**
+   * Expiration times of the pending updates that have one.
+   */
+  private final Map<String, Long> _pendingExpirationTimes = new HashMap<String, Long>();
+
+  private final Object _pendingLock = new Object();
+
+  private int _pendingCount = 0;
+
+  /**
+   * Time the oldest pending update arrived in milliseconds, 0 when none is
+   * pending.
+   */
+  private long _pendingSince = 0;
+
+  /**
+   * Most recent differential feeds since the last full update, by incremental
+   * index. Changed by the writer, read without locking.
+   */
+  private final ConcurrentNavigableMap<Long, RecentDiff> _recentDiffs = new ConcurrentSkipListMap<Long, RecentDiff>();
+
+  /**
+   * Size of _recentDiffs, only used with _dispatchLock held.
+   */
+  private int _recentDiffCount = 0;
+
+  private int _maxRecentDiffs = 1000;
+
+  /**
+   * Resolution of entity expiration times in milliseconds.
+   */
+  private static final long EXPIRATION_TICK = 1000;
+
+  /**
+   * Slots of the expiration wheel, a revolution takes about 17 minutes.
+   */
+  private static final int EXPIRATION_SLOTS = 1024;
+
+  /**
+   * Expiration times of the entities in the feed. Only used with _dispatchLock
+   * held.
+   */
+  private final GtfsRealtimeExpirations _expirations = new GtfsRealtimeExpirations(
+      EXPIRATION_TICK, EXPIRATION_SLOTS, System.currentTimeMillis());
+
+  private ScheduledFuture<?> _expirationTask = null;
+
+  /**
+   * The part of a differential feed routed to one subscription.
+   */
+  private static class RoutedEntities {
+
+    private final List<FeedEntity> _entities = new ArrayList<FeedEntity>();
+
+    private final List<byte[]> _encoded = new ArrayList<byte[]>();
+  }
+
+  /**
+   * A differential feed, kept as its entities encoded as fields of a
+   * FeedMessage.
+   */
+  private static class RecentDiff {
+
+    private final long _incrementalIndex;
+
+    private final String[] _ids;
+
+    private final byte[][] _entities;
+
+    public RecentDiff(long incrementalIndex, String[] ids, byte[][] entities) {
+      _incrementalIndex = incrementalIndex;
+      _ids = ids;
+      _entities = entities;
+    }
+  }
+
+  /**
+   * A feed for the listeners registered when it was queued, built and encoded
+   * once when it is handed over, outside of _dispatchLock.
+   */
+  private static abstract class Delivery {
+
+    private final List<GtfsRealtimeIncrementalListener> _listeners;
+
+    public Delivery(List<GtfsRealtimeIncrementalListener> listeners) {
+      _listeners = listeners;
+    }
+
+    protected abstract FeedMessage buildFeed();
+
+    protected byte[] encode(FeedMessage feed) {
+      return feed.toByteArray();
+    }
+
+    public void deliver() {
+      if (_listeners.isEmpty()) {
+        return;
+      }
+      FeedMessage feed = buildFeed();
+      byte[] encoded = encode(feed);
+      for (GtfsRealtimeIncrementalListener listener : _listeners) {
+        try {
+          listener.handleFeed(feed, encoded);
+        } catch (RuntimeException ex) {
+          _log.error("error handing feed to listener " + listener, ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * The full feed of a snapshot.
+   */
+  private static class FullFeedDelivery extends Delivery {
+
+    private final Snapshot _from;
+
+    public FullFeedDelivery(List<GtfsRealtimeIncrementalListener> listeners,
+        Snapshot from) {
+      super(listeners);
+      _from = from;
+    }
+
+    @Override
+    protected FeedMessage buildFeed() {
+      return getFeed(_from);
+    }
+  }
+
+  /**
+   * The part of the full feed of a snapshot a subscription is interested in.
+   */
+  private class SubscriptionFeedDelivery extends Delivery {
+
+    private final Snapshot _from;
+
+    private final GtfsRealtimeSubscription _subscription;
+
+    public SubscriptionFeedDelivery(
+        List<GtfsRealtimeIncrementalListener> listeners, Snapshot from,
+        GtfsRealtimeSubscription subscription) {
+      super(listeners);
+      _from = from;
+      _subscription = subscription;
+    }
+
+    @Override
+    protected FeedMessage buildFeed() {
+      return getFeed(_from, _subscription);
+    }
+  }
+
+  private static class DifferentialFeedDelivery extends Delivery {
+
+    private final FeedMessage _feed;
+
+    public DifferentialFeedDelivery(
+        List<GtfsRealtimeIncrementalListener> listeners, FeedMessage feed) {
+      super(listeners);
+      _feed = feed;
+    }
+
+    @Override
+    protected FeedMessage buildFeed() {
+      return _feed;
+    }
+  }
+
+  /**
+   * The routed part of a differential feed for a subscription, assembled from
+   * the encoded entities.
+   */
+  private static class RoutedFeedDelivery extends Delivery {
+
+    private final FeedHeader _header;
+
+    private final byte[] _encodedHeader;
+
+    private final RoutedEntities _entities;
+
+    public RoutedFeedDelivery(List<GtfsRealtimeIncrementalListener> listeners,
+        FeedHeader header, byte[] encodedHeader, RoutedEntities entities) {
+      super(listeners);
+      _header = header;
+      _encodedHeader = encodedHeader;
+      _entities = entities;
+    }
+
+    @Override
+    protected FeedMessage buildFeed() {
+      FeedMessage.Builder feed = FeedMessage.newBuilder();
+      feed.setHeader(_header);
+      feed.addAllEntity(_entities._entities);
+      return feed.build();
+    }
+
+    @Override
+    protected byte[] encode(FeedMessage feed) {
+      return GtfsRealtimeEncodedFeed.assemble(_encodedHeader,
+          _entities._encoded);
+    }
+  }
+
+  /**
+   * The full feed after a change: its header, carrying the incremental index
+   * of the last differential feed applied, and its entities. Immutable.
+   */
+  private static class Snapshot {
+
+    private final long _version;
+
+    private final long _incrementalIndex;
+
+    private final FeedHeader _header;
+
+    private final GtfsRealtimeEntities _entities;
+
+    /**
+     * The full feed, built by the first reader asking for it.
+     */
+    private volatile FeedMessage _feed;
+
+    public Snapshot(long version, long incrementalIndex, FeedHeader header,
+        GtfsRealtimeEntities entities) {
+      _version = version;
+      _incrementalIndex = incrementalIndex;
+      _header = header;
+      _entities = entities;
+    }
+  }
+
+  GtfsRealtimeExporterImpl() {
+    publish();
+  }
+
   /****
    * {@link GtfsRealtimeSink} Interface
    ****/
 
   @Override
-  public synchronized void setFeedHeaderDefaults(FeedHeader header) {
-    _header = header;
-    _cachedFeed = null;
+  public void setFeedHeaderDefaults(FeedHeader header) {
+    _dispatchLock.lock();
+    try {
+      _version++;
+      _header = header;
+      _version++;
+      publish();
+    } finally {
+      _dispatchLock.unlock();
+    }
   }
 
   @Override
-  public synchronized void handleFullUpdate(GtfsRealtimeFullUpdate update) {
-    _cachedFeed = null;
-    _feedEntities.clear();
-    for (FeedEntity entity : update.getEntities()) {
-      _feedEntities.put(entity.getId(), entity);
-    }
-    _incrementalIndex++;
-    FeedMessage feed = getFeed();
-    for (GtfsRealtimeIncrementalListener listener : _listeners) {
-      listener.handleFeed(feed);
+  public void setBatchWindow(long batchWindow) {
+    _batchWindow = batchWindow;
+  }
+
+  @Inject
+  public void setExecutor(@Named(GtfsRealtimeExporterModule.NAME_EXECUTOR)
+  ScheduledExecutorService executor) {
+    _executor = executor;
+  }
+
+  @Override
+  public void setPartitioner(GtfsRealtimePartitioner partitioner) {
+    _partitioner = partitioner;
+  }
+
+  /**
+   * @param encodedFeedInterval minimum time in milliseconds between rebuilds
+   *          of the encoded full feed
+   */
+  public void setEncodedFeedInterval(long encodedFeedInterval) {
+    _encodedFeedInterval = encodedFeedInterval;
+  }
+
+  /**
+   * @param maxRecentDiffs number of differential feeds kept to serve
+   *          {@link #getEncodedFeedSince(long)}
+   */
+  public void setMaxRecentDiffs(int maxRecentDiffs) {
+    _maxRecentDiffs = maxRecentDiffs;
+  }
+
+  @Override
+  public void handleFullUpdate(GtfsRealtimeFullUpdate update) {
+    _dispatchLock.lock();
+    try {
+      // Keep the order in which updates were handed to us
+      flush();
+      _version++;
+      _entities.clear();
+      _partitions.clear();
+      _expirations.clear();
+      for (FeedEntity entity : update.getEntities()) {
+        putEntity(entity);
+      }
+      _incrementalIndex++;
+      // Differential feeds can not be merged across a full update
+      _recentDiffs.clear();
+      _recentDiffCount = 0;
+      _version++;
+      Snapshot snapshot = publish();
+      _deliveries.add(new FullFeedDelivery(_listeners, snapshot));
+      for (Map.Entry<GtfsRealtimeSubscription, List<GtfsRealtimeIncrementalListener>> entry : _subscriptionListeners.entrySet()) {
+        _deliveries.add(new SubscriptionFeedDelivery(entry.getValue(),
+            snapshot, entry.getKey()));
+      }
+    } finally {
+      _dispatchLock.unlock();
     }
+    deliver();
   }
 
   @Override
-  public synchronized void handleIncrementalUpdate(
-      GtfsRealtimeIncrementalUpdate update) {
-    _cachedFeed = null;
+  public void handleIncrementalUpdate(GtfsRealtimeIncrementalUpdate update) {
+    ScheduledExecutorService executor = _executor;
+    if (_batchWindow <= 0 || executor == null) {
+      applyIncrementalUpdate(update);
+      return;
+    }
+    synchronized (_pendingLock) {
+      // The last write per entity wins, a delete wins over earlier updates
+      for (FeedEntity toAdd : update.getUpdatedEntities()) {
+        _pendingDeletes.remove(toAdd.getId());
+        _pendingUpdates.put(toAdd.getId(), toAdd);
+        long expirationTime = update.getExpirationTime(toAdd);
+        if (expirationTime >= 0) {
+          _pendingExpirationTimes.put(toAdd.getId(), expirationTime);
+        } else {
+          _pendingExpirationTimes.remove(toAdd.getId());
+        }
+      }
+      addPendingDeletes(update.getDeletedEntities());
+      _pendingCount++;
+      schedulePendingFlush(executor);
+    }
+  }
 
-    for (FeedEntity toAdd : update.getUpdatedEntities()) {
-      _feedEntities.put(toAdd.getId(), toAdd);
+  /**
+   * Called with _pendingLock held.
+   */
+  private void addPendingDeletes(List<String> ids) {
+    for (String toRemove : ids) {
+      _pendingUpdates.remove(toRemove);
+      _pendingExpirationTimes.remove(toRemove);
+      _pendingDeletes.add(toRemove);
     }
-    for (String toRemove : update.getDeletedEntities()) {
-      _feedEntities.remove(toRemove);
+  }
+
+  /**
+   * Called with _pendingLock held.
+   */
+  private void schedulePendingFlush(ScheduledExecutorService executor) {
+    if (_pendingSince == 0) {
+      _pendingSince = System.currentTimeMillis();
+      executor.schedule(new FlushTask(), _batchWindow, TimeUnit.MILLISECONDS);
     }
+  }
 
-    FeedMessage.Builder feed = FeedMessage.newBuilder();
-    feed.setHeader(createIncrementalHeader());
-    feed.addAllEntity(update.getUpdatedEntities());
-    for (String toRemove : update.getDeletedEntities()) {
-      FeedEntity.Builder entity = FeedEntity.newBuilder();
-      entity.setIsDeleted(true);
-      entity.setId(toRemove);
-      feed.addEntity(entity);
+  private class FlushTask implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        _dispatchLock.lock();
+        try {
+          flush();
+        } finally {
+          _dispatchLock.unlock();
+        }
+        deliver();
+      } catch (Throwable ex) {
+        _log.error("error applying batched incremental update", ex);
+      }
     }
+  }
 
-    FeedMessage differentialFeed = feed.build();
-    for (GtfsRealtimeIncrementalListener listener : _listeners) {
-      listener.handleFeed(differentialFeed);
+  /**
+   * Apply the pending updates as a single incremental update. Called with
+   * _dispatchLock held, so batches are applied in order.
+   */
+  private void flush() {
+    GtfsRealtimeIncrementalUpdate batch = new GtfsRealtimeIncrementalUpdate();
+    int count;
+    long since;
+    synchronized (_pendingLock) {
+      if (_pendingSince == 0) {
+        return;
+      }
+      for (FeedEntity entity : _pendingUpdates.values()) {
+        Long expirationTime = _pendingExpirationTimes.get(entity.getId());
+        if (expirationTime != null) {
+          batch.addUpdatedEntity(entity, expirationTime);
+        } else {
+          batch.addUpdatedEntity(entity);
+        }
+      }
+      for (String id : _pendingDeletes) {
+        batch.addDeletedEntity(id);
+      }
+      count = _pendingCount;
+      since = _pendingSince;
+      _pendingUpdates.clear();
+      _pendingDeletes.clear();
+      _pendingExpirationTimes.clear();
+      _pendingCount = 0;
+      _pendingSince = 0;
+    }
+    applyIncrementalUpdate(batch);
+    if (_log.isDebugEnabled()) {
+      _log.debug("batched " + count + " updates into "
+          + (batch.getUpdatedEntities().size() + batch.getDeletedEntities().size())
+          + " entities, oldest delayed "
+          + (System.currentTimeMillis() - since) + " ms");
+    }
+  }
+
+  private void applyIncrementalUpdate(GtfsRealtimeIncrementalUpdate update) {
+    _dispatchLock.lock();
+    try {
+      FeedMessage.Builder feed = FeedMessage.newBuilder();
+      int size = update.getUpdatedEntities().size()
+          + update.getDeletedEntities().size();
+      String[] ids = new String[size];
+      byte[][] entities = new byte[size][];
+      int i = 0;
+      // Entities for each subscription, routed on the attributes of entities
+      // before and after the update.
+      Map<GtfsRealtimeSubscription, RoutedEntities> routed = _subscriptionListeners.isEmpty()
+          ? null : new HashMap<GtfsRealtimeSubscription, RoutedEntities>();
+      _version++;
+      for (FeedEntity toAdd : update.getUpdatedEntities()) {
+        Set<GtfsRealtimeSubscription> previous = routed == null ? null
+            : getSubscriptions(toAdd.getId());
+        ids[i] = toAdd.getId();
+        entities[i] = putEntity(toAdd);
+        long expirationTime = update.getExpirationTime(toAdd);
+        if (expirationTime >= 0) {
+          scheduleExpiration(toAdd.getId(), expirationTime);
+        } else {
+          _expirations.cancel(toAdd.getId());
+        }
+        feed.addEntity(toAdd);
+        if (routed != null) {
+          Set<GtfsRealtimeSubscription> current = getSubscriptions(toAdd.getId());
+          for (GtfsRealtimeSubscription subscription : current) {
+            route(routed, subscription, toAdd, entities[i]);
+          }
+          // No longer of interest to the subscription, as far as it knows the
+          // entity is deleted.
+          previous.removeAll(current);
+          if (!previous.isEmpty()) {
+            FeedEntity deleted = deletedEntity(toAdd.getId());
+            byte[] encoded = GtfsRealtimeEncodedFeed.encodeEntity(deleted);
+            for (GtfsRealtimeSubscription subscription : previous) {
+              route(routed, subscription, deleted, encoded);
+            }
+          }
+        }
+        i++;
+      }
+      for (String toRemove : update.getDeletedEntities()) {
+        Set<GtfsRealtimeSubscription> previous = routed == null ? null
+            : getSubscriptions(toRemove);
+        _entities.remove(toRemove);
+        _partitions.remove(toRemove);
+        _expirations.cancel(toRemove);
+        FeedEntity deleted = deletedEntity(toRemove);
+        feed.addEntity(deleted);
+        ids[i] = toRemove;
+        entities[i] = GtfsRealtimeEncodedFeed.encodeEntity(deleted);
+        if (routed != null) {
+          for (GtfsRealtimeSubscription subscription : previous) {
+            route(routed, subscription, deleted, entities[i]);
+          }
+        }
+        i++;
+      }
+      long incrementalIndex = _incrementalIndex;
+      FeedHeader header = createIncrementalHeader(incrementalIndex);
+      feed.setHeader(header);
+      _incrementalIndex++;
+      _recentDiffs.put(incrementalIndex, new RecentDiff(incrementalIndex, ids,
+          entities));
+      _recentDiffCount++;
+      while (_recentDiffCount > _maxRecentDiffs) {
+        _recentDiffs.pollFirstEntry();
+        _recentDiffCount--;
+      }
+      _version++;
+      publish();
+      _deliveries.add(new DifferentialFeedDelivery(_listeners, feed.build()));
+      if (routed != null && !routed.isEmpty()) {
+        byte[] encodedHeader = GtfsRealtimeEncodedFeed.encodeHeader(header);
+        for (Map.Entry<GtfsRealtimeSubscription, RoutedEntities> entry : routed.entrySet()) {
+          _deliveries.add(new RoutedFeedDelivery(
+              _subscriptionListeners.get(entry.getKey()), header,
+              encodedHeader, entry.getValue()));
+        }
+      }
+    } finally {
+      _dispatchLock.unlock();
+    }
+    deliver();
+  }
+
+  private class ExpirationTask implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        expire(System.currentTimeMillis());
+      } catch (Throwable ex) {
+        _log.error("error expiring entities", ex);
+      }
+    }
+  }
+
+  /**
+   * Delete the entities whose expiration time has passed, in the next
+   * differential feed.
+   */
+  void expire(long now) {
+    _dispatchLock.lock();
+    try {
+      List<String> expired = _expirations.expire(now);
+      if (expired.isEmpty()) {
+        return;
+      }
+      ScheduledExecutorService executor = _executor;
+      if (_batchWindow > 0 && executor != null) {
+        synchronized (_pendingLock) {
+          // Updated meanwhile, the pending update schedules a new expiration
+          expired.removeAll(_pendingUpdates.keySet());
+          if (expired.isEmpty()) {
+            return;
+          }
+          addPendingDeletes(expired);
+          _pendingCount++;
+          schedulePendingFlush(executor);
+        }
+      } else {
+        GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+        for (String id : expired) {
+          update.addDeletedEntity(id);
+        }
+        applyIncrementalUpdate(update);
+      }
+      if (_log.isDebugEnabled()) {
+        _log.debug("expired " + expired.size() + " entities");
+      }
+    } finally {
+      _dispatchLock.unlock();
+    }
+    deliver();
+  }
+
+  /**
+   * Called with _dispatchLock held. The wheel is only turned once an entity
+   * expires.
+   */
+  private void scheduleExpiration(String id, long expirationTime) {
+    _expirations.schedule(id, expirationTime);
+    ScheduledExecutorService executor = _executor;
+    if (_expirationTask == null && executor != null) {
+      _expirationTask = executor.scheduleAtFixedRate(new ExpirationTask(),
+          EXPIRATION_TICK, EXPIRATION_TICK, TimeUnit.MILLISECONDS);
     }
-    _incrementalIndex++;
   }
 
   /****
@@ -112,42 +746,469 @@ class GtfsRealtimeExporterImpl implements AlertsExporter, TripUpdatesExporter,
    ****/
 
   @Override
-  public synchronized FeedMessage getFeed() {
-    if (_cachedFeed == null) {
-      FeedHeader.Builder header = FeedHeader.newBuilder();
-      if (_header != null) {
-        header.mergeFrom(_header);
+  public FeedMessage getFeed() {
+    return getFeed(_snapshot.get());
+  }
+
+  @Override
+  public GtfsRealtimeEncodedFeed getEncodedFeed() {
+    Snapshot snapshot = _snapshot.get();
+    GtfsRealtimeEncodedFeed encoded = _encodedFeed;
+    if (isCurrent(encoded, snapshot)) {
+      return encoded;
+    }
+    // Only one thread encodes, concurrent requests are served the previous
+    // version meanwhile.
+    if (encoded != null && !_encodeLock.tryLock()) {
+      return encoded;
+    } else if (encoded == null) {
+      _encodeLock.lock();
+    }
+    try {
+      snapshot = _snapshot.get();
+      encoded = _encodedFeed;
+      if (isCurrent(encoded, snapshot)) {
+        return encoded;
       }
-      header.setIncrementality(Incrementality.FULL_DATASET);
-      header.setTimestamp(System.currentTimeMillis() / 1000);
-      header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+      byte[] header = GtfsRealtimeEncodedFeed.encodeHeader(snapshot._header);
+      encoded = new GtfsRealtimeEncodedFeed(header,
+          snapshot._entities.getEncoded(), ETAG_PREFIX + "-"
+              + snapshot._version, snapshot._header.getTimestamp() * 1000,
+          snapshot._version);
+      _encodedFeed = encoded;
+      return encoded;
+    } finally {
+      _encodeLock.unlock();
+    }
+  }
 
-      setIncrementalIndex(header, _incrementalIndex - 1);
+  @Override
+  public GtfsRealtimeEncodedFeed getEncodedFeed(GtfsRealtimeFeedFilter filter) {
+    if (filter.isAll()) {
+      return getEncodedFeed();
+    }
+    Snapshot snapshot = _snapshot.get();
+    GtfsRealtimeEncodedFeed encoded = _partitionFeeds.get(filter);
+    if (isCurrent(encoded, snapshot)) {
+      return encoded;
+    }
+    List<Entry> entries = select(snapshot, filter);
+    // Selected by scanning a snapshot the feed moved on from, not cached
+    boolean indexed = entries != null;
+    if (!indexed) {
+      entries = new ArrayList<Entry>();
+      for (Entry entry : snapshot._entities.getEntries()) {
+        if (entry.matches(filter)) {
+          entries.add(entry);
+        }
+      }
+    }
+    List<byte[]> contents = new ArrayList<byte[]>(entries.size());
+    for (Entry entry : entries) {
+      contents.add(entry.getEncoded());
+    }
+    byte[] header = GtfsRealtimeEncodedFeed.encodeHeader(snapshot._header);
+    encoded = new GtfsRealtimeEncodedFeed(header, contents, ETAG_PREFIX + "-"
+        + snapshot._version + "-" + Integer.toHexString(filter.hashCode()),
+        snapshot._header.getTimestamp() * 1000, snapshot._version);
+    if (indexed && !filter.hasBoundingBox() && !contents.isEmpty()) {
+      _partitionFeeds.put(filter, encoded);
+    }
+    return encoded;
+  }
 
-      FeedMessage.Builder feed = FeedMessage.newBuilder();
-      feed.setHeader(header);
-      feed.addAllEntity(_feedEntities.values());
-      _cachedFeed = feed.build();
+  @Override
+  public GtfsRealtimeEncodedFeed getEncodedFeedSince(long incrementalIndex) {
+    Snapshot snapshot = _snapshot.get();
+    long latest = snapshot._incrementalIndex;
+    if (incrementalIndex > latest) {
+      return null;
+    }
+    // Diff n brings a client from index n - 1 to n. A diff missing in between
+    // was dropped, or the diffs were cleared by a full update.
+    Map<String, byte[]> merged = new HashMap<String, byte[]>();
+    long expected = incrementalIndex + 1;
+    for (RecentDiff diff : _recentDiffs.subMap(incrementalIndex, false,
+        latest, true).values()) {
+      if (diff._incrementalIndex != expected) {
+        return null;
+      }
+      for (int i = 0; i < diff._ids.length; i++) {
+        merged.put(diff._ids[i], diff._entities[i]);
+      }
+      expected++;
+    }
+    if (expected != latest + 1) {
+      return null;
     }
-    return _cachedFeed;
+    FeedHeader header = createIncrementalHeader(latest);
+    return new GtfsRealtimeEncodedFeed(
+        GtfsRealtimeEncodedFeed.encodeHeader(header), merged.values(),
+        ETAG_PREFIX + "-" + incrementalIndex + "-" + latest,
+        header.getTimestamp() * 1000, latest);
   }
 
   @Override
   public void addIncrementalListener(GtfsRealtimeIncrementalListener listener) {
-    _listeners.add(listener);
-    listener.handleFeed(getFeed());
+    // Queued with the dispatch lock held, no update can slip in between the
+    // full feed and the first differential feed the listener receives.
+    _dispatchLock.lock();
+    try {
+      _listeners = with(_listeners, listener);
+      _deliveries.add(new FullFeedDelivery(ImmutableList.of(listener),
+          _snapshot.get()));
+    } finally {
+      _dispatchLock.unlock();
+    }
+    deliver();
+  }
+
+  @Override
+  public void addIncrementalListener(GtfsRealtimeIncrementalListener listener,
+      GtfsRealtimeSubscription subscription) {
+    _dispatchLock.lock();
+    try {
+      List<GtfsRealtimeIncrementalListener> listeners = _subscriptionListeners.get(subscription);
+      if (listeners == null) {
+        listeners = ImmutableList.of();
+        for (String key : subscription.getKeys()) {
+          Set<GtfsRealtimeSubscription> subscriptions = _subscriptionsByKey.get(key);
+          if (subscriptions == null) {
+            subscriptions = new HashSet<GtfsRealtimeSubscription>();
+            _subscriptionsByKey.put(key, subscriptions);
+          }
+          subscriptions.add(subscription);
+        }
+      }
+      _subscriptionListeners.put(subscription, with(listeners, listener));
+      _deliveries.add(new SubscriptionFeedDelivery(ImmutableList.of(listener),
+          _snapshot.get(), subscription));
+    } finally {
+      _dispatchLock.unlock();
+    }
+    deliver();
   }
 
   @Override
   public void removeIncrementalListener(GtfsRealtimeIncrementalListener listener) {
-    _listeners.remove(listener);
+    _dispatchLock.lock();
+    try {
+      if (_listeners.contains(listener)) {
+        _listeners = without(_listeners, listener);
+        return;
+      }
+      Iterator<Map.Entry<GtfsRealtimeSubscription, List<GtfsRealtimeIncrementalListener>>> it = _subscriptionListeners.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<GtfsRealtimeSubscription, List<GtfsRealtimeIncrementalListener>> entry = it.next();
+        if (!entry.getValue().contains(listener)) {
+          continue;
+        }
+        List<GtfsRealtimeIncrementalListener> listeners = without(
+            entry.getValue(), listener);
+        if (!listeners.isEmpty()) {
+          entry.setValue(listeners);
+          continue;
+        }
+        it.remove();
+        for (String key : entry.getKey().getKeys()) {
+          Set<GtfsRealtimeSubscription> subscriptions = _subscriptionsByKey.get(key);
+          subscriptions.remove(entry.getKey());
+          if (subscriptions.isEmpty()) {
+            _subscriptionsByKey.remove(key);
+          }
+        }
+      }
+    } finally {
+      _dispatchLock.unlock();
+    }
+  }
+
+  @Override
+  public FeedMessage getFeed(GtfsRealtimeSubscription subscription) {
+    return getFeed(_snapshot.get(), subscription);
   }
 
   /***
    * Private Methods
    ****/
 
-  private FeedHeader createIncrementalHeader() {
+  /**
+   * Publish the feed as changed so far to readers. Called with _dispatchLock
+   * held, once _version is even again.
+   */
+  private Snapshot publish() {
+    Snapshot snapshot = new Snapshot(_version, _incrementalIndex - 1,
+        createFullHeader(), _entities.build());
+    _snapshot.set(snapshot);
+    return snapshot;
+  }
+
+  private static FeedMessage getFeed(Snapshot snapshot) {
+    FeedMessage feed = snapshot._feed;
+    if (feed == null) {
+      FeedMessage.Builder builder = FeedMessage.newBuilder();
+      builder.setHeader(snapshot._header);
+      builder.addAllEntity(snapshot._entities.getEntities());
+      // Concurrent readers may each build it, the feeds are equal
+      feed = builder.build();
+      snapshot._feed = feed;
+    }
+    return feed;
+  }
+
+  /**
+   * Called outside of _dispatchLock, a full update hands the subscription
+   * feeds to listeners this way.
+   */
+  private FeedMessage getFeed(Snapshot snapshot,
+      GtfsRealtimeSubscription subscription) {
+    FeedMessage.Builder feed = FeedMessage.newBuilder();
+    feed.setHeader(snapshot._header);
+    long version = _version;
+    Set<String> ids = _partitions.select(subscription);
+    if (version == snapshot._version && _version == version) {
+      for (String id : ids) {
+        Entry entry = snapshot._entities.get(id);
+        if (entry != null) {
+          feed.addEntity(entry.getEntity());
+        }
+      }
+    } else {
+      // The index moved on from the snapshot, entities may have left it
+      Set<String> keys = subscription.getKeys();
+      for (Entry entry : snapshot._entities.getEntries()) {
+        if (!Collections.disjoint(keys, getKeys(entry))) {
+          feed.addEntity(entry.getEntity());
+        }
+      }
+    }
+    return feed.build();
+  }
+
+  /**
+   * @return entries of the snapshot matching the filter, selected through
+   *         _partitions, or null when the feed changed since the snapshot and
+   *         the index may miss entities of the snapshot
+   */
+  private List<Entry> select(Snapshot snapshot, GtfsRealtimeFeedFilter filter) {
+    long version = _version;
+    List<String> ids = _partitions.select(filter);
+    if (version != snapshot._version || _version != version) {
+      return null;
+    }
+    List<Entry> entries = new ArrayList<Entry>(ids.size());
+    for (String id : ids) {
+      Entry entry = snapshot._entities.get(id);
+      if (entry != null) {
+        entries.add(entry);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Hand the queued feeds to their listeners, unless another thread is
+   * already doing so and will take these too. Called after _dispatchLock is
+   * released; nested in a change still holding it, the outermost call
+   * delivers.
+   */
+  private void deliver() {
+    if (_dispatchLock.isHeldByCurrentThread()) {
+      return;
+    }
+    // Checked again after releasing the delivery lock, a feed queued while
+    // the previous holder was finishing would be left behind otherwise.
+    while (!_deliveries.isEmpty() && _deliveryLock.tryLock()) {
+      try {
+        Delivery delivery;
+        while ((delivery = _deliveries.poll()) != null) {
+          delivery.deliver();
+        }
+      } finally {
+        _deliveryLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * For tests, listeners must never be called with the lock held.
+   */
+  boolean isDispatchLockHeldByCurrentThread() {
+    return _dispatchLock.isHeldByCurrentThread();
+  }
+
+  private static List<GtfsRealtimeIncrementalListener> with(
+      List<GtfsRealtimeIncrementalListener> listeners,
+      GtfsRealtimeIncrementalListener listener) {
+    return ImmutableList.<GtfsRealtimeIncrementalListener> builder().addAll(
+        listeners).add(listener).build();
+  }
+
+  private static List<GtfsRealtimeIncrementalListener> without(
+      List<GtfsRealtimeIncrementalListener> listeners,
+      GtfsRealtimeIncrementalListener listener) {
+    List<GtfsRealtimeIncrementalListener> remaining = new ArrayList<GtfsRealtimeIncrementalListener>(
+        listeners);
+    remaining.remove(listener);
+    return ImmutableList.copyOf(remaining);
+  }
+
+  private static void route(
+      Map<GtfsRealtimeSubscription, RoutedEntities> routed,
+      GtfsRealtimeSubscription subscription, FeedEntity entity, byte[] encoded) {
+    RoutedEntities entities = routed.get(subscription);
+    if (entities == null) {
+      entities = new RoutedEntities();
+      routed.put(subscription, entities);
+    }
+    entities._entities.add(entity);
+    entities._encoded.add(encoded);
+  }
+
+  /**
+   * @return subscriptions interested in the entity as currently stored
+   */
+  private Set<GtfsRealtimeSubscription> getSubscriptions(String id) {
+    Set<GtfsRealtimeSubscription> subscriptions = new HashSet<GtfsRealtimeSubscription>();
+    Entry entry = _entities.get(id);
+    if (entry != null) {
+      for (String key : getKeys(entry)) {
+        Set<GtfsRealtimeSubscription> forKey = _subscriptionsByKey.get(key);
+        if (forKey != null) {
+          subscriptions.addAll(forKey);
+        }
+      }
+    }
+    return subscriptions;
+  }
+
+  /**
+   * @return keys of the agency, route, trips and stops the entity refers to,
+   *         as used in {@link GtfsRealtimeSubscription#getKeys()}
+   */
+  private static Set<String> getKeys(Entry entry) {
+    Set<String> keys = new HashSet<String>(entry.getReferences());
+    String agencyId = entry.getAgencyId();
+    if (agencyId != null) {
+      keys.add(GtfsRealtimeSubscription.agencyKey(agencyId));
+    }
+    String routeId = entry.getRouteId();
+    if (routeId != null) {
+      keys.add(GtfsRealtimeSubscription.routeKey(routeId));
+    }
+    return keys;
+  }
+
+  /**
+   * @return keys of the trips, stops, routes and agencies the entity refers
+   *         to, besides the agency and route it is partitioned by
+   */
+  private static Set<String> getReferences(FeedEntity entity) {
+    Set<String> keys = new HashSet<String>();
+    if (entity.hasTripUpdate()) {
+      TripUpdate tripUpdate = entity.getTripUpdate();
+      addKeys(keys, tripUpdate.getTrip());
+      for (StopTimeUpdate stopTimeUpdate : tripUpdate.getStopTimeUpdateList()) {
+        if (stopTimeUpdate.hasStopId()) {
+          keys.add(GtfsRealtimeSubscription.stopKey(stopTimeUpdate.getStopId()));
+        }
+      }
+    }
+    if (entity.hasVehicle()) {
+      VehiclePosition vehicle = entity.getVehicle();
+      addKeys(keys, vehicle.getTrip());
+      if (vehicle.hasStopId()) {
+        keys.add(GtfsRealtimeSubscription.stopKey(vehicle.getStopId()));
+      }
+    }
+    if (entity.hasAlert()) {
+      for (EntitySelector selector : entity.getAlert().getInformedEntityList()) {
+        if (selector.hasAgencyId()) {
+          keys.add(GtfsRealtimeSubscription.agencyKey(selector.getAgencyId()));
+        }
+        if (selector.hasRouteId()) {
+          keys.add(GtfsRealtimeSubscription.routeKey(selector.getRouteId()));
+        }
+        if (selector.hasStopId()) {
+          keys.add(GtfsRealtimeSubscription.stopKey(selector.getStopId()));
+        }
+        if (selector.hasTrip()) {
+          addKeys(keys, selector.getTrip());
+        }
+      }
+    }
+    return keys;
+  }
+
+  private static void addKeys(Set<String> keys, TripDescriptor trip) {
+    if (trip.hasTripId()) {
+      keys.add(GtfsRealtimeSubscription.tripKey(trip.getTripId()));
+    }
+    if (trip.hasRouteId()) {
+      keys.add(GtfsRealtimeSubscription.routeKey(trip.getRouteId()));
+    }
+  }
+
+  private static FeedEntity deletedEntity(String id) {
+    FeedEntity.Builder entity = FeedEntity.newBuilder();
+    entity.setIsDeleted(true);
+    entity.setId(id);
+    return entity.build();
+  }
+
+  private boolean isCurrent(GtfsRealtimeEncodedFeed encoded, Snapshot snapshot) {
+    return encoded != null
+        && (encoded.getVersion() == snapshot._version || System.currentTimeMillis()
+            - encoded.getCreated() < _encodedFeedInterval);
+  }
+
+  /**
+   * Store the entity with its encoding and partition keys. Without a
+   * partitioner, entities are only partitioned by the route of their trip, if
+   * any.
+   */
+  private byte[] putEntity(FeedEntity entity) {
+    byte[] encoded = GtfsRealtimeEncodedFeed.encodeEntity(entity);
+    GtfsRealtimePartitioner partitioner = _partitioner;
+    String agencyId = null;
+    String routeId = null;
+    if (partitioner != null) {
+      agencyId = partitioner.getAgencyId(entity);
+      routeId = partitioner.getRouteId(entity);
+    } else if (entity.hasTripUpdate()
+        && entity.getTripUpdate().getTrip().hasRouteId()) {
+      routeId = entity.getTripUpdate().getTrip().getRouteId();
+    } else if (entity.hasVehicle() && entity.getVehicle().getTrip().hasRouteId()) {
+      routeId = entity.getVehicle().getTrip().getRouteId();
+    }
+    double[] position = null;
+    if (entity.hasVehicle() && entity.getVehicle().hasPosition()) {
+      Position vehiclePosition = entity.getVehicle().getPosition();
+      position = new double[] {
+          vehiclePosition.getLongitude(), vehiclePosition.getLatitude()};
+    }
+    Set<String> references = getReferences(entity);
+    _entities.put(new Entry(entity, encoded, agencyId, routeId, position,
+        references));
+    _partitions.put(entity.getId(), agencyId, routeId, position, references);
+    return encoded;
+  }
+
+  private FeedHeader createFullHeader() {
+    FeedHeader.Builder header = FeedHeader.newBuilder();
+    if (_header != null) {
+      header.mergeFrom(_header);
+    }
+    header.setIncrementality(Incrementality.FULL_DATASET);
+    header.setTimestamp(System.currentTimeMillis() / 1000);
+    header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
+
+    setIncrementalIndex(header, _incrementalIndex - 1);
+
+    return header.build();
+  }
+
+  private FeedHeader createIncrementalHeader(long incrementalIndex) {
     FeedHeader.Builder header = FeedHeader.newBuilder();
     if (_header != null) {
       header.mergeFrom(_header);
@@ -156,7 +1217,7 @@ class GtfsRealtimeExporterImpl implements AlertsExporter, TripUpdatesExporter,
     header.setTimestamp(System.currentTimeMillis() / 1000);
     header.setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION);
 
-    setIncrementalIndex(header, _incrementalIndex);
+    setIncrementalIndex(header, incrementalIndex);
 
     return header.build();
   }
@@ -0,0 +1,146 @@
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.Arrays;
+
+import com.google.common.base.Objects;
+
+/**
+ * Selects the part of a feed belonging to an agency, a route, and/or with a
+ * vehicle position within a bounding box. Criteria that are set must all
+ * match.
+ */
+public final class GtfsRealtimeFeedFilter {
+
+  private final String _agencyId;
+
+  private final String _routeId;
+
+  private final double[] _bbox;
+
+  private GtfsRealtimeFeedFilter(String agencyId, String routeId, double[] bbox) {
+    _agencyId = agencyId;
+    _routeId = routeId;
+    _bbox = bbox;
+  }
+
+  public static GtfsRealtimeFeedFilter all() {
+    return new GtfsRealtimeFeedFilter(null, null, null);
+  }
+
+  public GtfsRealtimeFeedFilter withAgencyId(String agencyId) {
+    return new GtfsRealtimeFeedFilter(agencyId, _routeId, _bbox);
+  }
+
+  public GtfsRealtimeFeedFilter withRouteId(String routeId) {
+    return new GtfsRealtimeFeedFilter(_agencyId, routeId, _bbox);
+  }
+
+  /**
+   * @throws IllegalArgumentException when a bound is not a number or outside
+   *           -180..180 degrees longitude or -90..90 degrees latitude, or the
+   *           box is empty
+   */
+  public GtfsRealtimeFeedFilter withBoundingBox(double minLon, double minLat,
+      double maxLon, double maxLat) {
+    // Comparisons with NaN are false, so NaN is rejected too
+    if (!(minLon >= -180 && maxLon <= 180 && minLat >= -90 && maxLat <= 90)) {
+      throw new IllegalArgumentException(
+          "bounding box outside -180,-90,180,90");
+    }
+    if (minLon > maxLon || minLat > maxLat) {
+      throw new IllegalArgumentException("empty bounding box");
+    }
+    return new GtfsRealtimeFeedFilter(_agencyId, _routeId, new double[] {
+        minLon, minLat, maxLon, maxLat});
+  }
+
+  /**
+   * @param bbox "minLon,minLat,maxLon,maxLat", in WGS84 degrees
+   */
+  public GtfsRealtimeFeedFilter withBoundingBox(String bbox) {
+    String[] values = bbox.split(",");
+    if (values.length != 4) {
+      throw new IllegalArgumentException("bbox must be minLon,minLat,maxLon,maxLat");
+    }
+    return withBoundingBox(Double.parseDouble(values[0]),
+        Double.parseDouble(values[1]), Double.parseDouble(values[2]),
+        Double.parseDouble(values[3]));
+  }
+
+  public String getAgencyId() {
+    return _agencyId;
+  }
+
+  public String getRouteId() {
+    return _routeId;
+  }
+
+  public boolean hasBoundingBox() {
+    return _bbox != null;
+  }
+
+  public boolean isAll() {
+    return _agencyId == null && _routeId == null && _bbox == null;
+  }
+
+  public double getMinLon() {
+    return _bbox[0];
+  }
+
+  public double getMinLat() {
+    return _bbox[1];
+  }
+
+  public double getMaxLon() {
+    return _bbox[2];
+  }
+
+  public double getMaxLat() {
+    return _bbox[3];
+  }
+
+  /**
+   * @param agencyId agency of an entity, may be null
+   * @param routeId route of an entity, may be null
+   * @param position lon, lat of the vehicle of an entity, null if it has none
+   */
+  public boolean matches(String agencyId, String routeId, double[] position) {
+    if (_agencyId != null && !_agencyId.equals(agencyId)) {
+      return false;
+    }
+    if (_routeId != null && !_routeId.equals(routeId)) {
+      return false;
+    }
+    if (_bbox != null) {
+      return position != null && position[0] >= _bbox[0]
+          && position[1] >= _bbox[1] && position[0] <= _bbox[2]
+          && position[1] <= _bbox[3];
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(_agencyId, _routeId)
+        + (_bbox == null ? 0 : Arrays.hashCode(_bbox));
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (!(o instanceof GtfsRealtimeFeedFilter))
+      return false;
+    GtfsRealtimeFeedFilter other = (GtfsRealtimeFeedFilter) o;
+    return Objects.equal(_agencyId, other._agencyId)
+        && Objects.equal(_routeId, other._routeId)
+        && Arrays.equals(_bbox, other._bbox);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this).omitNullValues().add("agencyId",
+        _agencyId).add("routeId", _routeId).add("bbox",
+        _bbox == null ? null : Arrays.toString(_bbox)).toString();
+  }
+}
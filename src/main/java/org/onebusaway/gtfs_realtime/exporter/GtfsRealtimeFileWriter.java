@@ -15,11 +15,13 @@
  */
 package org.onebusaway.gtfs_realtime.exporter;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -32,11 +34,14 @@ import javax.inject.Named;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.protobuf.Message;
+import com.google.common.base.Charsets;
 
 /**
  * Provides functionality for periodically writing a GTFS-realtime feed to an
- * output file.
+ * output file. The file is only rewritten when the feed changed, and replaced
+ * atomically, so readers never see a partially written feed. Optionally a
+ * gzipped copy (path + ".gz") and a JSON metadata sidecar (path + ".json")
+ * with the incremental index, timestamp and entity tag are written as well.
  * 
  * @author bdferris
  * 
@@ -55,6 +60,15 @@ public class GtfsRealtimeFileWriter {
 
   private ScheduledFuture<?> _task;
 
+  private boolean _gzip = false;
+
+  private boolean _metadata = false;
+
+  /**
+   * Version of the last feed written, -1 when none was written yet.
+   */
+  private long _writtenVersion = -1;
+
   public void setSource(GtfsRealtimeSource source) {
     _source = source;
   }
@@ -80,6 +94,20 @@ public class GtfsRealtimeFileWriter {
     _period = timeInSeconds;
   }
 
+  /**
+   * @param gzip whether to write a gzipped copy of the feed as well
+   */
+  public void setGzip(boolean gzip) {
+    _gzip = gzip;
+  }
+
+  /**
+   * @param metadata whether to write a JSON metadata sidecar as well
+   */
+  public void setMetadata(boolean metadata) {
+    _metadata = metadata;
+  }
+
   @PostConstruct
   public void start() {
     _task = _executor.scheduleAtFixedRate(new TaskEntryPoint(), 0, _period,
@@ -95,14 +123,54 @@ public class GtfsRealtimeFileWriter {
   }
 
   protected void writeMessageToFile() throws IOException {
-    Message message = _source.getFeed();
-    File temp = File.createTempFile(_path.getName(), ".tmp");
-    OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
-    message.writeTo(out);
-    if (!temp.renameTo(_path)){
-    	throw new IOException("Failed to move temporary file");
+    GtfsRealtimeEncodedFeed feed = _source.getEncodedFeed();
+    if (feed.getVersion() == _writtenVersion) {
+      return;
+    }
+    File path = _path.getAbsoluteFile();
+    write(path, feed, null);
+    if (_gzip) {
+      write(new File(path.getPath() + ".gz"), null, feed.getGzippedBytes());
+    }
+    // Last, so it never describes a feed that is not in place yet
+    if (_metadata) {
+      write(new File(path.getPath() + ".json"), null,
+          getMetadata(feed).getBytes(Charsets.UTF_8));
     }
-    out.close();
+    _writtenVersion = feed.getVersion();
+  }
+
+  /**
+   * Write either the feed or the bytes to a temporary file next to path, so
+   * it is on the same file system, flush it to disk and move it into place.
+   */
+  private static void write(File path, GtfsRealtimeEncodedFeed feed,
+      byte[] bytes) throws IOException {
+    File temp = new File(path.getParentFile(), "." + path.getName() + ".tmp");
+    FileOutputStream out = new FileOutputStream(temp);
+    try {
+      FileChannel channel = out.getChannel();
+      if (feed != null) {
+        feed.writeTo(channel);
+      } else {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+      channel.force(true);
+    } finally {
+      out.close();
+    }
+    Files.move(temp.toPath(), path.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String getMetadata(GtfsRealtimeEncodedFeed feed) {
+    return "{\"incrementalIndex\":" + feed.getIncrementalIndex()
+        + ",\"timestamp\":" + feed.getLastModified() / 1000
+        + ",\"etag\":" + feed.getEtag(false)
+        + ",\"length\":" + feed.getLength() + "}\n";
   }
 
   private class TaskEntryPoint implements Runnable {
@@ -32,7 +32,16 @@ public interface GtfsRealtimeIncrementalListener {
    * updates to the most-recent full dataset (as indicated by a
    * {@link Incrementality#DIFFERENTIAL} value in the header).
    * 
+   * The same feed and encoded bytes are handed to every listener. Feeds are
+   * handed over one at a time, in the order the updates were applied, after
+   * the source released its lock, possibly by the thread applying a later
+   * update. Implementations should not block: a listener that waits on a slow
+   * consumer delays every later feed to every listener, though not the
+   * updates themselves or readers of the source.
+   * 
    * @param feed the feed update
+   * @param encoded the feed update encoded with {@link FeedMessage#toByteArray()},
+   *          shared between listeners and not to be modified
    */
-  public void handleFeed(FeedMessage feed);
+  public void handleFeed(FeedMessage feed, byte[] encoded);
 }
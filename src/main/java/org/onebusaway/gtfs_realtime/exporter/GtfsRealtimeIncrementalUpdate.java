@@ -16,7 +16,9 @@
 package org.onebusaway.gtfs_realtime.exporter;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
 
@@ -38,10 +40,26 @@ public class GtfsRealtimeIncrementalUpdate {
 
   private long expirationTime = -1;
 
+  private Map<String, Long> entityExpirationTimes = null;
+
   public void addUpdatedEntity(FeedEntity entity) {
     updatedEntities.add(entity);
   }
 
+  /**
+   * @param entity
+   * @param expirationTimeInMilliseconds time after which the exporter deletes
+   *          the entity, unless it is updated again before
+   */
+  public void addUpdatedEntity(FeedEntity entity,
+      long expirationTimeInMilliseconds) {
+    updatedEntities.add(entity);
+    if (entityExpirationTimes == null) {
+      entityExpirationTimes = new HashMap<String, Long>();
+    }
+    entityExpirationTimes.put(entity.getId(), expirationTimeInMilliseconds);
+  }
+
   public List<FeedEntity> getUpdatedEntities() {
     return updatedEntities;
   }
@@ -58,8 +76,23 @@ public class GtfsRealtimeIncrementalUpdate {
     return expirationTime;
   }
 
+  /**
+   * @param expirationTimeInMilliseconds expiration time of the updated
+   *          entities added without one of their own
+   */
   public void setExpirationTime(long expirationTimeInMilliseconds) {
     this.expirationTime = expirationTimeInMilliseconds;
   }
 
+  /**
+   * @return expiration time of the updated entity in milliseconds, or -1 if it
+   *         does not expire
+   */
+  public long getExpirationTime(FeedEntity entity) {
+    Long entityExpirationTime = entityExpirationTimes == null ? null
+        : entityExpirationTimes.get(entity.getId());
+    return entityExpirationTime == null ? expirationTime
+        : entityExpirationTime;
+  }
+
 }
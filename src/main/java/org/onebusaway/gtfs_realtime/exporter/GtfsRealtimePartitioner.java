@@ -0,0 +1,23 @@
+package org.onebusaway.gtfs_realtime.exporter;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+
+/**
+ * Tells the exporter which agency and route a feed entity belongs to, for
+ * feeds partitioned by {@link GtfsRealtimeFeedFilter}. Called once for every
+ * updated entity, while the update is applied.
+ *
+ * @see GtfsRealtimeSink#setPartitioner(GtfsRealtimePartitioner)
+ */
+public interface GtfsRealtimePartitioner {
+
+  /**
+   * @return agency id of the entity, or null if it belongs to no agency
+   */
+  public String getAgencyId(FeedEntity entity);
+
+  /**
+   * @return route id of the entity, or null if it belongs to no route
+   */
+  public String getRouteId(FeedEntity entity);
+}
@@ -0,0 +1,230 @@
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Secondary indexes on the entities of an exporter: by agency, by route, by a
+ * grid over vehicle positions, and by the trips, stops, routes and agencies
+ * they refer to. Changed by a single writer at a time, read concurrently.
+ */
+class GtfsRealtimePartitions {
+
+  /**
+   * Grid cell size in degrees, about 3.5 by 5.5 km in the Netherlands.
+   */
+  private static final double CELL_SIZE = 0.05;
+
+  /**
+   * Bounding boxes covering more cells are answered by scanning all entities.
+   */
+  private static final int MAX_CELLS = 4096;
+
+  private static class Keys {
+
+    private final String _agencyId;
+
+    private final String _routeId;
+
+    private final double[] _position;
+
+    private final Set<String> _references;
+
+    public Keys(String agencyId, String routeId, double[] position,
+        Set<String> references) {
+      _agencyId = agencyId;
+      _routeId = routeId;
+      _position = position;
+      _references = references;
+    }
+  }
+
+  private final ConcurrentMap<String, Keys> _keys = new ConcurrentHashMap<String, Keys>();
+
+  private final ConcurrentMap<String, Set<String>> _byAgency = new ConcurrentHashMap<String, Set<String>>();
+
+  private final ConcurrentMap<String, Set<String>> _byRoute = new ConcurrentHashMap<String, Set<String>>();
+
+  private final ConcurrentMap<Long, Set<String>> _byCell = new ConcurrentHashMap<Long, Set<String>>();
+
+  /**
+   * By the subscription keys of the trips, stops, routes and agencies the
+   * entities refer to, see {@link GtfsRealtimeSubscription#getKeys()}.
+   */
+  private final ConcurrentMap<String, Set<String>> _byReference = new ConcurrentHashMap<String, Set<String>>();
+
+  /**
+   * @param position lon, lat of the entity's vehicle, or null
+   * @param references subscription keys of the trips, stops, routes and
+   *          agencies the entity refers to
+   */
+  public void put(String id, String agencyId, String routeId,
+      double[] position, Set<String> references) {
+    remove(id);
+    _keys.put(id, new Keys(agencyId, routeId, position, references));
+    if (agencyId != null) {
+      add(_byAgency, agencyId, id);
+    }
+    if (routeId != null) {
+      add(_byRoute, routeId, id);
+    }
+    if (position != null) {
+      add(_byCell, cell(position[0], position[1]), id);
+    }
+    for (String reference : references) {
+      add(_byReference, reference, id);
+    }
+  }
+
+  public void remove(String id) {
+    Keys keys = _keys.remove(id);
+    if (keys == null) {
+      return;
+    }
+    if (keys._agencyId != null) {
+      remove(_byAgency, keys._agencyId, id);
+    }
+    if (keys._routeId != null) {
+      remove(_byRoute, keys._routeId, id);
+    }
+    if (keys._position != null) {
+      remove(_byCell, cell(keys._position[0], keys._position[1]), id);
+    }
+    for (String reference : keys._references) {
+      remove(_byReference, reference, id);
+    }
+  }
+
+  public void clear() {
+    _keys.clear();
+    _byAgency.clear();
+    _byRoute.clear();
+    _byCell.clear();
+    _byReference.clear();
+  }
+
+  /**
+   * @return ids of the entities matching the filter
+   */
+  public List<String> select(GtfsRealtimeFeedFilter filter) {
+    Collection<String> candidates = candidates(filter);
+    List<String> ids = new ArrayList<String>(candidates.size());
+    for (String id : candidates) {
+      Keys keys = _keys.get(id);
+      if (keys != null
+          && filter.matches(keys._agencyId, keys._routeId, keys._position)) {
+        ids.add(id);
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * @return ids of the entities of any of the agencies or routes of the
+   *         subscription, or referring to any of its agencies, routes, stops
+   *         or trips
+   */
+  public Set<String> select(GtfsRealtimeSubscription subscription) {
+    Set<String> ids = new HashSet<String>();
+    for (String agencyId : subscription.getAgencyIds()) {
+      ids.addAll(get(_byAgency, agencyId));
+      ids.addAll(get(_byReference,
+          GtfsRealtimeSubscription.agencyKey(agencyId)));
+    }
+    for (String routeId : subscription.getRouteIds()) {
+      ids.addAll(get(_byRoute, routeId));
+      ids.addAll(get(_byReference, GtfsRealtimeSubscription.routeKey(routeId)));
+    }
+    for (String stopId : subscription.getStopIds()) {
+      ids.addAll(get(_byReference, GtfsRealtimeSubscription.stopKey(stopId)));
+    }
+    for (String tripId : subscription.getTripIds()) {
+      ids.addAll(get(_byReference, GtfsRealtimeSubscription.tripKey(tripId)));
+    }
+    return ids;
+  }
+
+  /***
+   * Private Methods
+   ****/
+
+  /**
+   * @return the smallest index partition containing all matching entities
+   */
+  private Collection<String> candidates(GtfsRealtimeFeedFilter filter) {
+    Collection<String> candidates = null;
+    if (filter.getAgencyId() != null) {
+      candidates = get(_byAgency, filter.getAgencyId());
+    }
+    if (filter.getRouteId() != null) {
+      Collection<String> route = get(_byRoute, filter.getRouteId());
+      if (candidates == null || route.size() < candidates.size()) {
+        candidates = route;
+      }
+    }
+    if (filter.hasBoundingBox()) {
+      long minX = index(filter.getMinLon());
+      long maxX = index(filter.getMaxLon());
+      long minY = index(filter.getMinLat());
+      long maxY = index(filter.getMaxLat());
+      // In doubles, the cell count of a huge box can not overflow
+      if (((double) maxX - minX + 1) * ((double) maxY - minY + 1) <= MAX_CELLS) {
+        List<String> cells = new ArrayList<String>();
+        for (long x = minX; x <= maxX; x++) {
+          for (long y = minY; y <= maxY; y++) {
+            cells.addAll(get(_byCell, cell(x, y)));
+          }
+        }
+        if (candidates == null || cells.size() < candidates.size()) {
+          candidates = cells;
+        }
+      }
+    }
+    return candidates == null ? _keys.keySet() : candidates;
+  }
+
+  private static long index(double degrees) {
+    return (long) Math.floor(degrees / CELL_SIZE);
+  }
+
+  private static Long cell(double lon, double lat) {
+    return cell(index(lon), index(lat));
+  }
+
+  private static Long cell(long x, long y) {
+    return (x << 32) ^ (y & 0xffffffffL);
+  }
+
+  private static <K> Collection<String> get(ConcurrentMap<K, Set<String>> index,
+      K key) {
+    Set<String> ids = index.get(key);
+    return ids == null ? Collections.<String> emptySet() : ids;
+  }
+
+  private static <K> void add(ConcurrentMap<K, Set<String>> index, K key,
+      String id) {
+    Set<String> ids = index.get(key);
+    if (ids == null) {
+      ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      index.put(key, ids);
+    }
+    ids.add(id);
+  }
+
+  private static <K> void remove(ConcurrentMap<K, Set<String>> index, K key,
+      String id) {
+    Set<String> ids = index.get(key);
+    if (ids != null) {
+      ids.remove(id);
+      if (ids.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+}
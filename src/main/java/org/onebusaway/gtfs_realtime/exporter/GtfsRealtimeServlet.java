@@ -15,10 +15,14 @@
  */
 package org.onebusaway.gtfs_realtime.exporter;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
@@ -26,10 +30,10 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.UpgradeRequest;
 import org.eclipse.jetty.websocket.api.UpgradeResponse;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
@@ -43,12 +47,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.protobuf.Message;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 
 /**
  * Provides functionality to export a GTFS-realtime feed via HTTP, with support
  * for both traditional HTTP GET requests and also incremental requests via
- * WebSockets.
+ * WebSockets. Polling clients may pass the incremental index of the last feed
+ * they received as the "since" parameter, to get only the changes since then.
+ * The "agency", "route" and "bbox" (minLon,minLat,maxLon,maxLat) parameters
+ * limit the full feed to the matching entities. WebSocket clients may subscribe
+ * to part of the feed with the "agency", "route", "stop" and "trip" parameters.
  * 
  * @author bdferris
  */
@@ -65,6 +74,25 @@ public class GtfsRealtimeServlet extends WebSocketServlet implements
 
   private URL _url;
 
+  private int _maxQueuedFeeds = 32;
+
+  private SlowClientPolicy _slowClientPolicy = SlowClientPolicy.RESYNC;
+
+  /**
+   * What to do with a WebSocket client whose send queue is full.
+   */
+  public enum SlowClientPolicy {
+    /**
+     * Drop the queued differential feeds and send the full feed once the
+     * client catches up.
+     */
+    RESYNC,
+    /**
+     * Close the connection.
+     */
+    DISCONNECT
+  }
+
   public void setSource(GtfsRealtimeSource source) {
     _source = source;
   }
@@ -73,6 +101,18 @@ public class GtfsRealtimeServlet extends WebSocketServlet implements
     _url = url;
   }
 
+  /**
+   * @param maxQueuedFeeds number of feeds queued per WebSocket client while a
+   *          previous feed is still being written
+   */
+  public void setMaxQueuedFeeds(int maxQueuedFeeds) {
+    _maxQueuedFeeds = maxQueuedFeeds;
+  }
+
+  public void setSlowClientPolicy(SlowClientPolicy slowClientPolicy) {
+    _slowClientPolicy = slowClientPolicy;
+  }
+
   /****
    * {@link WebSocketServlet} Interface
    ****/
@@ -90,12 +130,102 @@ public class GtfsRealtimeServlet extends WebSocketServlet implements
   protected void doGet(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException {
     boolean debug = req.getParameter("debug") != null;
-    Message message = _source.getFeed();
     if (debug) {
+      Message message = _source.getFeed();
       resp.getWriter().print(message);
+      return;
+    }
+    GtfsRealtimeEncodedFeed feed = null;
+    GtfsRealtimeFeedFilter filter;
+    try {
+      filter = getFilter(req);
+    } catch (IllegalArgumentException ex) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+      return;
+    }
+    String since = req.getParameter("since");
+    if (!filter.isAll()) {
+      feed = _source.getEncodedFeed(filter);
+    } else if (since != null) {
+      try {
+        feed = _source.getEncodedFeedSince(Long.parseLong(since));
+      } catch (NumberFormatException ex) {
+        resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "since must be an incremental index");
+        return;
+      }
+    }
+    // Without a (still available) index, the client gets the full dataset
+    if (feed == null) {
+      feed = _source.getEncodedFeed();
+    }
+    boolean gzip = acceptsGzip(req);
+    String etag = feed.getEtag(gzip);
+    resp.setHeader("ETag", etag);
+    resp.setHeader("Vary", "Accept-Encoding");
+    resp.setDateHeader("Last-Modified", feed.getLastModified());
+    if (isNotModified(req, etag, feed.getLastModified())) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    resp.setContentType(CONTENT_TYPE);
+    if (gzip) {
+      byte[] bytes = feed.getGzippedBytes();
+      resp.setHeader("Content-Encoding", "gzip");
+      resp.setContentLength(bytes.length);
+      resp.getOutputStream().write(bytes);
     } else {
-      resp.setContentType(CONTENT_TYPE);
-      message.writeTo(resp.getOutputStream());
+      resp.setContentLength(feed.getLength());
+      feed.writeTo(resp.getOutputStream());
+    }
+  }
+
+  /**
+   * @throws IllegalArgumentException when the bbox parameter is malformed
+   */
+  private static GtfsRealtimeFeedFilter getFilter(HttpServletRequest req) {
+    GtfsRealtimeFeedFilter filter = GtfsRealtimeFeedFilter.all();
+    String agencyId = req.getParameter("agency");
+    if (agencyId != null) {
+      filter = filter.withAgencyId(agencyId);
+    }
+    String routeId = req.getParameter("route");
+    if (routeId != null) {
+      filter = filter.withRouteId(routeId);
+    }
+    String bbox = req.getParameter("bbox");
+    if (bbox != null) {
+      filter = filter.withBoundingBox(bbox);
+    }
+    return filter;
+  }
+
+  private static boolean acceptsGzip(HttpServletRequest req) {
+    String acceptEncoding = req.getHeader("Accept-Encoding");
+    return acceptEncoding != null && acceptEncoding.contains("gzip");
+  }
+
+  /**
+   * If-None-Match takes precedence over If-Modified-Since, as the latter only
+   * has a resolution of seconds while the feed may change more often.
+   */
+  private static boolean isNotModified(HttpServletRequest req, String etag,
+      long lastModified) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.equals("*") || tag.equals(etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    try {
+      long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+      return ifModifiedSince != -1 && ifModifiedSince >= lastModified;
+    } catch (IllegalArgumentException ex) {
+      return false;
     }
   }
 
@@ -121,16 +251,70 @@ public class GtfsRealtimeServlet extends WebSocketServlet implements
 	@Override
 	public Object createWebSocket(ServletUpgradeRequest arg0,
 			ServletUpgradeResponse arg1) {
-	      return new DataWebSocket();
+	      return new DataWebSocket(getSubscription(arg0));
 	}
 
   }
 
+  /**
+   * @return the subscription given by the agency, route, stop and trip
+   *         parameters, each a comma separated list of ids, or null when none
+   *         is given
+   */
+  private static GtfsRealtimeSubscription getSubscription(
+      ServletUpgradeRequest request) {
+    Map<String, List<String>> parameters = request.getParameterMap();
+    GtfsRealtimeSubscription subscription = new GtfsRealtimeSubscription(
+        getIds(parameters, "agency"), getIds(parameters, "route"), getIds(
+            parameters, "stop"), getIds(parameters, "trip"));
+    return subscription.isEmpty() ? null : subscription;
+  }
+
+  private static List<String> getIds(Map<String, List<String>> parameters,
+      String name) {
+    List<String> ids = new ArrayList<String>();
+    List<String> values = parameters.get(name);
+    if (values != null) {
+      for (String value : values) {
+        for (String id : value.split(",")) {
+          if (!id.isEmpty()) {
+            ids.add(id);
+          }
+        }
+      }
+    }
+    return ids;
+  }
+
   @WebSocket
-  public class DataWebSocket implements GtfsRealtimeIncrementalListener {
+  public class DataWebSocket implements GtfsRealtimeIncrementalListener,
+      WriteCallback {
 
     private Session _session;
 
+    /**
+     * Null when the client receives all entities.
+     */
+    private final GtfsRealtimeSubscription _subscription;
+
+    /**
+     * Feeds waiting for the one in flight to be written. Buffers are shared
+     * with the other clients.
+     */
+    private final Queue<byte[]> _queue = new ArrayDeque<byte[]>();
+
+    private boolean _sending = false;
+
+    private boolean _resync = false;
+
+    public DataWebSocket() {
+      this(null);
+    }
+
+    public DataWebSocket(GtfsRealtimeSubscription subscription) {
+      _subscription = subscription;
+    }
+
     @OnWebSocketConnect
     public void onOpen(Session session) {
       _log.info("client connect");
@@ -142,7 +326,12 @@ public class GtfsRealtimeServlet extends WebSocketServlet implements
       // immediately. Thus, we don't want to call this until we've released the
       // _session lock, otherwise we'll get a deadlock in the handleFeed()
       // method.
-      _source.addIncrementalListener(this);
+      if (_subscription == null) {
+        _source.addIncrementalListener(this);
+      } else {
+        _log.info("client subscription " + _subscription);
+        _source.addIncrementalListener(this, _subscription);
+      }
     }
 
     @OnWebSocketClose
@@ -151,6 +340,7 @@ public class GtfsRealtimeServlet extends WebSocketServlet implements
       _source.removeIncrementalListener(this);
       synchronized (this) {
         _session = null;
+        _queue.clear();
       }
     }
 
@@ -158,37 +348,121 @@ public class GtfsRealtimeServlet extends WebSocketServlet implements
      * {@link GtfsRealtimeIncrementalListener} Interface
      ****/
 
+    /**
+     * Never blocks: the feed is either written asynchronously or queued. When
+     * the queue is full, the slow client policy applies.
+     */
     @Override
-    public void handleFeed(FeedMessage feed) {
-      byte[] buffer = null;
-      try {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        feed.writeTo(out);
-        buffer = out.toByteArray();
-      } catch (IOException ex) {
-        throw new IllegalStateException(ex);
+    public void handleFeed(FeedMessage feed, byte[] encoded) {
+      boolean disconnect = false;
+      synchronized (this) {
+        if (_session == null) {
+          return;
+        }
+        if (feed.getHeader().getIncrementality() == Incrementality.FULL_DATASET) {
+          // Supersedes everything queued before it
+          _queue.clear();
+          _resync = false;
+        }
+        if (!_sending) {
+          _sending = true;
+        } else if (_resync) {
+          // The full feed sent on resync will include this update
+          return;
+        } else if (_queue.size() < _maxQueuedFeeds) {
+          _queue.add(encoded);
+          return;
+        } else if (_slowClientPolicy == SlowClientPolicy.RESYNC) {
+          _log.warn("client too slow, dropping " + _queue.size()
+              + " queued updates");
+          _queue.clear();
+          _resync = true;
+          return;
+        } else {
+          _queue.clear();
+          disconnect = true;
+        }
+      }
+      if (disconnect) {
+        _log.warn("client too slow, disconnecting");
+        close();
+      } else {
+        send(encoded);
+      }
+    }
+
+    /****
+     * {@link WriteCallback} Interface
+     ****/
+
+    @Override
+    public void writeSuccess() {
+      byte[] next;
+      synchronized (this) {
+        if (_resync) {
+          _resync = false;
+          // Taken before the feed is fetched below, so updates queued meanwhile
+          // are at most applied twice, never lost.
+          _queue.clear();
+          next = null;
+        } else {
+          next = _queue.poll();
+          if (next == null) {
+            _sending = false;
+            return;
+          }
+        }
+      }
+      if (next == null) {
+        FeedMessage feed = _subscription == null ? _source.getFeed()
+            : _source.getFeed(_subscription);
+        next = feed.toByteArray();
       }
+      send(next);
+    }
 
-      sendMessage(buffer);
+    @Override
+    public void writeFailed(Throwable ex) {
+      // If anything goes wrong, we close the connection.
+      _log.error("error sending message to remote WebSocket client", ex);
+      synchronized (this) {
+        _sending = false;
+        _queue.clear();
+      }
+      close();
     }
 
-    private synchronized void sendMessage(byte[] buffer) {
-      if (_session == null || !_session.isOpen()) {
+    private void send(byte[] buffer) {
+      Session session;
+      synchronized (this) {
+        session = _session;
+      }
+      if (session == null || !session.isOpen()) {
+        synchronized (this) {
+          _sending = false;
+          _queue.clear();
+        }
         return;
       }
       try {
-        RemoteEndpoint remote = _session.getRemote();
-        remote.sendBytesByFuture(ByteBuffer.wrap(buffer));
+        // Wrapped per client, as a ByteBuffer carries its own position
+        session.getRemote().sendBytes(ByteBuffer.wrap(buffer), this);
       } catch (Exception ex) {
-        // If anything goes wrong, we close the connection.
-        _log.error("error sending message to remote WebSocket client", ex);
-          // The @OnWebSocketClose event might have already been trigger during
-          // our attempt to write, but if not, let's close the connection
-          // ourselves.
-          if (_session != null) {
-            // This should automatically trigger an @OnWebSocketClose event.
-            _session.close();
-          }
+        writeFailed(ex);
+      }
+    }
+
+    private void close() {
+      Session session;
+      synchronized (this) {
+        session = _session;
+      }
+      // The @OnWebSocketClose event might have already been trigger during
+      // our attempt to write, but if not, let's close the connection
+      // ourselves.
+      if (session != null) {
+        // This should automatically trigger an @OnWebSocketClose event.
+        session.close();
       }
     }
   }
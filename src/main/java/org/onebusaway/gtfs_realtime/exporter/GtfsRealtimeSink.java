@@ -32,6 +32,23 @@ public interface GtfsRealtimeSink {
    */
   public void setFeedHeaderDefaults(FeedHeader header);
 
+  /**
+   * Collect incremental updates for the given time and apply them as a single
+   * update, keeping the last update of each entity, where a delete wins over
+   * earlier updates. This adds up to the given latency to every update.
+   * 
+   * @param batchWindow in milliseconds, 0 to apply every update immediately
+   */
+  public void setBatchWindow(long batchWindow);
+
+  /**
+   * Set how entities are assigned to agency and route partitions. Entities
+   * already in the feed keep their partitions until they are updated.
+   * 
+   * @param partitioner
+   */
+  public void setPartitioner(GtfsRealtimePartitioner partitioner);
+
   /**
    * Send a full dataset update. The feed entities in the update will replace
    * all previous updates received so far.
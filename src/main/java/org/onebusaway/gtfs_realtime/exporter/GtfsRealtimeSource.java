@@ -31,6 +31,34 @@ public interface GtfsRealtimeSource {
    */
   public FeedMessage getFeed();
 
+  /**
+   * The encoded feed is rebuilt at most once per configured interval, so it
+   * may lag behind {@link #getFeed()} by that interval.
+   * 
+   * @return the full-dataset view of a GTFS-realtime feed, pre-encoded
+   */
+  public GtfsRealtimeEncodedFeed getEncodedFeed();
+
+  /**
+   * Like {@link #getEncodedFeed()}, limited to the entities matching the filter.
+   * Entities are selected through indexes, without scanning the whole feed.
+   * 
+   * @param filter selects the entities in the feed
+   * @return the matching part of the full-dataset feed, pre-encoded
+   */
+  public GtfsRealtimeEncodedFeed getEncodedFeed(GtfsRealtimeFeedFilter filter);
+
+  /**
+   * All differential updates after the given one, merged into a single
+   * differential feed whose incremental index is that of the last update.
+   * 
+   * @param incrementalIndex the incremental index of the last feed the client
+   *          has seen
+   * @return the merged differential feed, or null when updates after the
+   *         given index are no longer kept
+   */
+  public GtfsRealtimeEncodedFeed getEncodedFeedSince(long incrementalIndex);
+
   /**
    * Register a new incremental GTFS-realtime listener.
    * 
@@ -39,7 +67,25 @@ public interface GtfsRealtimeSource {
   public void addIncrementalListener(GtfsRealtimeIncrementalListener listener);
 
   /**
-   * Un-register a new incremental GTFS-realtime listener.
+   * Register a new incremental GTFS-realtime listener, receiving only the
+   * entities matching the subscription. An updated entity that no longer
+   * matches is sent as deleted.
+   * 
+   * @param listener
+   * @param subscription
+   */
+  public void addIncrementalListener(GtfsRealtimeIncrementalListener listener,
+      GtfsRealtimeSubscription subscription);
+
+  /**
+   * @return the full-dataset view of a GTFS-realtime feed, limited to the
+   *         entities matching the subscription
+   */
+  public FeedMessage getFeed(GtfsRealtimeSubscription subscription);
+
+  /**
+   * Un-register a new incremental GTFS-realtime listener. Feeds of updates
+   * applied before may still reach it.
    * 
    * @param listener
    */
@@ -0,0 +1,129 @@
+package org.onebusaway.gtfs_realtime.exporter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * The part of a feed an incremental listener is interested in: entities of any
+ * of the given agencies or routes, or referring to any of the given stops or
+ * trips. Entities are routed to subscriptions on these attributes through an
+ * index, see {@link GtfsRealtimeSource#addIncrementalListener(GtfsRealtimeIncrementalListener, GtfsRealtimeSubscription)}.
+ */
+public final class GtfsRealtimeSubscription {
+
+  private static final String AGENCY = "agency:";
+
+  private static final String ROUTE = "route:";
+
+  private static final String STOP = "stop:";
+
+  private static final String TRIP = "trip:";
+
+  private final Set<String> _agencyIds;
+
+  private final Set<String> _routeIds;
+
+  private final Set<String> _stopIds;
+
+  private final Set<String> _tripIds;
+
+  public GtfsRealtimeSubscription(Collection<String> agencyIds,
+      Collection<String> routeIds, Collection<String> stopIds,
+      Collection<String> tripIds) {
+    _agencyIds = copy(agencyIds);
+    _routeIds = copy(routeIds);
+    _stopIds = copy(stopIds);
+    _tripIds = copy(tripIds);
+  }
+
+  public Set<String> getAgencyIds() {
+    return _agencyIds;
+  }
+
+  public Set<String> getRouteIds() {
+    return _routeIds;
+  }
+
+  public Set<String> getStopIds() {
+    return _stopIds;
+  }
+
+  public Set<String> getTripIds() {
+    return _tripIds;
+  }
+
+  public boolean isEmpty() {
+    return _agencyIds.isEmpty() && _routeIds.isEmpty() && _stopIds.isEmpty()
+        && _tripIds.isEmpty();
+  }
+
+  /**
+   * @return the attribute keys this subscription is indexed on
+   */
+  Set<String> getKeys() {
+    Set<String> keys = new HashSet<String>();
+    for (String agencyId : _agencyIds) {
+      keys.add(agencyKey(agencyId));
+    }
+    for (String routeId : _routeIds) {
+      keys.add(routeKey(routeId));
+    }
+    for (String stopId : _stopIds) {
+      keys.add(stopKey(stopId));
+    }
+    for (String tripId : _tripIds) {
+      keys.add(tripKey(tripId));
+    }
+    return keys;
+  }
+
+  static String agencyKey(String agencyId) {
+    return AGENCY + agencyId;
+  }
+
+  static String routeKey(String routeId) {
+    return ROUTE + routeId;
+  }
+
+  static String stopKey(String stopId) {
+    return STOP + stopId;
+  }
+
+  static String tripKey(String tripId) {
+    return TRIP + tripId;
+  }
+
+  private static Set<String> copy(Collection<String> ids) {
+    return ids == null ? Collections.<String> emptySet()
+        : ImmutableSet.copyOf(ids);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(_agencyIds, _routeIds, _stopIds, _tripIds);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (!(o instanceof GtfsRealtimeSubscription))
+      return false;
+    GtfsRealtimeSubscription other = (GtfsRealtimeSubscription) o;
+    return _agencyIds.equals(other._agencyIds)
+        && _routeIds.equals(other._routeIds)
+        && _stopIds.equals(other._stopIds) && _tripIds.equals(other._tripIds);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this).add("agencyIds", _agencyIds).add(
+        "routeIds", _routeIds).add("stopIds", _stopIds).add("tripIds",
+        _tripIds).toString();
+  }
+}
@@ -1,6 +1,7 @@
 package nl.ovapi.arnu;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -43,6 +44,7 @@ public class ARNUtests {
 		assertEquals(TrainProcessor.orginalTrainNumber("315622"),Integer.valueOf(5622));
 		assertEquals(TrainProcessor.orginalTrainNumber("325622"),Integer.valueOf(5622));
 		assertEquals(TrainProcessor.orginalTrainNumber("300839"),Integer.valueOf(839));
+		assertNull(TrainProcessor.orginalTrainNumber("B123"));
 	}
 
 	@Test
@@ -0,0 +1,52 @@
+package nl.ovapi.arnu;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import nl.ovapi.rid.model.Journey;
+import nl.ovapi.rid.model.JourneyPattern;
+import nl.ovapi.rid.model.JourneyPattern.JourneyPatternPoint;
+
+import org.junit.Test;
+
+public class TrainStationsTest {
+
+	private static Journey journey(String... operatorPointRefs){
+		JourneyPattern.Builder jp = JourneyPattern.newBuilder();
+		jp.setJourneyPatternref("1");
+		jp.setDirectionType((byte) 1);
+		for (short i = 0; i < operatorPointRefs.length; i++){
+			jp.add(JourneyPatternPoint.newBuilder()
+					.setDistanceFromStartRoute(0)
+					.setPointOrder((short) (i+1))
+					.setOperatorPointRef(operatorPointRefs[i])
+					.setPointRef((long) i)
+					.setIsScheduled(true)
+					.setIsWaitpoint(false).build());
+		}
+		return Journey.newBuilder()
+				.setId("1")
+				.setDeparturetime(8*3600)
+				.setOperatingDay("2014-06-02")
+				.setJourneyPattern(jp.build()).build();
+	}
+
+	@Test
+	public void stations() {
+		TrainStations train = new TrainStations("2014-06-02:IFF:IC:3512");
+		assertEquals("2014-06-02",train.getOperatingDay());
+		assertEquals("IC",train.getTransportModeCode());
+		assertEquals("3512",train.getServiceCode());
+		assertEquals(TrainStations.serviceKey("2014-06-02","3512"),train.getServiceKey());
+		train.addJourney(journey("asd:1","ut:5"));
+		train.addJourney(journey("ut:5","ehv:2"));
+		assertTrue(train.containsAny(Arrays.asList("ht","ehv")));
+		assertFalse(train.containsAny(Arrays.asList("ht","bet")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void notATrainId() {
+		new TrainStations("2014-06-02:GVB:17:4012:0");
+	}
+}
@@ -0,0 +1,60 @@
+package nl.ovapi.bison;
+
+import static org.junit.Assert.*;
+
+import java.util.TimeZone;
+
+import nl.ovapi.bison.model.DataOwnerCode;
+import nl.ovapi.bison.model.DatedPasstime;
+import nl.ovapi.bison.model.JourneyStopType;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class KV8CtxReaderTest {
+
+	@Before
+	public void setUp() {
+		TimeZone.setDefault(TimeZone.getTimeZone("Europe/Amsterdam"));
+	}
+
+	private static DatedPasstime passtime(DataOwnerCode dataOwnerCode, int userStopOrderNumber, JourneyStopType journeyStopType){
+		DatedPasstime dp = TestPasstimes.passtime();
+		dp.setDataOwnerCode(dataOwnerCode);
+		dp.setUserStopOrderNumber((short)userStopOrderNumber);
+		dp.setUserStopCode("0"+userStopOrderNumber);
+		dp.setJourneyStopType(journeyStopType);
+		dp.setMessageContent("Omleiding \u00e9");
+		return dp;
+	}
+
+	@Test
+	public void columns() throws Exception {
+		DatedPasstime[] passtimes = new DatedPasstime[]{
+				passtime(DataOwnerCode.GVB,1,JourneyStopType.FIRST),
+				passtime(DataOwnerCode.HTM,2,JourneyStopType.INTERMEDIATE),
+				passtime(DataOwnerCode.GVB,3,JourneyStopType.INFOPOINT)};
+		StringBuilder ctx = new StringBuilder(DatedPasstime.header("OVapi_KV8"));
+		for (DatedPasstime dp : passtimes){
+			ctx.append(dp.toCtxLine()).append("\r\n");
+		}
+		KV8CtxReader reader = new KV8CtxReader(ctx.toString().getBytes("UTF-8"));
+		for (DatedPasstime dp : passtimes){
+			assertTrue(reader.next());
+			assertEquals(35,reader.getColumnCount());
+			assertEquals(dp.getDataOwnerCode() == DataOwnerCode.GVB,reader.equals(KV8CtxReader.DATAOWNERCODE,"GVB"));
+			assertTrue(reader.equals(KV8CtxReader.JOURNEYSTOPTYPE,dp.getJourneyStopType().name()));
+			assertEquals(dp.getOperationDate(),reader.getString(KV8CtxReader.OPERATIONDATE));
+			assertEquals(dp.getJourneyNumber(),reader.getInt(KV8CtxReader.JOURNEYNUMBER));
+			assertEquals(dp.getUserStopOrderNumber(),reader.getInt(KV8CtxReader.USERSTOPORDERNUMBER));
+			assertEquals(dp.getExpectedArrivalTime(),reader.getTime(KV8CtxReader.EXPECTEDARRIVALTIME));
+			assertEquals(dp.getTargetDepartureTime(),reader.getTime(KV8CtxReader.TARGETDEPARTURETIME));
+			assertTrue(reader.isNull(KV8CtxReader.NUMBEROFCOACHES));
+			assertEquals(Integer.MIN_VALUE,reader.getTime(33));
+			assertEquals(dp.getMessageContent(),reader.getString(16));
+			assertEquals("x:"+dp.getLinePlanningNumber(),reader.append(new StringBuilder("x:"),KV8CtxReader.LINEPLANNINGNUMBER).toString());
+			assertEquals(dp.getLastUpdateTimeStamp(),(long)DateUtils.parse(reader.getString(KV8CtxReader.LASTUPDATETIMESTAMP)));
+		}
+		assertFalse(reader.next());
+	}
+}
@@ -0,0 +1,56 @@
+package nl.ovapi.bison;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+import nl.ovapi.bison.model.DatedPasstime;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class KV8CtxWriterTest {
+
+	@Before
+	public void setUp() {
+		TimeZone.setDefault(TimeZone.getTimeZone("Europe/Amsterdam"));
+	}
+
+	private static DatedPasstime passtime(int journeyNumber, String messageContent, long lastUpdateTimeStamp){
+		DatedPasstime dp = TestPasstimes.passtime();
+		dp.setJourneyNumber(journeyNumber);
+		dp.setMessageContent(messageContent);
+		dp.setLastUpdateTimeStamp(lastUpdateTimeStamp);
+		return dp;
+	}
+
+	@Test
+	public void sameLinesAsToCtxLine() throws Exception {
+		DatedPasstime[] passtimes = new DatedPasstime[]{
+				passtime(1,null,1396141199L), //Just before the switch to DST
+				passtime(2,"Omleiding \u00e9\u20ac\ud83d\ude8b",1396141200L),
+				passtime(3,null,1396141259L)};
+		KV8CtxWriter writer = new KV8CtxWriter();
+		for (int run = 0; run < 2; run++){ //The writer is reused
+			writer.reset("OVapi_KV8");
+			for (DatedPasstime dp : passtimes){
+				writer.write(dp);
+			}
+			assertEquals(3,writer.getLineCount());
+			byte[] gzip = writer.toGzip();
+			String ctx = new String(ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(gzip))),"UTF-8");
+			assertEquals(writer.getLength(),ctx.getBytes("UTF-8").length);
+			assertTrue(ctx.startsWith("\\GKV8turbo_passtimes|KV8turbo_passtimes|OVapi_KV8|"));
+			String[] lines = ctx.split("\r\n");
+			assertEquals(3+3,lines.length);
+			for (int i = 0; i < passtimes.length; i++){
+				assertEquals(passtimes[i].toCtxLine(),lines[3+i]);
+			}
+			assertEquals(3,DatedPasstime.fromCtx(ctx).size());
+		}
+	}
+}
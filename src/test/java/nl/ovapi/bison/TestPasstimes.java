@@ -0,0 +1,40 @@
+package nl.ovapi.bison;
+
+import nl.ovapi.bison.model.DataOwnerCode;
+import nl.ovapi.bison.model.DatedPasstime;
+import nl.ovapi.bison.model.JourneyStopType;
+import nl.ovapi.bison.model.TripStopStatus;
+
+/**
+ * KV8 passtimes for the CTX tests, times past midnight and before the switch to DST on 2014-03-30.
+ */
+public class TestPasstimes {
+
+	/**
+	 * @return passtime with every column of the writer and reader set, change what a test is about
+	 */
+	public static DatedPasstime passtime(){
+		DatedPasstime dp = new DatedPasstime();
+		dp.setDataOwnerCode(DataOwnerCode.HTM);
+		dp.setOperationDate("2014-03-30");
+		dp.setLinePlanningNumber("1");
+		dp.setJourneyNumber(1);
+		dp.setUserStopOrderNumber((short)3);
+		dp.setUserStopCode("1234");
+		dp.setLocalServiceLevelCode(1000);
+		dp.setJourneyPatternCode(-1);
+		dp.setLineDirection((byte)2);
+		dp.setDestinationCode("SCHEV");
+		dp.setTimingStop(true);
+		dp.setExpectedArrivalTime(25*3600+61);
+		dp.setExpectedDepartureTime(25*3600+120);
+		dp.setTripStopStatus(TripStopStatus.DRIVING);
+		dp.setTimingPointDataOwnerCode(DataOwnerCode.ALGEMEEN);
+		dp.setTimingPointCode("30001234");
+		dp.setJourneyStopType(JourneyStopType.INTERMEDIATE);
+		dp.setTargetArrivalTime(7*3600+59);
+		dp.setTargetDepartureTime(8*3600);
+		dp.setLastUpdateTimeStamp(1396141200L);
+		return dp;
+	}
+}
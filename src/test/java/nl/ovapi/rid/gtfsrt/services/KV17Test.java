@@ -1,6 +1,7 @@
 package nl.ovapi.rid.gtfsrt.services;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
@@ -246,4 +247,27 @@ public class KV17Test {
 			assertEquals(5,tripUpdate.getStopTimeUpdateCount());
 		}
 	}
+
+	private ArrayList<KV17cvlinfo> parseCvlinfos(String resource) throws ParserConfigurationException, SAXException, IOException {
+		SAXParserFactory spf = SAXParserFactory.newInstance();
+		spf.setNamespaceAware(true);
+		SAXParser sp = spf.newSAXParser();
+		XMLReader xr = sp.getXMLReader();
+		KV17SAXHandler handler = new KV17SAXHandler();
+		xr.setContentHandler(handler);
+		URL url = this.getClass().getResource(resource);
+		File f = new File(url.getFile());
+		xr.parse(new InputSource(new FileInputStream(f)));
+		return handler.getCvlinfos();
+	}
+
+	@Test
+	public void shortenRepeated() throws ParserConfigurationException, SAXException, FileNotFoundException, IOException, StopNotFoundException, UnknownKV6PosinfoType, TooEarlyException, TooOldException, ParseException {
+		Journey journey = getJourney();
+		JourneyProcessor j = new JourneyProcessor(journey);
+		JourneyProcessor.Update update = j.update(parseCvlinfos("kv17shorten.xml"));
+		assertTrue(update.getChangedPasstimes().size() >= 3);
+		//Same mutations again do not change the state of the journey
+		assertNull(j.update(parseCvlinfos("kv17shorten.xml")));
+	}
 }
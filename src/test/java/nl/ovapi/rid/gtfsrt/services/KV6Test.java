@@ -3,8 +3,10 @@ package nl.ovapi.rid.gtfsrt.services;
 import com.google.transit.realtime.GtfsRealtime.TripUpdate;
 import nl.ovapi.bison.JourneyProcessor;
 import nl.ovapi.bison.model.DataOwnerCode;
+import nl.ovapi.bison.model.DatedPasstime;
 import nl.ovapi.bison.model.KV6posinfo;
 import nl.ovapi.bison.model.KV6posinfo.Type;
+import nl.ovapi.bison.model.TripStopStatus;
 import nl.ovapi.exceptions.StopNotFoundException;
 import nl.ovapi.exceptions.TooEarlyException;
 import nl.ovapi.exceptions.TooOldException;
@@ -350,4 +352,95 @@ public class KV6Test {
         assertTrue(tripUpdate.getStopTimeUpdate(0).hasDeparture());
         assertEquals(56, tripUpdate.getStopTimeUpdate(3).getDeparture().getDelay());
     }
+
+    @Test
+    public void testSecondPassageOfStop() throws StopNotFoundException, UnknownKV6PosinfoType, TooEarlyException, TooOldException, ParseException {
+        Journey journey = getJourney(0);
+        JourneyProcessor j = new JourneyProcessor(journey);
+        KV6posinfo posinfo = new KV6posinfo();
+        posinfo.setDataownercode(DataOwnerCode.QBUZZ);
+        posinfo.setLineplanningnumber("g005");
+        posinfo.setOperatingday(journey.getOperatingDay().toString());
+        posinfo.setJourneynumber(1034);
+        posinfo.setVehiclenumber(911);
+        posinfo.setMessagetype(Type.ARRIVAL);
+        posinfo.setUserstopcode("10006450");
+        posinfo.setPunctuality(0);
+        posinfo.setTimestamp(journey.getDepartureEpoch() + 300);
+        posinfo.setPassagesequencenumber(1);
+        j.update(posinfo, true);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(TripStopStatus.PASSED, j.getDatedPasstimes().get(i).getTripStopStatus());
+        }
+        assertEquals(TripStopStatus.ARRIVED, j.getDatedPasstimes().get(5).getTripStopStatus());
+        assertTrue(j.getDatedPasstimes().get(5).getRecordedArrivalTime() != Integer.MIN_VALUE);
+        assertEquals(Integer.MIN_VALUE, j.getDatedPasstimes().get(3).getRecordedArrivalTime());
+    }
+
+    @Test
+    public void testDelayRecoveredDownstream() throws StopNotFoundException, UnknownKV6PosinfoType, TooEarlyException, TooOldException, ParseException {
+        Journey journey = getJourney(0);
+        JourneyProcessor j = new JourneyProcessor(journey);
+        KV6posinfo posinfo = new KV6posinfo();
+        posinfo.setDataownercode(DataOwnerCode.QBUZZ);
+        posinfo.setLineplanningnumber("g005");
+        posinfo.setOperatingday(journey.getOperatingDay().toString());
+        posinfo.setJourneynumber(1034);
+        posinfo.setVehiclenumber(911);
+        posinfo.setMessagetype(Type.DEPARTURE);
+        posinfo.setUserstopcode("10006900");
+        posinfo.setPunctuality(+100);
+        posinfo.setTimestamp(journey.getDepartureEpoch() + 20);
+        posinfo.setPassagesequencenumber(0);
+        j.update(posinfo);
+        DatedPasstime dp = j.getDatedPasstimes().get(3);
+        assertEquals(56, dp.getExpectedDepartureTime() - dp.getTargetDepartureTime());
+
+        posinfo = new KV6posinfo();
+        posinfo.setDataownercode(DataOwnerCode.QBUZZ);
+        posinfo.setLineplanningnumber("g005");
+        posinfo.setOperatingday(journey.getOperatingDay().toString());
+        posinfo.setJourneynumber(1034);
+        posinfo.setVehiclenumber(911);
+        posinfo.setMessagetype(Type.ONROUTE);
+        posinfo.setUserstopcode("10007110");
+        posinfo.setPunctuality(0);
+        posinfo.setTimestamp(journey.getDepartureEpoch() + 80);
+        posinfo.setPassagesequencenumber(0);
+        j.update(posinfo);
+        for (int i = 2; i < j.getDatedPasstimes().size(); i++) {
+            dp = j.getDatedPasstimes().get(i);
+            assertEquals(dp.getTargetArrivalTime(), dp.getExpectedArrivalTime());
+            assertEquals(dp.getTargetDepartureTime(), dp.getExpectedDepartureTime());
+        }
+    }
+
+    @Test
+    public void testStopTimeUpdatesReused() throws StopNotFoundException, UnknownKV6PosinfoType, TooEarlyException, TooOldException, ParseException {
+        Journey journey = getJourney(0);
+        JourneyProcessor j = new JourneyProcessor(journey);
+        TripUpdate.Builder before = j.tripUpdateFromKV8();
+        assertSame(before.getTrip(), j.tripUpdateFromKV8().getTrip());
+        KV6posinfo posinfo = new KV6posinfo();
+        posinfo.setDataownercode(DataOwnerCode.QBUZZ);
+        posinfo.setLineplanningnumber("g005");
+        posinfo.setOperatingday(journey.getOperatingDay().toString());
+        posinfo.setJourneynumber(1034);
+        posinfo.setVehiclenumber(911);
+        posinfo.setMessagetype(Type.ONROUTE);
+        posinfo.setUserstopcode("10006450");
+        posinfo.setPunctuality(0);
+        posinfo.setTimestamp(journey.getDepartureEpoch() + 300);
+        posinfo.setPassagesequencenumber(1);
+        j.update(posinfo);
+        TripUpdate.Builder after = j.tripUpdateFromKV8();
+        assertEquals(before.getStopTimeUpdateCount(), after.getStopTimeUpdateCount());
+        assertNotSame(before.getStopTimeUpdate(0), after.getStopTimeUpdate(0));
+        posinfo.setTimestamp(journey.getDepartureEpoch() + 310);
+        j.update(posinfo);
+        TripUpdate.Builder unchanged = j.tripUpdateFromKV8();
+        for (int i = 0; i < after.getStopTimeUpdateCount(); i++) {
+            assertSame(after.getStopTimeUpdate(i), unchanged.getStopTimeUpdate(i));
+        }
+    }
 }
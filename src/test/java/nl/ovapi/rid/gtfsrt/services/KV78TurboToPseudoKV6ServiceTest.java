@@ -0,0 +1,60 @@
+package nl.ovapi.rid.gtfsrt.services;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import nl.ovapi.bison.model.DataOwnerCode;
+
+import org.junit.Test;
+
+public class KV78TurboToPseudoKV6ServiceTest {
+
+	@Test
+	public void parseRoutingTable() {
+		Map<DataOwnerCode,String> routingTable = KV78TurboToPseudoKV6Service.parseRoutingTable("GVB, HTM=tcp://127.0.0.1:7817,,");
+		assertEquals(2,routingTable.size());
+		assertEquals(KV78TurboToPseudoKV6Service.DEFAULT_PUBLISHER,routingTable.get(DataOwnerCode.GVB));
+		assertEquals("tcp://127.0.0.1:7817",routingTable.get(DataOwnerCode.HTM));
+		assertTrue(KV78TurboToPseudoKV6Service.parseRoutingTable("").isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownOperator() {
+		KV78TurboToPseudoKV6Service.parseRoutingTable("GVB,NOPE");
+	}
+
+	@Test
+	public void floodedLaneKeepsOrder() throws Exception {
+		ThreadPoolExecutor lane = KV78TurboToPseudoKV6Service.newLane(2);
+		final List<Integer> ran = new CopyOnWriteArrayList<Integer>();
+		final Thread submitter = Thread.currentThread();
+		for (int i = 0; i < 200; i++){
+			final int message = i;
+			lane.execute(new Runnable(){
+				@Override
+				public void run() {
+					assertNotSame(submitter,Thread.currentThread());
+					if (message % 50 == 0){
+						try {
+							Thread.sleep(10); //Let the queue fill up
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+					ran.add(message);
+				}
+			});
+		}
+		lane.shutdown();
+		assertTrue(lane.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(200,ran.size());
+		for (int i = 0; i < ran.size(); i++){
+			assertEquals(i,(int)ran.get(i));
+		}
+	}
+}
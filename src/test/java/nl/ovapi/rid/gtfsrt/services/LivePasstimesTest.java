@@ -0,0 +1,98 @@
+package nl.ovapi.rid.gtfsrt.services;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.TimeZone;
+
+import nl.ovapi.bison.model.DataOwnerCode;
+import nl.ovapi.bison.model.DatedPasstime;
+import nl.ovapi.bison.model.JourneyStopType;
+import nl.ovapi.bison.model.TripStopStatus;
+import nl.ovapi.rid.model.Journey;
+import nl.ovapi.rid.model.TimeDemandGroup;
+import nl.ovapi.rid.model.TimeDemandGroup.TimeDemandGroupPoint;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LivePasstimesTest {
+
+	private final static String OPERATING_DAY = "2014-06-02";
+	private long midnight;
+
+	@Before
+	public void setUp() {
+		TimeZone.setDefault(TimeZone.getTimeZone("Europe/Amsterdam"));
+		DateTimeZone.setDefault(DateTimeZone.forID("Europe/Amsterdam"));
+		midnight = new LocalDate(OPERATING_DAY).toDateTimeAtStartOfDay().getMillis()/1000;
+	}
+
+	/**
+	 * @return journey departing at 08:00:00 and ending at 08:04:00
+	 */
+	private static Journey journey(){
+		TimeDemandGroup.Builder td = TimeDemandGroup.newBuilder();
+		td.add(TimeDemandGroupPoint.newBuilder().setTotalDriveTime(0).setStopWaitTime(0).setPointOrder((short) 1).build());
+		td.add(TimeDemandGroupPoint.newBuilder().setTotalDriveTime(240).setStopWaitTime(0).setPointOrder((short) 2).build());
+		return Journey.newBuilder()
+				.setAgencyId("GVB")
+				.setDeparturetime(8*3600)
+				.setId("2552611")
+				.setOperatingDay(OPERATING_DAY)
+				.setPrivateCode("GVB:17:4012")
+				.setAvailabilityConditionRef(0L)
+				.setTimeDemandGroup(td.build())
+				.setJourneyPattern(KV6Test.testPattern()).build();
+	}
+
+	private DatedPasstime passtime(JourneyStopType journeyStopType, long lastUpdateTimeStamp){
+		DatedPasstime dp = new DatedPasstime();
+		dp.setDataOwnerCode(DataOwnerCode.GVB);
+		dp.setOperationDate(OPERATING_DAY);
+		dp.setLinePlanningNumber("17");
+		dp.setJourneyNumber(4012);
+		dp.setUserStopOrderNumber((short)2);
+		dp.setExpectedArrivalTime(8*3600+120);
+		dp.setTripStopStatus(TripStopStatus.DRIVING);
+		dp.setJourneyStopType(journeyStopType);
+		dp.setLastUpdateTimeStamp(lastUpdateTimeStamp);
+		return dp;
+	}
+
+	@Test
+	public void refreshUntilArrivalAndExpireAtEnd() {
+		LivePasstimes live = new LivePasstimes();
+		long lastUpdate = midnight+7*3600+59*60;
+		live.put("a", passtime(JourneyStopType.INTERMEDIATE,lastUpdate), journey());
+		assertTrue(live.pollDue(lastUpdate+LivePasstimes.REFRESH_AFTER_SECONDS-1).isEmpty());
+
+		List<LivePasstimes.Entry> due = live.pollDue(lastUpdate+LivePasstimes.REFRESH_AFTER_SECONDS);
+		assertEquals(1,due.size());
+		assertEquals("a",due.get(0).getId());
+		assertEquals(midnight+8*3600+120,due.get(0).getArrivalEpoch());
+		assertEquals(midnight+8*3600+240,due.get(0).getEndEpoch());
+		assertTrue(live.pollDue(midnight+8*3600+60).isEmpty()); //Due again 90 seconds after the refresh
+
+		assertTrue(live.pollDue(midnight+8*3600+120).isEmpty()); //Arrived, kept until the end
+		assertEquals(1,live.size());
+		assertTrue(live.pollDue(midnight+8*3600+240).isEmpty());
+		assertEquals(0,live.size());
+	}
+
+	@Test
+	public void replaceAndRemove() {
+		LivePasstimes live = new LivePasstimes();
+		long lastUpdate = midnight+7*3600+59*60;
+		live.put("a", passtime(JourneyStopType.INTERMEDIATE,lastUpdate), journey());
+		live.put("a", passtime(JourneyStopType.LAST,lastUpdate+30), journey());
+		assertEquals(1,live.size());
+		assertTrue(live.pollDue(lastUpdate+LivePasstimes.REFRESH_AFTER_SECONDS).isEmpty()); //Last stop is not refreshed
+		assertTrue(live.remove("a"));
+		assertFalse(live.remove("a"));
+		assertTrue(live.pollDue(midnight+8*3600+240).isEmpty());
+		assertEquals(0,live.size());
+	}
+}
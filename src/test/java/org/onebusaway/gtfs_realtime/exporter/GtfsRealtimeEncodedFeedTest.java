@@ -0,0 +1,68 @@
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtimeConstants;
+
+public class GtfsRealtimeEncodedFeedTest {
+
+    private static final int ENTITIES = 20000;
+
+    private static FeedEntity entity(int i) {
+        TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+        tripUpdate.setTrip(TripDescriptor.newBuilder().setTripId("trip" + i).setStartDate("20131018"));
+        for (int stop = 0; stop < 10; stop++) {
+            tripUpdate.addStopTimeUpdate(StopTimeUpdate.newBuilder()
+                    .setStopSequence(stop)
+                    .setStopId("stop" + stop)
+                    .setArrival(StopTimeEvent.newBuilder().setTime(1382090000L + i + stop * 60).setDelay(i % 300)));
+        }
+        return FeedEntity.newBuilder().setId("entity" + i).setTripUpdate(tripUpdate).build();
+    }
+
+    @Test
+    public void concatenatedEqualsFeedMessage() throws IOException {
+        FeedHeader header = FeedHeader.newBuilder()
+                .setGtfsRealtimeVersion(GtfsRealtimeConstants.VERSION)
+                .setTimestamp(1382090000L).build();
+        FeedMessage.Builder feed = FeedMessage.newBuilder().setHeader(header);
+        List<byte[]> entities = new ArrayList<byte[]>();
+        for (int i = 0; i < ENTITIES; i++) {
+            FeedEntity entity = entity(i);
+            feed.addEntity(entity);
+            entities.add(GtfsRealtimeEncodedFeed.encodeEntity(entity));
+        }
+        byte[] expected = feed.build().toByteArray();
+
+        GtfsRealtimeEncodedFeed encoded = new GtfsRealtimeEncodedFeed(
+                GtfsRealtimeEncodedFeed.encodeHeader(header), entities, "test", 1382090000000L, 1);
+        assertEquals(expected.length, encoded.getLength());
+        assertArrayEquals(expected, encoded.getBytes());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoded.writeTo(out);
+        assertArrayEquals(expected, out.toByteArray());
+
+        byte[] gunzipped = ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(encoded.getGzippedBytes())));
+        assertArrayEquals(expected, gunzipped);
+        assertEquals(ENTITIES, FeedMessage.parseFrom(gunzipped).getEntityCount());
+    }
+}
@@ -0,0 +1,49 @@
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+
+import org.junit.Test;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeEntities.Entry;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+
+public class GtfsRealtimeEntitiesTest {
+
+  private static Entry entry(String id) {
+    FeedEntity entity = FeedEntity.newBuilder().setId(id).build();
+    return new Entry(entity, GtfsRealtimeEncodedFeed.encodeEntity(entity),
+        null, null, null, Collections.<String> emptySet());
+  }
+
+  @Test
+  public void builtEntitiesDoNotChange() {
+    GtfsRealtimeEntities.Builder builder = GtfsRealtimeEntities.EMPTY.toBuilder();
+    for (int i = 0; i < 1000; i++) {
+      builder.put(entry(Integer.toString(i)));
+    }
+    GtfsRealtimeEntities first = builder.build();
+    Entry replaced = entry("1");
+    builder.put(replaced);
+    builder.remove("2");
+    builder.remove("missing");
+    GtfsRealtimeEntities second = builder.build();
+
+    assertEquals(1000, first.size());
+    assertEquals(1000, first.getEntities().size());
+    assertEquals("2", first.get("2").getEntity().getId());
+    assertEquals(999, second.size());
+    assertEquals(999, second.getEncoded().size());
+    assertNull(second.get("2"));
+    assertSame(replaced, second.get("1"));
+    assertSame(first.get("3"), second.get("3"));
+
+    builder.clear();
+    assertEquals(0, builder.build().size());
+    assertEquals(999, second.size());
+    assertEquals(0, GtfsRealtimeEntities.EMPTY.size());
+  }
+}
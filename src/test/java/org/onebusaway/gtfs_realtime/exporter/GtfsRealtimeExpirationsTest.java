@@ -0,0 +1,44 @@
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class GtfsRealtimeExpirationsTest {
+
+  @Test
+  public void expiresMidTick() {
+    GtfsRealtimeExpirations expirations = new GtfsRealtimeExpirations(1000, 16,
+        10000);
+    expirations.schedule("1", 11700);
+    // The tick of the expiration time is visited before it is due
+    assertEquals(Collections.emptyList(), expirations.expire(11500));
+    assertEquals(Arrays.asList("1"), expirations.expire(12100));
+    assertTrue(expirations.isEmpty());
+
+    // Already passed when scheduled
+    expirations.schedule("2", 9000);
+    assertEquals(Arrays.asList("2"), expirations.expire(13000));
+  }
+
+  @Test
+  public void rescheduleCancelsEarlierSlot() {
+    GtfsRealtimeExpirations expirations = new GtfsRealtimeExpirations(1000, 16,
+        10000);
+    expirations.schedule("1", 12700);
+    expirations.schedule("2", 12700);
+    assertEquals(Collections.emptyList(), expirations.expire(12500));
+    // A revolution later, in the same slot
+    expirations.schedule("1", 28300);
+    expirations.cancel("2");
+    assertEquals(Collections.emptyList(), expirations.expire(13100));
+    assertEquals(Collections.emptyList(), expirations.expire(28100));
+    assertEquals(Arrays.asList("1"), expirations.expire(29000));
+    assertTrue(expirations.isEmpty());
+    assertEquals(Collections.emptyList(), expirations.expire(60000));
+  }
+}
@@ -0,0 +1,469 @@
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.protobuf.ExtensionRegistry;
+import com.google.transit.realtime.GtfsRealtime.Alert;
+import com.google.transit.realtime.GtfsRealtime.EntitySelector;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import com.google.transit.realtime.GtfsRealtimeOneBusAway;
+
+public class GtfsRealtimeExporterImplTest {
+
+  private static class RecordingListener implements
+      GtfsRealtimeIncrementalListener {
+
+    private final GtfsRealtimeExporterImpl _exporter;
+
+    private final List<FeedMessage> _feeds = new ArrayList<FeedMessage>();
+
+    private final List<byte[]> _encoded = new ArrayList<byte[]>();
+
+    public RecordingListener(GtfsRealtimeExporterImpl exporter) {
+      _exporter = exporter;
+    }
+
+    @Override
+    public void handleFeed(FeedMessage feed, byte[] encoded) {
+      assertFalse(_exporter.isDispatchLockHeldByCurrentThread());
+      _feeds.add(feed);
+      _encoded.add(encoded);
+    }
+  }
+
+  private static FeedEntity entity(String id) {
+    TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+    tripUpdate.setTrip(TripDescriptor.newBuilder().setTripId(id));
+    return FeedEntity.newBuilder().setId(id).setTripUpdate(tripUpdate).build();
+  }
+
+  @Test
+  public void differentialFeedEncodedOnce() {
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    RecordingListener a = new RecordingListener(exporter);
+    RecordingListener b = new RecordingListener(exporter);
+    exporter.addIncrementalListener(a);
+    exporter.addIncrementalListener(b);
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(entity("1"));
+    update.addDeletedEntity("2");
+    exporter.handleIncrementalUpdate(update);
+
+    assertEquals(2, a._feeds.size());
+    assertEquals(Incrementality.FULL_DATASET,
+        a._feeds.get(0).getHeader().getIncrementality());
+    FeedMessage differential = a._feeds.get(1);
+    assertEquals(Incrementality.DIFFERENTIAL,
+        differential.getHeader().getIncrementality());
+    assertEquals(2, differential.getEntityCount());
+    assertArrayEquals(differential.toByteArray(), a._encoded.get(1));
+    assertSame(a._encoded.get(1), b._encoded.get(b._encoded.size() - 1));
+    assertEquals(1, exporter.getFeed().getEntityCount());
+  }
+
+  @Test
+  public void slowListenerDoesNotBlockUpdates() throws Exception {
+    final GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    RecordingListener listener = new RecordingListener(exporter) {
+      @Override
+      public void handleFeed(FeedMessage feed, byte[] encoded) {
+        super.handleFeed(feed, encoded);
+        if (entered.getCount() > 0
+            && feed.getHeader().getIncrementality() == Incrementality.DIFFERENTIAL) {
+          entered.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    };
+    exporter.addIncrementalListener(listener);
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+        update.addUpdatedEntity(entity("1"));
+        exporter.handleIncrementalUpdate(update);
+      }
+    };
+    writer.start();
+    assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+    // Applied and readable while the listener still holds the first diff
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(entity("2"));
+    exporter.handleIncrementalUpdate(update);
+    assertEquals(2, exporter.getFeed().getEntityCount());
+    assertEquals(2, listener._feeds.size());
+
+    // Handed over by the writer still delivering, in order
+    release.countDown();
+    writer.join();
+    assertEquals(3, listener._feeds.size());
+    assertEquals("1", listener._feeds.get(1).getEntity(0).getId());
+    assertEquals("2", listener._feeds.get(2).getEntity(0).getId());
+  }
+
+  @Test
+  public void fullFeedConsistentWithIncrementalIndex() throws Exception {
+    final GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    final int updates = 2000;
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < updates; i++) {
+          GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+          update.addUpdatedEntity(entity(Integer.toString(i)));
+          exporter.handleIncrementalUpdate(update);
+        }
+      }
+    };
+    writer.start();
+    // Every update adds one entity, the full feed carries the index of the
+    // last update applied.
+    while (writer.isAlive()) {
+      FeedMessage feed = exporter.getFeed();
+      assertEquals(feed.getEntityCount(), incrementalIndex(feed));
+      GtfsRealtimeEncodedFeed encoded = exporter.getEncodedFeed();
+      FeedMessage decoded = FeedMessage.parseFrom(encoded.getBytes(),
+          registry());
+      assertEquals(decoded.getEntityCount(), incrementalIndex(decoded));
+    }
+    writer.join();
+    assertEquals(updates, exporter.getFeed().getEntityCount());
+  }
+
+  @Test
+  public void feedSince() throws Exception {
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    exporter.setMaxRecentDiffs(3);
+    for (int i = 0; i < 5; i++) {
+      GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+      update.addUpdatedEntity(entity(Integer.toString(i % 2)));
+      if (i == 4) {
+        update.addDeletedEntity("1");
+      }
+      exporter.handleIncrementalUpdate(update);
+    }
+    // Diffs 3, 4 and 5 are kept
+    assertNull(exporter.getEncodedFeedSince(1));
+    assertNull(exporter.getEncodedFeedSince(6));
+
+    FeedMessage since = FeedMessage.parseFrom(
+        exporter.getEncodedFeedSince(2).getBytes(), registry());
+    assertEquals(Incrementality.DIFFERENTIAL,
+        since.getHeader().getIncrementality());
+    assertEquals(5, incrementalIndex(since));
+    assertEquals(2, since.getEntityCount());
+    for (FeedEntity entity : since.getEntityList()) {
+      assertEquals(entity.getId().equals("1"), entity.getIsDeleted());
+    }
+
+    since = FeedMessage.parseFrom(exporter.getEncodedFeedSince(5).getBytes(),
+        registry());
+    assertEquals(0, since.getEntityCount());
+
+    exporter.handleFullUpdate(new GtfsRealtimeFullUpdate());
+    assertNull(exporter.getEncodedFeedSince(5));
+  }
+
+  private static FeedEntity vehicle(String id, String routeId, float lon,
+      float lat) {
+    VehiclePosition.Builder vehicle = VehiclePosition.newBuilder();
+    vehicle.setTrip(TripDescriptor.newBuilder().setTripId(id).setRouteId(
+        routeId));
+    vehicle.setPosition(Position.newBuilder().setLongitude(lon).setLatitude(
+        lat));
+    return FeedEntity.newBuilder().setId(id).setVehicle(vehicle).build();
+  }
+
+  @Test
+  public void partitions() throws Exception {
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    exporter.setPartitioner(new GtfsRealtimePartitioner() {
+      @Override
+      public String getAgencyId(FeedEntity entity) {
+        return entity.getId().substring(0, entity.getId().indexOf(':'));
+      }
+
+      @Override
+      public String getRouteId(FeedEntity entity) {
+        return entity.getVehicle().getTrip().getRouteId();
+      }
+    });
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(vehicle("GVB:1", "2", 4.90f, 52.37f)); // Amsterdam
+    update.addUpdatedEntity(vehicle("GVB:2", "17", 4.88f, 52.36f));
+    update.addUpdatedEntity(vehicle("HTM:1", "2", 4.31f, 52.08f)); // Den Haag
+    exporter.handleIncrementalUpdate(update);
+
+    assertEquals(2, partition(exporter,
+        GtfsRealtimeFeedFilter.all().withAgencyId("GVB")).getEntityCount());
+    assertEquals(2, partition(exporter,
+        GtfsRealtimeFeedFilter.all().withRouteId("2")).getEntityCount());
+    FeedMessage feed = partition(exporter,
+        GtfsRealtimeFeedFilter.all().withAgencyId("GVB").withRouteId("2"));
+    assertEquals(1, feed.getEntityCount());
+    assertEquals("GVB:1", feed.getEntity(0).getId());
+    feed = partition(exporter,
+        GtfsRealtimeFeedFilter.all().withBoundingBox("4.2,52.0,4.4,52.1"));
+    assertEquals(1, feed.getEntityCount());
+    assertEquals("HTM:1", feed.getEntity(0).getId());
+
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(vehicle("GVB:1", "2", 4.30f, 52.07f)); // Moved
+    update.addDeletedEntity("HTM:1");
+    exporter.handleIncrementalUpdate(update);
+    feed = partition(exporter,
+        GtfsRealtimeFeedFilter.all().withBoundingBox("4.2,52.0,4.4,52.1"));
+    assertEquals(1, feed.getEntityCount());
+    assertEquals("GVB:1", feed.getEntity(0).getId());
+    assertEquals(0, partition(exporter,
+        GtfsRealtimeFeedFilter.all().withAgencyId("HTM")).getEntityCount());
+  }
+
+  @Test
+  public void partitionFeedDuringFullUpdates() throws Exception {
+    final GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    final int vehicles = 50;
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 200; i++) {
+          GtfsRealtimeFullUpdate update = new GtfsRealtimeFullUpdate();
+          for (int j = 0; j < vehicles; j++) {
+            update.addEntity(vehicle("GVB:" + j, "2", 4.90f, 52.37f));
+          }
+          exporter.handleFullUpdate(update);
+        }
+      }
+    };
+    writer.start();
+    // The partition is never served from a full update half applied
+    while (writer.isAlive()) {
+      int count = partition(exporter,
+          GtfsRealtimeFeedFilter.all().withRouteId("2")).getEntityCount();
+      assertTrue(count == 0 || count == vehicles);
+    }
+    writer.join();
+    assertEquals(vehicles, partition(exporter,
+        GtfsRealtimeFeedFilter.all().withRouteId("2")).getEntityCount());
+  }
+
+  @Test
+  public void invalidBoundingBox() {
+    for (String bbox : Arrays.asList("-Infinity,-90,Infinity,90",
+        "NaN,52.0,4.4,52.1", "-1e12,-90,1e12,90", "4.2,52.1,4.4,52.0")) {
+      try {
+        GtfsRealtimeFeedFilter.all().withBoundingBox(bbox);
+        fail(bbox);
+      } catch (IllegalArgumentException ex) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void worldBoundingBox() throws Exception {
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(vehicle("GVB:1", "2", 4.90f, 52.37f));
+    update.addUpdatedEntity(vehicle("HTM:1", "2", 4.31f, 52.08f));
+    exporter.handleIncrementalUpdate(update);
+    // Too many cells, answered by scanning the entities
+    assertEquals(2, partition(exporter,
+        GtfsRealtimeFeedFilter.all().withBoundingBox("-180,-90,180,90")).getEntityCount());
+  }
+
+  @Test
+  public void subscriptions() throws Exception {
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    RecordingListener route2 = new RecordingListener(exporter);
+    RecordingListener otherRoute2 = new RecordingListener(exporter);
+    RecordingListener trip = new RecordingListener(exporter);
+    exporter.addIncrementalListener(route2, new GtfsRealtimeSubscription(null,
+        Arrays.asList("2"), null, null));
+    exporter.addIncrementalListener(otherRoute2, new GtfsRealtimeSubscription(
+        null, Arrays.asList("2"), null, null));
+    exporter.addIncrementalListener(trip, new GtfsRealtimeSubscription(null,
+        null, null, Arrays.asList("GVB:2")));
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(vehicle("GVB:1", "2", 4.90f, 52.37f));
+    update.addUpdatedEntity(vehicle("GVB:2", "17", 4.88f, 52.36f));
+    exporter.handleIncrementalUpdate(update);
+
+    FeedMessage feed = route2._feeds.get(1);
+    assertEquals(1, feed.getEntityCount());
+    assertEquals("GVB:1", feed.getEntity(0).getId());
+    assertArrayEquals(feed.toByteArray(), route2._encoded.get(1));
+    assertSame(route2._encoded.get(1), otherRoute2._encoded.get(1));
+    assertEquals("GVB:2", trip._feeds.get(1).getEntity(0).getId());
+
+    // Not of interest to the trip subscription
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(vehicle("GVB:1", "17", 4.90f, 52.37f));
+    exporter.handleIncrementalUpdate(update);
+    assertEquals(2, trip._feeds.size());
+    feed = route2._feeds.get(2);
+    assertEquals(1, feed.getEntityCount());
+    assertEquals("GVB:1", feed.getEntity(0).getId());
+    assertTrue(feed.getEntity(0).getIsDeleted());
+
+    exporter.removeIncrementalListener(route2);
+    exporter.removeIncrementalListener(otherRoute2);
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(vehicle("GVB:1", "2", 4.90f, 52.37f));
+    update.addDeletedEntity("GVB:2");
+    exporter.handleIncrementalUpdate(update);
+    assertEquals(3, route2._feeds.size());
+    feed = trip._feeds.get(2);
+    assertEquals(1, feed.getEntityCount());
+    assertTrue(feed.getEntity(0).getIsDeleted());
+  }
+
+  @Test
+  public void subscriptionFeedByReferences() {
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+    tripUpdate.setTrip(TripDescriptor.newBuilder().setTripId("GVB:1"));
+    tripUpdate.addStopTimeUpdate(StopTimeUpdate.newBuilder().setStopId("S1"));
+    Alert.Builder alert = Alert.newBuilder();
+    alert.addInformedEntity(EntitySelector.newBuilder().setRouteId("5"));
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("GVB:1").setTripUpdate(
+        tripUpdate).build());
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId("alert").setAlert(
+        alert).build());
+    update.addUpdatedEntity(vehicle("GVB:2", "5", 4.88f, 52.36f));
+    exporter.handleIncrementalUpdate(update);
+
+    FeedMessage feed = exporter.getFeed(new GtfsRealtimeSubscription(null,
+        null, Arrays.asList("S1"), null));
+    assertEquals(1, feed.getEntityCount());
+    assertEquals("GVB:1", feed.getEntity(0).getId());
+    assertEquals(2, exporter.getFeed(
+        new GtfsRealtimeSubscription(null, Arrays.asList("5"), null, null)).getEntityCount());
+
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addDeletedEntity("alert");
+    exporter.handleIncrementalUpdate(update);
+    feed = exporter.getFeed(new GtfsRealtimeSubscription(null,
+        Arrays.asList("5"), null, null));
+    assertEquals(1, feed.getEntityCount());
+    assertEquals("GVB:2", feed.getEntity(0).getId());
+  }
+
+  @Test
+  public void batchWindow() throws Exception {
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    exporter.setExecutor(executor);
+    exporter.setBatchWindow(50);
+    RecordingListener listener = new RecordingListener(exporter);
+    exporter.addIncrementalListener(listener);
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(entity("1"));
+    update.addUpdatedEntity(entity("2"));
+    exporter.handleIncrementalUpdate(update);
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addDeletedEntity("1");
+    update.addUpdatedEntity(entity("3"));
+    exporter.handleIncrementalUpdate(update);
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(entity("3"));
+    exporter.handleIncrementalUpdate(update);
+    assertEquals(1, listener._feeds.size());
+
+    // Delayed tasks still run after shutdown
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(2, listener._feeds.size());
+    FeedMessage diff = listener._feeds.get(1);
+    assertEquals(3, diff.getEntityCount());
+    for (FeedEntity entity : diff.getEntityList()) {
+      assertEquals(entity.getId().equals("1"), entity.getIsDeleted());
+    }
+    assertEquals(2, exporter.getFeed().getEntityCount());
+  }
+
+  @Test
+  public void expiration() {
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    RecordingListener listener = new RecordingListener(exporter);
+    exporter.addIncrementalListener(listener);
+    long now = System.currentTimeMillis();
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(entity("1"), now + 5000);
+    update.addUpdatedEntity(entity("2"), now + 60000);
+    update.addUpdatedEntity(entity("3"));
+    exporter.handleIncrementalUpdate(update);
+    // Updated again, the expiration time moves
+    update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(entity("2"), now + 3000);
+    exporter.handleIncrementalUpdate(update);
+    assertEquals(3, listener._feeds.size());
+
+    exporter.expire(now + 1000);
+    assertEquals(3, listener._feeds.size());
+    exporter.expire(now + 4000);
+    assertEquals(4, listener._feeds.size());
+    FeedMessage diff = listener._feeds.get(3);
+    assertEquals(1, diff.getEntityCount());
+    assertEquals("2", diff.getEntity(0).getId());
+    assertTrue(diff.getEntity(0).getIsDeleted());
+
+    // More than a revolution of the wheel later
+    exporter.expire(now + 3600 * 1000);
+    assertEquals(5, listener._feeds.size());
+    assertEquals("1", listener._feeds.get(4).getEntity(0).getId());
+    assertEquals(1, exporter.getFeed().getEntityCount());
+    assertEquals("3", exporter.getFeed().getEntity(0).getId());
+  }
+
+  private static FeedMessage partition(GtfsRealtimeExporterImpl exporter,
+      GtfsRealtimeFeedFilter filter) throws Exception {
+    return FeedMessage.parseFrom(exporter.getEncodedFeed(filter).getBytes(),
+        registry());
+  }
+
+  private static long incrementalIndex(FeedMessage feed) {
+    return feed.getHeader().getExtension(GtfsRealtimeOneBusAway.obaFeedHeader).getIncrementalIndex();
+  }
+
+  private static ExtensionRegistry registry() {
+    ExtensionRegistry registry = ExtensionRegistry.newInstance();
+    registry.add(GtfsRealtimeOneBusAway.obaFeedHeader);
+    return registry;
+  }
+}
@@ -0,0 +1,68 @@
+package org.onebusaway.gtfs_realtime.exporter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+
+public class GtfsRealtimeFileWriterTest {
+
+  private static void update(GtfsRealtimeExporterImpl exporter, String id) {
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    update.addUpdatedEntity(FeedEntity.newBuilder().setId(id).setTripUpdate(
+        TripUpdate.newBuilder().setTrip(TripDescriptor.newBuilder().setTripId(id))).build());
+    exporter.handleIncrementalUpdate(update);
+  }
+
+  @Test
+  public void writeOnChange() throws Exception {
+    File dir = Files.createTempDirectory("gtfsrt").toFile();
+    File path = new File(dir, "tripUpdates.pb");
+    GtfsRealtimeExporterImpl exporter = new GtfsRealtimeExporterImpl();
+    exporter.setEncodedFeedInterval(0);
+    GtfsRealtimeFileWriter writer = new GtfsRealtimeFileWriter();
+    writer.setSource(exporter);
+    writer.setPath(path);
+    writer.setGzip(true);
+    writer.setMetadata(true);
+
+    update(exporter, "1");
+    writer.writeMessageToFile();
+    byte[] written = Files.readAllBytes(path.toPath());
+    assertEquals(1, FeedMessage.parseFrom(written).getEntityCount());
+    assertArrayEquals(written, ByteStreams.toByteArray(new GZIPInputStream(
+        new FileInputStream(new File(dir, "tripUpdates.pb.gz")))));
+    String metadata = new String(Files.readAllBytes(new File(dir,
+        "tripUpdates.pb.json").toPath()), Charsets.UTF_8);
+    assertTrue(metadata, metadata.contains("\"incrementalIndex\":1,"));
+    assertFalse(new File(dir, ".tripUpdates.pb.tmp").exists());
+
+    // Unchanged feed, file is left alone
+    assertTrue(path.setLastModified(0));
+    writer.writeMessageToFile();
+    assertEquals(0, path.lastModified());
+
+    update(exporter, "2");
+    writer.writeMessageToFile();
+    assertEquals(2, FeedMessage.parseFrom(Files.readAllBytes(path.toPath())).getEntityCount());
+
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+}